@@ -0,0 +1,78 @@
+// vert.glsl
+#version 330
+
+// Canvas to output coordinates, see OutputRegion
+uniform mat3 outputTransform;
+
+// Animation clock, in seconds
+uniform float time;
+// How far Processing's camera sits from the canvas, in pixels
+uniform float eyeDistance;
+
+// The patch, in canvas pixels: the 4 corners (top left, top right,
+//  bottom right, bottom left), then each corner's two control points
+uniform vec2 patchPoints[12];
+// Horizontal and vertical displacement force
+uniform vec2 patchForce;
+// Grid resolution of the surface
+uniform float patchRes;
+// Half the canvas size, rounded down, for getting into OpenGL coordinates
+uniform vec2 canvasHalf;
+
+in vec4 color;
+in vec3 texLoc;
+// Shake of the surface: amplitude, frequency, falloff, start time
+in vec4 shake;
+
+out vec4 vertColor;
+out vec3 texCoord;
+
+const float PI = 3.14159265358979;
+
+vec2 bezier(vec2 a, vec2 b, vec2 c, vec2 d, float t) {
+  float mt = 1.0 - t;
+  return a * (mt * mt * mt) + b * (3.0 * mt * mt * t) + c * (3.0 * mt * t * t) + d * (t * t * t);
+}
+
+// Z-displacement of the shake right now, see SuperSurface.setShake()
+float shakeOffset() {
+  float t = time - shake.w;
+  if (shake.x == 0.0 || t < 0.0) {
+    return 0.0;
+  }
+  return shake.x * exp(-shake.z * t) * sin(6.28318530718 * shake.y * t);
+}
+
+// Scales canvas OpenGL coordinates around the middle, the way
+//  Processing's camera would show something moved along Z
+vec2 shakePosition(vec2 pos) {
+  return pos * (eyeDistance / max(eyeDistance - shakeOffset(), 1.0));
+}
+
+void main() {
+  // Each vertex only knows where it is on a unit grid, so
+  //  work out where that lands on the patch, like BezierSurface does
+  float u = texLoc.x;
+  float v = texLoc.y;
+
+  vec2 start = bezier(patchPoints[0], patchPoints[4], patchPoints[11], patchPoints[3], v);
+  vec2 end = bezier(patchPoints[1], patchPoints[7], patchPoints[8], patchPoints[2], v);
+  vec2 control0 = (patchPoints[5] - patchPoints[10]) * (1.0 - v) + patchPoints[10];
+  vec2 control1 = (patchPoints[6] - patchPoints[9]) * (1.0 - v) + patchPoints[9];
+  vec2 pos = bezier(start, control0, control1, end, u);
+
+  // Orthographic projection for the displacement forces
+  float reference = floor(patchRes / 2.0) * PI / patchRes;
+  float longitude = u * PI - reference;
+  float latitude = v * PI;
+  pos.x += cos(latitude - reference) * sin(longitude) * patchForce.x;
+  pos.y += (cos(reference) * sin(latitude) - sin(reference) * cos(latitude) * cos(longitude)) * patchForce.y;
+
+  // Canvas pixels to OpenGL coordinates, then into the output we're drawing
+  vec2 ndc = vec2(pos.x - canvasHalf.x, canvasHalf.y - pos.y) / canvasHalf;
+  vec3 p = outputTransform * vec3(shakePosition(ndc), 1.0);
+  gl_Position = vec4(p.xy, 0.0, p.z);
+
+  vertColor = color;
+  texCoord = texLoc;
+}
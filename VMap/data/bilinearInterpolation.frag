@@ -3,6 +3,15 @@
 
 uniform mat4 transform;
 uniform sampler2D tex;
+// 1 if the texture is stored upside down, like textures from a PGraphics
+uniform float texFlipY;
+
+// The output we're drawing into, in framebuffer pixels (x, y, width, height),
+//  and its edge blend zones as fractions of it (left, right, top, bottom)
+uniform vec4 outputViewport;
+uniform vec4 blendWidths;
+uniform float blendGamma;
+uniform float blendCurve;
 
 in vec4 vertColor;
 in vec3 texCoord;
@@ -14,6 +23,23 @@ in vec2 b3;
 
 out vec4 fragColor;
 
+// How much of one edge's blend zone we're in: 1 outside it, fading to 0 at the edge
+float edgeBlend(float distance, float width){
+  if (width <= 0.0) return 1.0;
+  float x = clamp(distance / width, 0.0, 1.0);
+  // S-curve, so two overlapping projectors always add up to 1
+  float ramp = (x < 0.5) ? 0.5 * pow(2.0 * x, blendCurve)
+                         : 1.0 - 0.5 * pow(2.0 * (1.0 - x), blendCurve);
+  // Undo the projector's gamma, so the light adds up instead of the values
+  return pow(ramp, 1.0 / blendGamma);
+}
+
+float outputBlend(){
+  vec2 p = (gl_FragCoord.xy - outputViewport.xy) / outputViewport.zw;
+  return edgeBlend(p.x, blendWidths.x) * edgeBlend(1.0 - p.x, blendWidths.y)
+       * edgeBlend(1.0 - p.y, blendWidths.z) * edgeBlend(p.y, blendWidths.w);
+}
+
 float Wedge2D(vec2 v, vec2 w){
   return v.x*w.y - v.y*w.x;
 }
@@ -43,7 +69,10 @@ void main() {
   else
     uv.x = (q.y - b2.y * uv.y) / denom.y;
   
+  uv.y = mix(uv.y, 1.0 - uv.y, texFlipY);
   fragColor = texture(tex, uv) * vertColor;
+  // Edge blending, if the output has any
+  fragColor.rgb *= outputBlend();
   
   //fragColor = texture(tex, texCoord.xy) * vertColor;
   //fragColor = vec4(1.0f, .8f, 1.0f, 1.0f);
@@ -3,16 +3,46 @@
 
 uniform mat4 transform;
 uniform sampler2D tex;
+// 1 if the texture is stored upside down, like textures from a PGraphics
+uniform float texFlipY;
+
+// The output we're drawing into, in framebuffer pixels (x, y, width, height),
+//  and its edge blend zones as fractions of it (left, right, top, bottom)
+uniform vec4 outputViewport;
+uniform vec4 blendWidths;
+uniform float blendGamma;
+uniform float blendCurve;
 
 in vec4 vertColor;
 in vec3 texCoord;
 
 out vec4 fragColor;
 
+// How much of one edge's blend zone we're in: 1 outside it, fading to 0 at the edge
+float edgeBlend(float distance, float width){
+  if (width <= 0.0) return 1.0;
+  float x = clamp(distance / width, 0.0, 1.0);
+  // S-curve, so two overlapping projectors always add up to 1
+  float ramp = (x < 0.5) ? 0.5 * pow(2.0 * x, blendCurve)
+                         : 1.0 - 0.5 * pow(2.0 * (1.0 - x), blendCurve);
+  // Undo the projector's gamma, so the light adds up instead of the values
+  return pow(ramp, 1.0 / blendGamma);
+}
+
+float outputBlend(){
+  vec2 p = (gl_FragCoord.xy - outputViewport.xy) / outputViewport.zw;
+  return edgeBlend(p.x, blendWidths.x) * edgeBlend(1.0 - p.x, blendWidths.y)
+       * edgeBlend(1.0 - p.y, blendWidths.z) * edgeBlend(p.y, blendWidths.w);
+}
+
 
 void main() {
   float q = texCoord.z;
-  fragColor = texture(tex, texCoord.xy/q) * vertColor;
+  vec2 uv = texCoord.xy/q;
+  uv.y = mix(uv.y, 1.0 - uv.y, texFlipY);
+  fragColor = texture(tex, uv) * vertColor;
+  // Edge blending, if the output has any
+  fragColor.rgb *= outputBlend();
   
   //fragColor = vec4(1.0f, 1.0f, 0.6f, 1.0f);//q/2.0f);
 }
\ No newline at end of file
@@ -1,20 +1,150 @@
 // vert.glsl
 #version 330
 
+// Canvas to output coordinates, see OutputRegion
+uniform mat3 outputTransform;
+
+// Animation clock, in seconds
+uniform float time;
+// How far Processing's camera sits from the canvas, in pixels
+uniform float eyeDistance;
+
+// Keyframes of animated corners, see Timeline. Every texel is one key
+//  (time, x, y, easing), and an animated surface starts with one texel
+//  per corner saying where that corner's keys start and how many there are.
+uniform sampler2D tracks;
+// Where the timeline's playhead is, in seconds
+uniform float timelineTime;
+// Half the canvas size, for turning pixels into OpenGL coordinates
+uniform vec2 canvasHalf;
+
 uniform mat4 transform;
 
 in vec3 position;
 in vec3 color;
 in vec3 texLoc;
+// Shake of the surface: amplitude, frequency, falloff, start time
+in vec4 shake;
+// First texel of the surface's keys, -1 if it isn't animated
+in float track;
+// Corners of the quad this vertex belongs to, for animated quads
+in vec2 p0; // top left
+in vec2 p1; // top right
+in vec2 p2; // bottom left
+in vec2 p3; // bottom right
 
 out vec4 vertColor;
 out vec3 texCoord;
 
+// Z-displacement of the shake right now, see SuperSurface.setShake()
+float shakeOffset() {
+  float t = time - shake.w;
+  if (shake.x == 0.0 || t < 0.0) {
+    return 0.0;
+  }
+  return shake.x * exp(-shake.z * t) * sin(6.28318530718 * shake.y * t);
+}
+
+// Scales canvas OpenGL coordinates around the middle, the way
+//  Processing's camera would show something moved along Z
+vec2 shakePosition(vec2 pos) {
+  return pos * (eyeDistance / max(eyeDistance - shakeOffset(), 1.0));
+}
+
+// Timeline helpers, the same as in testShader.vert
+vec4 trackTexel(int i) {
+  return texelFetch(tracks, ivec2(i % 256, i / 256), 0);
+}
+
+// Shapes the way from one key to the next, same as Track.ease()
+float ease(float t, int easing) {
+  if (easing == 1) {
+    return t * t * t;
+  }
+  if (easing == 2) {
+    float m = 1.0 - t;
+    return 1.0 - m * m * m;
+  }
+  if (easing == 3) {
+    if (t < 0.5) {
+      return 4.0 * t * t * t;
+    }
+    float n = 2.0 - 2.0 * t;
+    return 1.0 - n * n * n / 2.0;
+  }
+  if (easing == 4) {
+    return 0.0;
+  }
+  return t;
+}
+
+// Where a corner (0 - 3 for top left, top right, bottom right, bottom left)
+//  is at the playhead, in OpenGL coordinates, same as Track.evaluate().
+//  Corners without keys stay at fallback.
+vec2 trackCorner(int corner, vec2 fallback) {
+  vec4 header = trackTexel(int(track) + corner);
+  int first = int(header.x);
+  int count = int(header.y);
+  if (count == 0) {
+    return fallback;
+  }
+  vec4 a = trackTexel(first);
+  vec2 value = a.yz;
+  if (timelineTime > a.x) {
+    for (int k = 1; k < count; k++) {
+      vec4 b = trackTexel(first + k);
+      if (timelineTime < b.x) {
+        value = mix(a.yz, b.yz, ease((timelineTime - a.x) / (b.x - a.x), int(a.w)));
+        break;
+      }
+      a = b;
+      value = b.yz;
+    }
+  }
+  return vec2(value.x - canvasHalf.x, canvasHalf.y - value.y) / canvasHalf;
+}
+
+// Which corner of its quad this vertex is, from its texture coordinates
+int trackCornerIndex() {
+  vec2 uv = floor(texLoc.xy / texLoc.z + 0.5);
+  return (uv.y < 0.5) ? int(uv.x) : 3 - int(uv.x);
+}
+
+// Texture coordinates for one corner of an animated quad, with the same
+//  diagonal trick VMap.addQuadPointsToVertexList() uses for still ones.
+//  Corners go top left, top right, bottom right, bottom left.
+vec3 projectiveTexLoc(vec2 c[4], int corner) {
+  // Where the diagonals cross
+  vec2 d1 = c[2] - c[0];
+  vec2 d2 = c[1] - c[3];
+  vec2 r = c[3] - c[0];
+  float s = (r.x * d2.y - r.y * d2.x) / (d1.x * d2.y - d1.y * d2.x);
+  vec2 di = c[0] + s * d1;
+  // Each corner's q comes from its distance and the opposite corner's
+  float own = distance(di, c[corner]);
+  float opposite = distance(di, c[(corner + 2) % 4]);
+  float q = (own + opposite) / opposite;
+  vec2 uvs[4] = vec2[4](vec2(0.0, 0.0), vec2(1.0, 0.0), vec2(1.0, 1.0), vec2(0.0, 1.0));
+  return vec3(uvs[corner] * q, q);
+}
+
 void main() {
   //gl_Position = transform * position;
-  gl_Position = vec4(position.x, position.y, position.z, 1.0f);
+  // Move into the output we're drawing. The keystone's w multiplies
+  //  into our q, and perspective-correct interpolation takes it back out.
+  //  Animated corners come from the timeline instead, and need new q values.
+  vec2 pos = position.xy;
+  vec3 uvq = texLoc;
+  if (track >= 0.0) {
+    vec2 corners[4] = vec2[4](trackCorner(0, p0), trackCorner(1, p1), trackCorner(2, p3), trackCorner(3, p2));
+    int corner = trackCornerIndex();
+    pos = corners[corner];
+    uvq = projectiveTexLoc(corners, corner);
+  }
+  vec3 p = outputTransform * vec3(shakePosition(pos), 1.0);
+  gl_Position = vec4(p.xy, position.z * p.z, p.z);
   //vertColor = vec4(.5f, 0.0f, 0.0f, 1.0f);
   vertColor = vec4(color, 1.0f);
   
-  texCoord = texLoc;
+  texCoord = uvq;
 }
\ No newline at end of file
@@ -2,15 +2,41 @@
 
 uniform mat4 transform;
 uniform sampler2D tex;
+// 1 if the texture is stored upside down, like textures from a PGraphics
+uniform float texFlipY;
+
+// Output position and edge blending, same as the projective shader
+uniform vec4 outputViewport;
+uniform vec4 blendWidths;
+uniform float blendGamma;
+uniform float blendCurve;
 
 in vec4 vertColor;
 in vec3 texCoord;
 
 out vec4 fragColor;
 
+// Edge blending - see projectiveShader.frag
+float edgeBlend(float distance, float width){
+  if (width <= 0.0) return 1.0;
+  float x = clamp(distance / width, 0.0, 1.0);
+  float ramp = (x < 0.5) ? 0.5 * pow(2.0 * x, blendCurve)
+                         : 1.0 - 0.5 * pow(2.0 * (1.0 - x), blendCurve);
+  return pow(ramp, 1.0 / blendGamma);
+}
+
+float outputBlend(){
+  vec2 p = (gl_FragCoord.xy - outputViewport.xy) / outputViewport.zw;
+  return edgeBlend(p.x, blendWidths.x) * edgeBlend(1.0 - p.x, blendWidths.y)
+       * edgeBlend(1.0 - p.y, blendWidths.z) * edgeBlend(p.y, blendWidths.w);
+}
+
 
 void main() {
   float q = texCoord.z;
-  fragColor = texture(tex, texCoord.xy) * vertColor;
+  vec2 uv = texCoord.xy;
+  uv.y = mix(uv.y, 1.0 - uv.y, texFlipY);
+  fragColor = texture(tex, uv) * vertColor;
+  fragColor.rgb *= outputBlend();
   
 }
\ No newline at end of file
@@ -1,15 +1,116 @@
 // vert.glsl
 #version 330
 
+// Canvas to output coordinates, see OutputRegion
+uniform mat3 outputTransform;
+
+// Animation clock, in seconds
+uniform float time;
+// How far Processing's camera sits from the canvas, in pixels
+uniform float eyeDistance;
+
+// Keyframes of animated corners, see Timeline. Every texel is one key
+//  (time, x, y, easing), and an animated surface starts with one texel
+//  per corner saying where that corner's keys start and how many there are.
+uniform sampler2D tracks;
+// Where the timeline's playhead is, in seconds
+uniform float timelineTime;
+// Half the canvas size, for turning pixels into OpenGL coordinates
+uniform vec2 canvasHalf;
+
 in vec3 position;
 in vec4 color;
 in vec3 texLoc;
+// Shake of the surface: amplitude, frequency, falloff, start time
+in vec4 shake;
+// First texel of the surface's keys, -1 if it isn't animated
+in float track;
 
 out vec4 vertColor;
 out vec3 texCoord;
 
+// Z-displacement of the shake right now, see SuperSurface.setShake()
+float shakeOffset() {
+  float t = time - shake.w;
+  if (shake.x == 0.0 || t < 0.0) {
+    return 0.0;
+  }
+  return shake.x * exp(-shake.z * t) * sin(6.28318530718 * shake.y * t);
+}
+
+// Scales canvas OpenGL coordinates around the middle, the way
+//  Processing's camera would show something moved along Z
+vec2 shakePosition(vec2 pos) {
+  return pos * (eyeDistance / max(eyeDistance - shakeOffset(), 1.0));
+}
+
+vec4 trackTexel(int i) {
+  return texelFetch(tracks, ivec2(i % 256, i / 256), 0);
+}
+
+// Shapes the way from one key to the next, same as Track.ease()
+float ease(float t, int easing) {
+  if (easing == 1) {
+    return t * t * t;
+  }
+  if (easing == 2) {
+    float m = 1.0 - t;
+    return 1.0 - m * m * m;
+  }
+  if (easing == 3) {
+    if (t < 0.5) {
+      return 4.0 * t * t * t;
+    }
+    float n = 2.0 - 2.0 * t;
+    return 1.0 - n * n * n / 2.0;
+  }
+  if (easing == 4) {
+    return 0.0;
+  }
+  return t;
+}
+
+// Where a corner (0 - 3 for top left, top right, bottom right, bottom left)
+//  is at the playhead, in OpenGL coordinates, same as Track.evaluate().
+//  Corners without keys stay at fallback.
+vec2 trackCorner(int corner, vec2 fallback) {
+  vec4 header = trackTexel(int(track) + corner);
+  int first = int(header.x);
+  int count = int(header.y);
+  if (count == 0) {
+    return fallback;
+  }
+  vec4 a = trackTexel(first);
+  vec2 value = a.yz;
+  if (timelineTime > a.x) {
+    for (int k = 1; k < count; k++) {
+      vec4 b = trackTexel(first + k);
+      if (timelineTime < b.x) {
+        value = mix(a.yz, b.yz, ease((timelineTime - a.x) / (b.x - a.x), int(a.w)));
+        break;
+      }
+      a = b;
+      value = b.yz;
+    }
+  }
+  return vec2(value.x - canvasHalf.x, canvasHalf.y - value.y) / canvasHalf;
+}
+
+// Which corner of its quad this vertex is, from its texture coordinates
+int trackCornerIndex() {
+  vec2 uv = floor(texLoc.xy / texLoc.z + 0.5);
+  return (uv.y < 0.5) ? int(uv.x) : 3 - int(uv.x);
+}
+
 void main() {
-  gl_Position = vec4(position.x, position.y, position.z, 1.0f);
+  // Move into the output we're drawing, keystone included
+  // Animated corners come from the timeline instead
+  vec2 pos = position.xy;
+  if (track >= 0.0) {
+    pos = trackCorner(trackCornerIndex(), pos);
+  }
+  vec3 p = outputTransform * vec3(shakePosition(pos), 1.0);
+  gl_Position = vec4(p.xy, position.z * p.z, p.z);
   
   // Color is coming out with RGB swapped right now, so see if this fixes...
   vertColor = color;
@@ -36,6 +36,9 @@ void setup(){
   //Set up a movie
   movie = new Movie(this, "streets.mp4");
   movie.loop();
+  // Movies change every frame, so stream them to the graphics card
+  //  in the background instead of waiting on each upload
+  vmap.setStreamingTexture(movie, true);
   
   //Creates one surface with subdivision 3, at center of screen
   vmap.addQuadSurface(width/2, height/2);
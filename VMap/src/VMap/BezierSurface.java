@@ -34,8 +34,12 @@ import processing.core.PVector;
 
 public class BezierSurface extends SuperSurface{
 
-	// Contains all coordinates
+	// Contains all coordinates, x and y for each mesh point. Point (i, j)
+	//  is at (i * (GRID_RESOLUTION+1) + j) * 2. Everything draws from this,
+	//  vertexPoints is only a copy kept for getVertexPoints().
+	private float[] meshCoordinates;
 	private PVector[][] vertexPoints;
+	private boolean vertexPointsStale = true;
 	
 	private BezierPoint3D[] cornerPoints;
 
@@ -49,6 +53,23 @@ public class BezierSurface extends SuperSurface{
 
 	private int GRID_RESOLUTION;
 	private int DEFAULT_SIZE = 100;
+	
+	// If set, VMap works out the mesh on the graphics card, and we only
+	//  work out the outline here. The rest of the mesh is filled in
+	//  when something actually asks for it (see updateMesh()).
+	private boolean evaluatingOnGPU = false;
+	private boolean meshStale = false;
+	
+	// Tables for working out the mesh, which only depend on GRID_RESOLUTION.
+	//  bernstein holds the 4 cubic Bezier weights for each step (k / GRID_RESOLUTION),
+	//  the rest are the parts of the displacement force terms that only depend
+	//  on the column (i) or the row (j). See allocateMesh().
+	private float[] bernstein;
+	private float[] forceXColumn;
+	private float[] forceXRow;
+	private float[] forceYColumn;
+	private float[] forceYRowA;
+	private float[] forceYRowB;
 
 	private int selectedBezierControl;
 	
@@ -128,6 +149,8 @@ public class BezierSurface extends SuperSurface{
 	 * @param xml XML object to load this from
 	 */
 	BezierSurface(PApplet parent, VMap vm, XML xml) {
+		// Set every point, then work out the mesh once
+		this.beginEdit();
 		if (xml.getString("filename") != null){
 			init(xml.getString("filename"), parent, vm, xml.getInt("res"), xml.getInt("id"), xml.getString("name"));
 		}
@@ -150,6 +173,28 @@ public class BezierSurface extends SuperSurface{
 		verticalForce = xml.getInt("verticalForce");
 
 		this.updateTransform();
+		this.commitEdit();
+	}
+	
+	/**
+	 * Constructor used by loaders that set the points themselves.
+	 *  The surface starts with an edit open (see beginEdit()), so set
+	 *  the corners and control points, then commitEdit() works out the mesh once.
+	 * @param parent PApplet this belongs to
+	 * @param vm VMap instance this is a part of
+	 * @param res Resolution, like getRes()
+	 * @param id ID of this surface
+	 * @param name Name, or null
+	 * @param filename Image filename to show, or null
+	 */
+	BezierSurface(PApplet parent, VMap vm, int res, int id, String name, String filename) {
+		this.beginEdit();
+		if (filename != null){
+			init(filename, parent, vm, res, id, name);
+		}
+		else{
+			init(parent, vm, res, id, name);
+		}
 	}
 	
 	/**
@@ -189,7 +234,7 @@ public class BezierSurface extends SuperSurface{
 
 		this.cornerPoints = new BezierPoint3D[4];
 		this.bezierPoints = new PVector[8];
-		this.vertexPoints = new PVector[this.GRID_RESOLUTION+1][this.GRID_RESOLUTION+1];
+		this.allocateMesh();
 
 		for (int i = 0; i < this.cornerPoints.length; i++) {
 			this.cornerPoints[i] = new BezierPoint3D();
@@ -225,12 +270,95 @@ public class BezierSurface extends SuperSurface{
 		return GRID_RESOLUTION;
 	}
 
+	/**
+	 * Get the points of the surface's mesh, indexed [u][v] with getRes()+1 on a side.
+	 *  These are a copy of getMeshCoordinates(), made when you ask for them,
+	 *  so don't hang on to them or change them.
+	 * @return Returns the mesh points, in screen pixels
+	 */
+	PVector[][] getVertexPoints() {
+		this.updateMesh();
+		int side = GRID_RESOLUTION + 1;
+		if (vertexPoints == null) {
+			vertexPoints = new PVector[side][side];
+			for (int i = 0; i < side; i++) {
+				for (int j = 0; j < side; j++) {
+					vertexPoints[i][j] = new PVector();
+				}
+			}
+		}
+		if (vertexPointsStale) {
+			for (int i = 0; i < side; i++) {
+				for (int j = 0; j < side; j++) {
+					vertexPoints[i][j].set(meshX(i, j), meshY(i, j), 0);
+				}
+			}
+			vertexPointsStale = false;
+		}
+		return vertexPoints;
+	}
+	
+	/**
+	 * Get the points of the surface's mesh as one flat array of x, y pairs,
+	 *  point (i, j) at (i * (getRes()+1) + j) * 2. This is the array
+	 *  updateTransform() works in, so don't hang on to it or change it.
+	 * @return Returns the mesh coordinates, in screen pixels
+	 */
+	float[] getMeshCoordinates() {
+		this.updateMesh();
+		return meshCoordinates;
+	}
+	
+	private float meshX(int i, int j) {
+		return meshCoordinates[(i * (GRID_RESOLUTION + 1) + j) * 2];
+	}
+	
+	private float meshY(int i, int j) {
+		return meshCoordinates[(i * (GRID_RESOLUTION + 1) + j) * 2 + 1];
+	}
+	
+	/**
+	 * Sets whether the graphics card works out this surface's mesh.
+	 *  If it does, moving the surface around only sends its 4 corners,
+	 *  8 control points and forces up, instead of every point of the mesh.
+	 *  This only applies while the surface uses VMap's own shaders.
+	 * @param evaluatingOnGPU True to work out the mesh on the graphics card
+	 */
+	public void setEvaluatingOnGPU(boolean evaluatingOnGPU) {
+		this.evaluatingOnGPU = evaluatingOnGPU;
+		this.updateTransform();
+	}
+	
+	/**
+	 * See if the graphics card works out this surface's mesh
+	 * @return Returns true if it does
+	 */
+	public boolean isEvaluatingOnGPU() {
+		return evaluatingOnGPU;
+	}
+	
+	/**
+	 * Copies the patch into an array for the graphics card, as x, y pairs:
+	 *  the 4 corners, then controlPoint0 and controlPoint1 of each corner
+	 * @param points Array of at least 24 floats to fill in
+	 */
+	void getPatchPoints(float[] points) {
+		for (int i = 0; i < 4; i++) {
+			points[i * 2] = cornerPoints[i].x;
+			points[i * 2 + 1] = cornerPoints[i].y;
+			points[8 + i * 4] = cornerPoints[i].controlPoint0.x;
+			points[8 + i * 4 + 1] = cornerPoints[i].controlPoint0.y;
+			points[8 + i * 4 + 2] = cornerPoints[i].controlPoint1.x;
+			points[8 + i * 4 + 3] = cornerPoints[i].controlPoint1.y;
+		}
+	}
+
 	/**
 	 * Increase the subdivision
 	 */
 	public void increaseResolution() {
 		this.GRID_RESOLUTION += 2;
-		this.vertexPoints = new PVector[this.GRID_RESOLUTION+1][this.GRID_RESOLUTION+1];
+		this.allocateMesh();
 		this.updateTransform();
 	}
 
@@ -240,7 +368,7 @@ public class BezierSurface extends SuperSurface{
 	public void decreaseResolution() {
 		if ((this.GRID_RESOLUTION - 1) > 2) {
 			this.GRID_RESOLUTION -= 2;
-			this.vertexPoints = new PVector[this.GRID_RESOLUTION+1][this.GRID_RESOLUTION+1];
+			this.allocateMesh();
 			this.updateTransform();
 		}
 	}
@@ -293,6 +421,17 @@ public class BezierSurface extends SuperSurface{
 	public int getVerticalForce(){
 		return verticalForce;
 	}
+
+	/**
+	 * Set both displacement forces at once
+	 * @param horizontalForce Horizontal displacement force
+	 * @param verticalForce Vertical displacement force
+	 */
+	public void setForce(int horizontalForce, int verticalForce){
+		this.horizontalForce = horizontalForce;
+		this.verticalForce = verticalForce;
+		this.updateTransform();
+	}
 	
 	/**
 	 * Set target bezier control point to coordinates
@@ -306,6 +445,19 @@ public class BezierSurface extends SuperSurface{
 		this.updateTransform();
 	}
 	
+	/**
+	 * Moves the whole surface, control points and all
+	 * @param dx Distance to move along X
+	 * @param dy Distance to move along Y
+	 */
+	public void translate(float dx, float dy) {
+		for (int i = 0; i < this.bezierPoints.length; i++) {
+			this.bezierPoints[i].x += dx;
+			this.bezierPoints[i].y += dy;
+		}
+		super.translate(dx, dy);
+	}
+	
 	/**
 	 * Get all bezier points
 	 * @return PVector array of all bezier points
@@ -360,60 +512,146 @@ public class BezierSurface extends SuperSurface{
 	 * Must be called whenever any change has been done to the surface.
 	 */
 	public void updateTransform(){
+		if (this.deferTransform()) {
+			return;
+		}
 		
-		for (int i = 0; i <= GRID_RESOLUTION; i++) {
-			for (int j = 0; j <= GRID_RESOLUTION; j++) {
-				
-		        float start_x = parent.bezierPoint(cornerPoints[0].x, cornerPoints[0].controlPoint0.x, cornerPoints[3].controlPoint1.x, cornerPoints[3].x, (float)j/GRID_RESOLUTION);
-		        //float end_x = parent.bezierPoint(cornerPoints[1].x, bezierPoints[3].x, bezierPoints[4].x, cornerPoints[2].x, (float)j/GRID_RESOLUTION);
-		        float end_x = parent.bezierPoint(cornerPoints[1].x, cornerPoints[1].controlPoint1.x, cornerPoints[2].controlPoint0.x, cornerPoints[2].x, (float)j/GRID_RESOLUTION);
-
-		        //float start_y = parent.bezierPoint(cornerPoints[0].y, bezierPoints[0].y, bezierPoints[7].y, cornerPoints[3].y, (float)j/GRID_RESOLUTION);
-		        float start_y = parent.bezierPoint(cornerPoints[0].y, cornerPoints[0].controlPoint0.y, cornerPoints[3].controlPoint1.y, cornerPoints[3].y, (float)j/GRID_RESOLUTION);
-		        //float end_y = parent.bezierPoint(cornerPoints[1].y, bezierPoints[3].y, bezierPoints[4].y, cornerPoints[2].y, (float)j/GRID_RESOLUTION);
-		        float end_y = parent.bezierPoint(cornerPoints[1].y, cornerPoints[1].controlPoint1.y, cornerPoints[2].controlPoint0.y, cornerPoints[2].y, (float)j/GRID_RESOLUTION);
-
-		        //float x = parent.bezierPoint(start_x, ((bezierPoints[1].x - bezierPoints[6].x) * (1.0f - (float)j/GRID_RESOLUTION)) + bezierPoints[6].x, ((bezierPoints[2].x - bezierPoints[5].x) * (1.0f - (float)j/GRID_RESOLUTION)) + bezierPoints[5].x, end_x, (float)i/GRID_RESOLUTION);
-		        float x = parent.bezierPoint(start_x, ((cornerPoints[0].controlPoint1.x - cornerPoints[3].controlPoint0.x) * (1.0f - (float)j/GRID_RESOLUTION)) + cornerPoints[3].controlPoint0.x, ((cornerPoints[1].controlPoint0.x - cornerPoints[2].controlPoint1.x) * (1.0f - (float)j/GRID_RESOLUTION)) + cornerPoints[2].controlPoint1.x, end_x, (float)i/GRID_RESOLUTION);
-		        //float y = parent.bezierPoint(start_y, ((bezierPoints[1].y - bezierPoints[6].y) * (1.0f - (float)j/GRID_RESOLUTION)) + bezierPoints[6].y, ((bezierPoints[2].y - bezierPoints[5].y) * (1.0f - (float)j/GRID_RESOLUTION)) + bezierPoints[5].y, end_y, (float)i/GRID_RESOLUTION);
-		        float y = parent.bezierPoint(start_y, ((cornerPoints[0].controlPoint1.y - cornerPoints[3].controlPoint0.y) * (1.0f - (float)j/GRID_RESOLUTION)) + cornerPoints[3].controlPoint0.y, ((cornerPoints[1].controlPoint0.y - cornerPoints[2].controlPoint1.y) * (1.0f - (float)j/GRID_RESOLUTION)) + cornerPoints[2].controlPoint1.y, end_y, (float)i/GRID_RESOLUTION);
-
-		        //the formula for Orthographic Projection
-		        //x = cos(latitude) * sin(longitude-referenceLongitude);
-		        //y = cos(referenceLatitude)*sin(latitude)-sin(referenceLatitude)*cos(latitude)*cos(longitude-referenceLongitude);
-		        //http://mathworld.wolfram.com/OrthographicProjection.html
-		        
-		        float pi1 = (float) ((Math.PI)/GRID_RESOLUTION);
-		        
-		        float xfix = (float)(Math.cos((j-(GRID_RESOLUTION/2))*pi1)*Math.sin((i*pi1)-((float)(GRID_RESOLUTION/2)*pi1)))*horizontalForce;
-		        float yfix = (float)(Math.cos((float)(GRID_RESOLUTION/2)*pi1)*Math.sin(j*pi1)-Math.sin((float)(GRID_RESOLUTION/2)*pi1)*Math.cos(j*pi1)*Math.cos((i*pi1)-((float)(GRID_RESOLUTION/2)*pi1)))*verticalForce;
-		        
-		        vertexPoints[i][j] = new PVector(x+xfix, y+yfix, 0);
-			}
-		}	
+		if (evaluatingOnGPU) {
+			// The graphics card does the inside, we just need the edges for the outline
+			this.evaluateMesh(true);
+			meshStale = true;
+		}
+		else {
+			this.evaluateMesh(false);
+			meshStale = false;
+		}
 		
-		poly = new Polygon();
+		// Reuse the polygon rather than making a new one every time
+		poly.reset();
 		for(int w = 0; w < 4; w++){
 			for(int i = 0; i < GRID_RESOLUTION; i++){
 				switch(w){
 				case 0:
-					poly.addPoint((int)vertexPoints[i][0].x, (int)vertexPoints[i][0].y);
+					poly.addPoint((int)meshX(i, 0), (int)meshY(i, 0));
 					break;
 					
 				case 1:
-					poly.addPoint((int)vertexPoints[GRID_RESOLUTION][i].x, (int)vertexPoints[GRID_RESOLUTION][i].y);
+					poly.addPoint((int)meshX(GRID_RESOLUTION, i), (int)meshY(GRID_RESOLUTION, i));
 					break;
 					
 				case 2:
-					poly.addPoint((int)vertexPoints[GRID_RESOLUTION-i][GRID_RESOLUTION].x, (int)vertexPoints[GRID_RESOLUTION-i][GRID_RESOLUTION].y);
+					poly.addPoint((int)meshX(GRID_RESOLUTION-i, GRID_RESOLUTION), (int)meshY(GRID_RESOLUTION-i, GRID_RESOLUTION));
 					break;
 					
 				case 3:
-					poly.addPoint((int)vertexPoints[0][GRID_RESOLUTION-i].x, (int)vertexPoints[0][GRID_RESOLUTION-i].y);
+					poly.addPoint((int)meshX(0, GRID_RESOLUTION-i), (int)meshY(0, GRID_RESOLUTION-i));
 					break;
 				}
 			}
 		}
+		
+		this.geometryChanged();
+	}
+
+	/**
+	 * Fills in the whole mesh, if updateTransform() left it for later
+	 */
+	private void updateMesh() {
+		if (!meshStale) {
+			return;
+		}
+		this.evaluateMesh(false);
+		meshStale = false;
+	}
+	
+	/**
+	 * Sets up the mesh and the lookup tables for the current GRID_RESOLUTION.
+	 *  Everything here only changes with the resolution, so updateTransform()
+	 *  can just fill in numbers without allocating anything.
+	 */
+	private void allocateMesh() {
+		int res = this.GRID_RESOLUTION;
+		this.meshCoordinates = new float[(res+1) * (res+1) * 2];
+		// getVertexPoints() makes new ones at the new size if anyone asks
+		this.vertexPoints = null;
+		this.vertexPointsStale = true;
+		
+		// Cubic Bezier weights, the same ones PApplet.bezierPoint() uses
+		this.bernstein = new float[(res+1) * 4];
+		for (int k = 0; k <= res; k++) {
+			float t = (float)k/res;
+			float mt = 1.0f - t;
+			this.bernstein[k*4] = mt * mt * mt;
+			this.bernstein[k*4+1] = 3 * t * mt * mt;
+			this.bernstein[k*4+2] = 3 * t * t * mt;
+			this.bernstein[k*4+3] = t * t * t;
+		}
+		
+		//the formula for Orthographic Projection
+		//x = cos(latitude) * sin(longitude-referenceLongitude);
+		//y = cos(referenceLatitude)*sin(latitude)-sin(referenceLatitude)*cos(latitude)*cos(longitude-referenceLongitude);
+		//http://mathworld.wolfram.com/OrthographicProjection.html
+		// Both split into a part for the column and a part for the row
+		this.forceXColumn = new float[res+1];
+		this.forceXRow = new float[res+1];
+		this.forceYColumn = new float[res+1];
+		this.forceYRowA = new float[res+1];
+		this.forceYRowB = new float[res+1];
+		float pi1 = (float) ((Math.PI)/res);
+		float reference = (float)(res/2)*pi1;
+		for (int k = 0; k <= res; k++) {
+			this.forceXColumn[k] = (float) Math.sin((k*pi1)-reference);
+			this.forceXRow[k] = (float) Math.cos((k-(res/2))*pi1);
+			this.forceYColumn[k] = (float) Math.cos((k*pi1)-reference);
+			this.forceYRowA[k] = (float) (Math.cos(reference)*Math.sin(k*pi1));
+			this.forceYRowB[k] = (float) (Math.sin(reference)*Math.cos(k*pi1));
+		}
+	}
+	
+	/**
+	 * Works out the points of the mesh, straight into meshCoordinates.
+	 *  The left and right edge curves (and the control points in between)
+	 *  only depend on the row, so they get worked out once per row, leaving
+	 *  one Bezier curve per point.
+	 * @param edgesOnly Only work out the points on the outline
+	 */
+	private void evaluateMesh(boolean edgesOnly) {
+		int res = GRID_RESOLUTION;
+		float[] b = this.bernstein;
+		float[] m = this.meshCoordinates;
+		BezierPoint3D c0 = cornerPoints[0];
+		BezierPoint3D c1 = cornerPoints[1];
+		BezierPoint3D c2 = cornerPoints[2];
+		BezierPoint3D c3 = cornerPoints[3];
+		
+		for (int j = 0; j <= res; j++) {
+			float b0 = b[j*4], b1 = b[j*4+1], b2 = b[j*4+2], b3 = b[j*4+3];
+			
+			float startX = b0*c0.x + b1*c0.controlPoint0.x + b2*c3.controlPoint1.x + b3*c3.x;
+			float startY = b0*c0.y + b1*c0.controlPoint0.y + b2*c3.controlPoint1.y + b3*c3.y;
+			float endX = b0*c1.x + b1*c1.controlPoint1.x + b2*c2.controlPoint0.x + b3*c2.x;
+			float endY = b0*c1.y + b1*c1.controlPoint1.y + b2*c2.controlPoint0.y + b3*c2.y;
+			
+			float v = 1.0f - (float)j/res;
+			float control0X = ((c0.controlPoint1.x - c3.controlPoint0.x) * v) + c3.controlPoint0.x;
+			float control0Y = ((c0.controlPoint1.y - c3.controlPoint0.y) * v) + c3.controlPoint0.y;
+			float control1X = ((c1.controlPoint0.x - c2.controlPoint1.x) * v) + c2.controlPoint1.x;
+			float control1Y = ((c1.controlPoint0.y - c2.controlPoint1.y) * v) + c2.controlPoint1.y;
+			
+			float forceX = forceXRow[j] * horizontalForce;
+			float forceYA = forceYRowA[j] * verticalForce;
+			float forceYB = forceYRowB[j] * verticalForce;
+			
+			// The first and last rows are all outline, the rest only at the ends
+			int step = (edgesOnly && j != 0 && j != res) ? res : 1;
+			for (int i = 0; i <= res; i += step) {
+				float a0 = b[i*4], a1 = b[i*4+1], a2 = b[i*4+2], a3 = b[i*4+3];
+				int k = (i * (res+1) + j) * 2;
+				m[k] = a0*startX + a1*control0X + a2*control1X + a3*endX + forceXColumn[i]*forceX;
+				m[k+1] = a0*startY + a1*control0Y + a2*control1Y + a3*endY + (forceYA - forceYB*forceYColumn[i]);
+			}
+		}
+		vertexPointsStale = true;
 	}
 
 	/**
@@ -432,6 +670,18 @@ public class BezierSurface extends SuperSurface{
 	 * @param g PGraphics to draw on
 	 */
 	public void render(PGraphics g) {
+		if (this.MODE == this.MODE_CALIBRATE && !this.isHidden()) {
+			g.beginDraw();
+			this.renderGrid(g);
+			g.endDraw();
+		}
+	}
+	
+	/**
+	 * Draws the calibration grid into a PGraphics that's already drawing
+	 * @param g PGraphics to draw on
+	 */
+	protected void drawGrid(PGraphics g) {
 		if (this.MODE == this.MODE_CALIBRATE && !this.isHidden()) {
 			this.renderGrid(g);
 		}
@@ -455,6 +705,7 @@ public class BezierSurface extends SuperSurface{
 	 * @param tex Texture to apply to the surface
 	 */
 	private void renderSurface(PGraphics g, PImage tex) {
+		this.updateMesh();
 		g.beginDraw();
 		//g.hint(PApplet.DISABLE_DEPTH_TEST); //this is probably needed, but could cause problems with surfaces adjacent to each other
 		g.noStroke();
@@ -464,27 +715,27 @@ public class BezierSurface extends SuperSurface{
 				
 				g.beginShape();
 				g.texture(tex);
-				g.vertex(vertexPoints[i][j].x, 
-						vertexPoints[i][j].y, 
-						vertexPoints[i][j].z+currentZ,
+				g.vertex(meshX(i, j), 
+						meshY(i, j), 
+						currentZ,
 						((float) i / GRID_RESOLUTION) * tex.width,
 						((float) j / GRID_RESOLUTION) * tex.height);
 				
-				g.vertex(vertexPoints[i + 1][j].x, 
-						vertexPoints[i + 1][j].y,
-						vertexPoints[i + 1][j].z+currentZ, 
+				g.vertex(meshX(i + 1, j), 
+						meshY(i + 1, j),
+						currentZ, 
 						(((float) i + 1) / GRID_RESOLUTION) * tex.width, 
 						((float) j / GRID_RESOLUTION) * tex.height);
 				
-				g.vertex(vertexPoints[i + 1][j + 1].x, 
-						vertexPoints[i + 1][j + 1].y,
-						vertexPoints[i + 1][j + 1].z+currentZ, 
+				g.vertex(meshX(i + 1, j + 1), 
+						meshY(i + 1, j + 1),
+						currentZ, 
 						(((float) i + 1) / GRID_RESOLUTION) * tex.width, 
 						(((float) j + 1) / GRID_RESOLUTION) * tex.height);
 				
-				g.vertex(vertexPoints[i][j + 1].x, 
-						vertexPoints[i][j + 1].y,
-						vertexPoints[i][j + 1].z+currentZ, 
+				g.vertex(meshX(i, j + 1), 
+						meshY(i, j + 1),
+						currentZ, 
 						((float) i / GRID_RESOLUTION) * tex.width,
 						(((float) j + 1) / GRID_RESOLUTION) * tex.height);
 				g.endShape();
@@ -500,8 +751,7 @@ public class BezierSurface extends SuperSurface{
 	 * @param g PGraphics to render to
 	 */
 	private void renderGrid(PGraphics g) {
-		g.beginDraw();
-		
+		this.updateMesh();
 		if (ccolor == 0) {
 			g.fill(50, 80, 150);
 		} else {
@@ -512,10 +762,10 @@ public class BezierSurface extends SuperSurface{
 			for (int j = 0; j < GRID_RESOLUTION; j++) {
 				
 				g.beginShape();
-				g.vertex(vertexPoints[i][j].x, vertexPoints[i][j].y);
-				g.vertex(vertexPoints[i + 1][j].x, vertexPoints[i + 1][j].y);
-				g.vertex(vertexPoints[i + 1][j + 1].x, vertexPoints[i + 1][j + 1].y);
-				g.vertex(vertexPoints[i][j + 1].x, vertexPoints[i][j + 1].y);	
+				g.vertex(meshX(i, j), meshY(i, j));
+				g.vertex(meshX(i + 1, j), meshY(i + 1, j));
+				g.vertex(meshX(i + 1, j + 1), meshY(i + 1, j + 1));
+				g.vertex(meshX(i, j + 1), meshY(i, j + 1));	
 				g.endShape();
 				
 			}
@@ -546,7 +796,7 @@ public class BezierSurface extends SuperSurface{
 		if (!isLocked) {
 			for(int i = 0; i <= GRID_RESOLUTION; i++){
 				for(int j = 0; j <= GRID_RESOLUTION; j++){
-					g.point(vertexPoints[i][j].x, vertexPoints[i][j].y, vertexPoints[i][j].z);
+					g.point(meshX(i, j), meshY(i, j), 0);
 				}
 			}
 		}
@@ -587,13 +837,19 @@ public class BezierSurface extends SuperSurface{
 			}
 			
 		}
-
-		g.endDraw();
 	}
 	
 	public void renderControlPoints(PGraphics g){
 		g.beginDraw();
-		
+		this.drawControlPoints(g);
+		g.endDraw();
+	}
+	
+	/**
+	 * Draws the control points into a PGraphics that's already drawing
+	 * @param g PGraphics to draw on
+	 */
+	protected void drawControlPoints(PGraphics g){
 		if (!isLocked) {
 			// Draw the control points.
 			for (int i = 0; i < this.cornerPoints.length; i++) {
@@ -609,8 +865,6 @@ public class BezierSurface extends SuperSurface{
 			}
 			
 		}
-		
-		g.endDraw();
 	}
 
 	/**
@@ -0,0 +1,162 @@
+/**
+ * Part of the VMap library: https://github.com/AlanChatham/VMap
+ *
+ * Portions to update to Processing 2 copyright (c) 2014 - Laboratory LLC
+ * Copyright (c) 2011-12 Ixagon AB
+ *
+ * This source is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is available on the World
+ * Wide Web at <http://www.gnu.org/copyleft/gpl.html>. You can also
+ * obtain it by writing to the Free Software Foundation,
+ * Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package VMap;
+
+import java.util.ArrayList;
+
+import processing.core.PImage;
+import processing.opengl.PShader;
+
+/**
+ * Remembers what the last rendered frame was drawn from, so VMap can
+ * tell when a new frame would come out exactly the same and skip it.
+ *
+ * This only covers what surfaces are drawn with (geometry, shake settings,
+ * texture, shader, filter, output and selection), the output layout, and a few
+ * VMap-wide settings.
+ * Whether a texture's pixels changed is up to VMap to check.
+ *
+ * @author Laboratory
+ */
+final class ChangeTracker {
+
+	private int count = -1;
+	private SuperSurface[] surfaces = new SuperSurface[0];
+	private int[] geometryVersions = new int[0];
+	private int[] animationVersions = new int[0];
+	private PImage[] textures = new PImage[0];
+	private PShader[] shaders = new PShader[0];
+	private int[] filters = new int[0];
+	private boolean[] selected = new boolean[0];
+	private int[] outputs = new int[0];
+
+	private int outputCount = -1;
+	private OutputRegion[] regions = new OutputRegion[0];
+	private int[] regionVersions = new int[0];
+
+	private int mode;
+	private PShader mainShader;
+	private int textureFilter;
+	private int inputVersion;
+	private int drawVersion;
+	private Object target;
+
+	// Set by invalidate(), so the next frame always counts as changed
+	private boolean invalid = true;
+
+	/**
+	 * Makes the next call to update() report a change, whatever happened
+	 */
+	void invalidate(){
+		invalid = true;
+	}
+
+	/**
+	 * Compares everything to what we saw last time, and remembers it for next time
+	 * @param list Surfaces being drawn, in drawing order
+	 * @param outputList VMap's outputs
+	 * @param mode VMap's mode
+	 * @param mainShader Shader used by surfaces without their own
+	 * @param textureFilter Filter used by surfaces without their own
+	 * @param inputVersion Goes up whenever calibration input came in
+	 * @param drawVersion Goes up whenever the default draw buffer got drawn to
+	 * @param target Where the frame is being drawn
+	 * @return Returns true if anything changed
+	 */
+	boolean update(ArrayList<SuperSurface> list, ArrayList<OutputRegion> outputList, int mode,
+			       PShader mainShader, int textureFilter, int inputVersion, int drawVersion, Object target){
+		boolean changed = invalid;
+		invalid = false;
+
+		if (mode != this.mode || mainShader != this.mainShader || textureFilter != this.textureFilter
+				|| inputVersion != this.inputVersion || drawVersion != this.drawVersion || target != this.target){
+			changed = true;
+			this.mode = mode;
+			this.mainShader = mainShader;
+			this.textureFilter = textureFilter;
+			this.inputVersion = inputVersion;
+			this.drawVersion = drawVersion;
+			this.target = target;
+		}
+
+		int n = list.size();
+		if (n != count){
+			changed = true;
+			count = n;
+			if (surfaces.length < n){
+				int size = Math.max(n, surfaces.length * 2);
+				surfaces = new SuperSurface[size];
+				geometryVersions = new int[size];
+				animationVersions = new int[size];
+				textures = new PImage[size];
+				shaders = new PShader[size];
+				filters = new int[size];
+				selected = new boolean[size];
+				outputs = new int[size];
+			}
+		}
+
+		for (int i = 0; i < n; i++){
+			SuperSurface ss = list.get(i);
+			if (surfaces[i] != ss || geometryVersions[i] != ss.getGeometryVersion()
+					|| animationVersions[i] != ss.getAnimationVersion() || textures[i] != ss.texture
+					|| shaders[i] != ss.shader || filters[i] != ss.textureFilter || selected[i] != ss.isSelected
+					|| outputs[i] != ss.output){
+				changed = true;
+				surfaces[i] = ss;
+				geometryVersions[i] = ss.getGeometryVersion();
+				animationVersions[i] = ss.getAnimationVersion();
+				textures[i] = ss.texture;
+				shaders[i] = ss.shader;
+				filters[i] = ss.textureFilter;
+				selected[i] = ss.isSelected;
+				outputs[i] = ss.output;
+			}
+		}
+		// Don't hang on to surfaces that got removed
+		for (int i = n; i < surfaces.length && surfaces[i] != null; i++){
+			surfaces[i] = null;
+			textures[i] = null;
+			shaders[i] = null;
+		}
+
+		int m = outputList.size();
+		if (m != outputCount){
+			changed = true;
+			outputCount = m;
+			if (regions.length < m){
+				regions = new OutputRegion[m];
+				regionVersions = new int[m];
+			}
+		}
+		for (int i = 0; i < m; i++){
+			OutputRegion region = outputList.get(i);
+			if (regions[i] != region || regionVersions[i] != region.getVersion()){
+				changed = true;
+				regions[i] = region;
+				regionVersions[i] = region.getVersion();
+			}
+		}
+		return changed;
+	}
+}
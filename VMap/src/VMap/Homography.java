@@ -0,0 +1,147 @@
+/**
+ * Part of the VMap library: https://github.com/AlanChatham/VMap
+ *
+ * Portions to update to Processing 2 copyright (c) 2014 - Laboratory LLC
+ * Copyright (c) 2011-12 Ixagon AB
+ *
+ * This source is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is available on the World
+ * Wide Web at <http://www.gnu.org/copyleft/gpl.html>. You can also
+ * obtain it by writing to the Free Software Foundation,
+ * Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package VMap;
+
+import processing.core.PVector;
+
+/**
+ * Helpers for 3x3 homographies (projective transforms), stored as
+ * row-major float[9] arrays:
+ *
+ *   | m[0] m[1] m[2] |
+ *   | m[3] m[4] m[5] |
+ *   | m[6] m[7] m[8] |
+ *
+ * A point (x, y) maps to ((m0 x + m1 y + m2) / w, (m3 x + m4 y + m5) / w),
+ * where w = m6 x + m7 y + m8.
+ *
+ * For the math, see Heckbert's "Fundamentals of Texture Mapping and Image Warping".
+ *
+ * @author Laboratory
+ */
+final class Homography {
+
+	private Homography(){
+	}
+
+	/**
+	 * Sets m to the identity
+	 * @param m Matrix to fill in
+	 * @return Returns m
+	 */
+	static float[] identity(float[] m){
+		m[0] = 1; m[1] = 0; m[2] = 0;
+		m[3] = 0; m[4] = 1; m[5] = 0;
+		m[6] = 0; m[7] = 0; m[8] = 1;
+		return m;
+	}
+
+	/**
+	 * Figures out the homography that maps the unit square onto a quad,
+	 *  so (0,0) goes to (x0,y0), (1,0) to (x1,y1), (1,1) to (x2,y2) and (0,1) to (x3,y3).
+	 *  If the quad is degenerate, you get the identity.
+	 * @param x0 First corner X
+	 * @param y0 First corner Y
+	 * @param x1 Second corner X
+	 * @param y1 Second corner Y
+	 * @param x2 Third corner X
+	 * @param y2 Third corner Y
+	 * @param x3 Fourth corner X
+	 * @param y3 Fourth corner Y
+	 * @param m Matrix to fill in
+	 * @return Returns m
+	 */
+	static float[] squareToQuad(float x0, float y0, float x1, float y1,
+			                    float x2, float y2, float x3, float y3, float[] m){
+		float dx1 = x1 - x2, dy1 = y1 - y2;
+		float dx2 = x3 - x2, dy2 = y3 - y2;
+		float dx3 = x0 - x1 + x2 - x3, dy3 = y0 - y1 + y2 - y3;
+
+		float g = 0, h = 0;
+		if (dx3 != 0 || dy3 != 0){
+			float den = dx1 * dy2 - dx2 * dy1;
+			if (den == 0){
+				return identity(m);
+			}
+			g = (dx3 * dy2 - dx2 * dy3) / den;
+			h = (dx1 * dy3 - dx3 * dy1) / den;
+		}
+		m[0] = x1 - x0 + g * x1; m[1] = x3 - x0 + h * x3; m[2] = x0;
+		m[3] = y1 - y0 + g * y1; m[4] = y3 - y0 + h * y3; m[5] = y0;
+		m[6] = g;                m[7] = h;                m[8] = 1;
+		return m;
+	}
+
+	/**
+	 * Inverts a matrix
+	 * @param m Matrix to invert
+	 * @param out Matrix to put the inverse in, can't be m
+	 * @return Returns false (and leaves out alone) if m can't be inverted
+	 */
+	static boolean invert(float[] m, float[] out){
+		float a = m[4] * m[8] - m[5] * m[7];
+		float b = m[5] * m[6] - m[3] * m[8];
+		float c = m[3] * m[7] - m[4] * m[6];
+		float det = m[0] * a + m[1] * b + m[2] * c;
+		if (det == 0){
+			return false;
+		}
+		float s = 1 / det;
+		out[0] = a * s; out[1] = (m[2] * m[7] - m[1] * m[8]) * s; out[2] = (m[1] * m[5] - m[2] * m[4]) * s;
+		out[3] = b * s; out[4] = (m[0] * m[8] - m[2] * m[6]) * s; out[5] = (m[2] * m[3] - m[0] * m[5]) * s;
+		out[6] = c * s; out[7] = (m[1] * m[6] - m[0] * m[7]) * s; out[8] = (m[0] * m[4] - m[1] * m[3]) * s;
+		return true;
+	}
+
+	/**
+	 * Maps a point through a matrix
+	 * @param m Matrix to use
+	 * @param x X of the point
+	 * @param y Y of the point
+	 * @param out PVector to put the result in
+	 * @return Returns out
+	 */
+	static PVector apply(float[] m, float x, float y, PVector out){
+		float w = m[6] * x + m[7] * y + m[8];
+		out.x = (m[0] * x + m[1] * y + m[2]) / w;
+		out.y = (m[3] * x + m[4] * y + m[5]) / w;
+		return out;
+	}
+
+	/**
+	 * Multiplies two matrices, out = a * b, so b gets applied first.
+	 *  out can't be a or b.
+	 * @param a Left matrix
+	 * @param b Right matrix
+	 * @param out Matrix to put the result in
+	 * @return Returns out
+	 */
+	static float[] multiply(float[] a, float[] b, float[] out){
+		for (int r = 0; r < 3; r++){
+			for (int c = 0; c < 3; c++){
+				out[r * 3 + c] = a[r * 3] * b[c] + a[r * 3 + 1] * b[3 + c] + a[r * 3 + 2] * b[6 + c];
+			}
+		}
+		return out;
+	}
+}
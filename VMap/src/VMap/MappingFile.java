@@ -0,0 +1,589 @@
+/**
+ * Part of the VMap library: https://github.com/AlanChatham/VMap
+ *
+ * Portions to update to Processing 2 copyright (c) 2014 - Laboratory LLC
+ * Copyright (c) 2011-12 Ixagon AB
+ *
+ * This source is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is available on the World
+ * Wide Web at <http://www.gnu.org/copyleft/gpl.html>. You can also
+ * obtain it by writing to the Free Software Foundation,
+ * Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package VMap;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import processing.core.PApplet;
+import processing.core.PVector;
+import processing.data.XML;
+
+/**
+ * A projection mapping in a compact binary file, for layouts with so
+ * many surfaces that loading XML gets slow. Everything is in flat
+ * arrays, so loading is a memory-mapped read and a few bulk copies.
+ *
+ * Converting to and from the XML VMap.saveXML() writes (see fromXML()
+ * and toXML()) doesn't lose anything, so you can keep editing the XML
+ * and ship the binary file, or the other way around.
+ *
+ * The file, all little endian:
+ *  A header of 6 ints: the magic number ("VMAP"), the format version,
+ *   the number of surfaces, the number of point floats, and the sizes
+ *   in bytes of the string table and the extras.
+ *  One int array per surface field, each with one entry per surface, in
+ *   FIELDS order: type, id, res, flags, output, columns, rows, the two
+ *   Bezier forces, and where each surface's filename and name are in
+ *   the string table (start and length in bytes, -1 length for none).
+ *  The points of every surface, one after the other, x then y: the 4
+ *   corners, then the 8 control points of Bezier surfaces, or the
+ *   columns * rows lattice of mesh surfaces. Points missing from the
+ *   XML are NaN, and don't get written back out.
+ *  The string table, UTF-8.
+ *  The extras: the outputs and the timeline, as UTF-8 XML. They're
+ *   tiny next to the surfaces, and this way they can never get out
+ *   of sync with their own XML.
+ *
+ * @author Laboratory
+ */
+public final class MappingFile {
+
+	// "VMAP"
+	static final int MAGIC = 0x564D4150;
+	// Bump this whenever the layout changes, and keep reading the old ones
+	public static final int VERSION = 1;
+
+	private static final int HEADER_INTS = 6;
+	private static final int FIELDS = 13;
+
+	private static final int FLAG_LOCKED = 1;
+
+	private int surfaceCount;
+	private int[] type;
+	private int[] id;
+	private int[] res;
+	private int[] flags;
+	private int[] output;
+	private int[] columns;
+	private int[] rows;
+	private int[] horizontalForce;
+	private int[] verticalForce;
+	private int[] filenameStart;
+	private int[] filenameLength;
+	private int[] nameStart;
+	private int[] nameLength;
+	// Where each surface's points start in points, in floats. The one
+	//  after the last surface is how much of points is in use.
+	private int[] firstPoint;
+	private float[] points;
+	private StringTable strings;
+	private byte[] extras;
+
+	/**
+	 * Starts an empty mapping, to add surfaces to with addSurface()
+	 */
+	MappingFile(){
+		this(16);
+		points = new float[16 * 24];
+		strings = new StringTable(new byte[256], 0);
+		extras = new byte[0];
+	}
+
+	private MappingFile(int capacity){
+		type = new int[capacity];
+		id = new int[capacity];
+		res = new int[capacity];
+		flags = new int[capacity];
+		output = new int[capacity];
+		columns = new int[capacity];
+		rows = new int[capacity];
+		horizontalForce = new int[capacity];
+		verticalForce = new int[capacity];
+		filenameStart = new int[capacity];
+		filenameLength = new int[capacity];
+		nameStart = new int[capacity];
+		nameLength = new int[capacity];
+		firstPoint = new int[capacity + 1];
+	}
+
+	/**
+	 * @return Returns the number of surfaces
+	 */
+	public int getSurfaceCount(){
+		return surfaceCount;
+	}
+
+	/**
+	 * Works out how many points a surface has
+	 */
+	private static int pointCount(int type, int columns, int rows){
+		if (type == SuperSurface.BEZIER){
+			return 12;
+		}
+		if (type == SuperSurface.MESH){
+			return 4 + columns * rows;
+		}
+		return 4;
+	}
+
+	/**
+	 * Adds a surface, with all its points missing until setPoint() fills them in
+	 * @param type SuperSurface.QUAD, BEZIER or MESH
+	 * @param id ID of the surface
+	 * @param res Resolution, like getRes()
+	 * @param locked Whether the surface is locked
+	 * @param output Output it shows up in, or SuperSurface.ALL_OUTPUTS
+	 * @param columns Points across, for mesh surfaces
+	 * @param rows Points down, for mesh surfaces
+	 * @param horizontalForce Horizontal force, for Bezier surfaces
+	 * @param verticalForce Vertical force, for Bezier surfaces
+	 * @param filename Image filename, or null
+	 * @param name Name, or null
+	 * @return Returns the index of the new surface
+	 */
+	int addSurface(int type, int id, int res, boolean locked, int output, int columns, int rows,
+			       int horizontalForce, int verticalForce, String filename, String name){
+		int i = surfaceCount;
+		if (i == this.type.length){
+			grow(i * 2);
+		}
+		this.type[i] = type;
+		this.id[i] = id;
+		this.res[i] = res;
+		this.flags[i] = locked ? FLAG_LOCKED : 0;
+		this.output[i] = output;
+		// Same defaults MeshSurface uses for old files
+		this.columns[i] = (type == SuperSurface.MESH) ? Math.max(2, columns) : 0;
+		this.rows[i] = (type == SuperSurface.MESH) ? Math.max(2, rows) : 0;
+		this.horizontalForce[i] = horizontalForce;
+		this.verticalForce[i] = verticalForce;
+		filenameStart[i] = strings.size();
+		filenameLength[i] = strings.add(filename);
+		nameStart[i] = strings.size();
+		nameLength[i] = strings.add(name);
+
+		int first = firstPoint[i];
+		int end = first + pointCount(type, this.columns[i], this.rows[i]) * 2;
+		if (end > points.length){
+			points = Arrays.copyOf(points, Math.max(end, points.length * 2));
+		}
+		Arrays.fill(points, first, end, Float.NaN);
+		firstPoint[i + 1] = end;
+		surfaceCount++;
+		return i;
+	}
+
+	/**
+	 * Sets a point of a surface, from a cornerpoint, bezierpoint or meshpoint
+	 *  element. Points the surface doesn't have get ignored.
+	 * @param surface Index of the surface
+	 * @param element Name of the element the point came from
+	 * @param index Its i attribute
+	 * @param x X position
+	 * @param y Y position
+	 */
+	void setPoint(int surface, String element, int index, float x, float y){
+		int count;
+		int first = 4;
+		if ("cornerpoint".equals(element)){
+			count = 4;
+			first = 0;
+		}
+		else if ("bezierpoint".equals(element) && type[surface] == SuperSurface.BEZIER){
+			count = 8;
+		}
+		else if ("meshpoint".equals(element) && type[surface] == SuperSurface.MESH){
+			count = columns[surface] * rows[surface];
+		}
+		else {
+			return;
+		}
+		if (index >= 0 && index < count){
+			int at = firstPoint[surface] + (first + index) * 2;
+			points[at] = x;
+			points[at + 1] = y;
+		}
+	}
+
+	private void grow(int capacity){
+		type = Arrays.copyOf(type, capacity);
+		id = Arrays.copyOf(id, capacity);
+		res = Arrays.copyOf(res, capacity);
+		flags = Arrays.copyOf(flags, capacity);
+		output = Arrays.copyOf(output, capacity);
+		columns = Arrays.copyOf(columns, capacity);
+		rows = Arrays.copyOf(rows, capacity);
+		horizontalForce = Arrays.copyOf(horizontalForce, capacity);
+		verticalForce = Arrays.copyOf(verticalForce, capacity);
+		filenameStart = Arrays.copyOf(filenameStart, capacity);
+		filenameLength = Arrays.copyOf(filenameLength, capacity);
+		nameStart = Arrays.copyOf(nameStart, capacity);
+		nameLength = Arrays.copyOf(nameLength, capacity);
+		firstPoint = Arrays.copyOf(firstPoint, capacity + 1);
+	}
+
+	/**
+	 * Fills in firstPoint from the types and lattice sizes
+	 * @return Returns the total number of point floats
+	 */
+	private int layoutPoints(){
+		int floats = 0;
+		for (int i = 0; i < surfaceCount; i++){
+			firstPoint[i] = floats;
+			floats += pointCount(type[i], columns[i], rows[i]) * 2;
+		}
+		firstPoint[surfaceCount] = floats;
+		return floats;
+	}
+
+	/**
+	 * Reads in the XML that VMap.saveXML() writes
+	 * @param root Root element, holding surface, output and timeline elements
+	 * @return Returns the same mapping, ready to write()
+	 */
+	public static MappingFile fromXML(XML root){
+		MappingFile map = new MappingFile();
+		for (XML surface : root.getChildren("surface")){
+			int res = surface.getInt("res");
+			int i = map.addSurface(surface.getInt("type"), surface.getInt("id"), res, surface.getInt("lock") == 1,
+					               surface.getInt("output", SuperSurface.ALL_OUTPUTS),
+					               surface.getInt("columns", res + 1), surface.getInt("rows", res + 1),
+					               surface.getInt("horizontalForce", 0), surface.getInt("verticalForce", 0),
+					               surface.getString("filename"), surface.getString("name"));
+			map.readPoints(i, surface.getChildren("cornerpoint"));
+			map.readPoints(i, surface.getChildren("bezierpoint"));
+			map.readPoints(i, surface.getChildren("meshpoint"));
+		}
+
+		// Everything that isn't a surface rides along as XML
+		XML extraRoot = new XML("root");
+		boolean anyExtras = false;
+		for (XML child : root.getChildren()){
+			if (child.getName() != null && !child.getName().startsWith("#") && !"surface".equals(child.getName())){
+				extraRoot.addChild(child);
+				anyExtras = true;
+			}
+		}
+		map.extras = anyExtras ? extraRoot.format(-1).getBytes(StandardCharsets.UTF_8) : new byte[0];
+		return map;
+	}
+
+	/**
+	 * Copies point elements of one kind into a surface's points
+	 */
+	private void readPoints(int surface, XML[] elements){
+		for (int k = 0; k < elements.length; k++){
+			setPoint(surface, elements[k].getName(), elements[k].getInt("i", k), elements[k].getFloat("x"), elements[k].getFloat("y"));
+		}
+	}
+
+	/**
+	 * Turns this back into the XML VMap.saveXML() writes
+	 * @return Returns a root element holding all the surfaces, outputs and timeline
+	 */
+	public XML toXML(){
+		XML root = new XML("root");
+		XML extraRoot = parseExtras();
+		if (extraRoot != null){
+			for (XML output : extraRoot.getChildren("output")){
+				root.addChild(output);
+			}
+		}
+		for (int i = 0; i < surfaceCount; i++){
+			XML surf = root.addChild("surface");
+			surf.setString("filename", getString(filenameStart[i], filenameLength[i]));
+			surf.setInt("type", type[i]);
+			surf.setInt("id", id[i]);
+			surf.setString("name", getString(nameStart[i], nameLength[i]));
+			surf.setInt("res", res[i]);
+			surf.setInt("lock", ((flags[i] & FLAG_LOCKED) != 0) ? 1 : 0);
+			if (output[i] != SuperSurface.ALL_OUTPUTS)
+				surf.setInt("output", output[i]);
+
+			int base = firstPoint[i];
+			writePoints(surf, "cornerpoint", base, 4);
+			if (type[i] == SuperSurface.BEZIER){
+				surf.setInt("horizontalForce", horizontalForce[i]);
+				surf.setInt("verticalForce", verticalForce[i]);
+				writePoints(surf, "bezierpoint", base + 8, 8);
+			}
+			else if (type[i] == SuperSurface.MESH){
+				surf.setInt("columns", columns[i]);
+				surf.setInt("rows", rows[i]);
+				writePoints(surf, "meshpoint", base + 8, columns[i] * rows[i]);
+			}
+		}
+		if (extraRoot != null){
+			for (XML child : extraRoot.getChildren()){
+				if (child.getName() != null && !child.getName().startsWith("#") && !"output".equals(child.getName())){
+					root.addChild(child);
+				}
+			}
+		}
+		return root;
+	}
+
+	/**
+	 * Adds point elements for the points that aren't missing
+	 */
+	private void writePoints(XML surf, String name, int base, int count){
+		for (int k = 0; k < count; k++){
+			float x = points[base + k * 2];
+			float y = points[base + k * 2 + 1];
+			if (Float.isNaN(x) && Float.isNaN(y)){
+				continue;
+			}
+			XML point = surf.addChild(name);
+			point.setInt("i", k);
+			point.setFloat("x", x);
+			point.setFloat("y", y);
+		}
+	}
+
+	/**
+	 * Parses the outputs and timeline that ride along with the surfaces
+	 * @return Returns a root element holding them, or null if there aren't any
+	 */
+	XML parseExtras(){
+		if (extras.length == 0){
+			return null;
+		}
+		try {
+			return XML.parse(new String(extras, StandardCharsets.UTF_8));
+		} catch (Exception e) {
+			PApplet.println("Warning! Couldn't read the outputs and timeline of a mapping file: " + e);
+			return null;
+		}
+	}
+
+	private String getString(int start, int length){
+		return (length < 0) ? null : new String(strings.bytes, start, length, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Builds one of the surfaces. Each one only gets worked out once,
+	 *  after all its points are in.
+	 * @param i Index of the surface
+	 * @param parent PApplet the surface belongs to
+	 * @param vm VMap the surface belongs to
+	 * @return Returns the surface, or null if it's a type we don't know
+	 */
+	SuperSurface createSurface(int i, PApplet parent, VMap vm){
+		String filename = getString(filenameStart[i], filenameLength[i]);
+		String name = getString(nameStart[i], nameLength[i]);
+		float[] p = points;
+		int base = firstPoint[i];
+
+		SuperSurface s;
+		if (type[i] == SuperSurface.QUAD){
+			s = new QuadSurface(parent, vm, res[i], id[i], name, filename);
+			s.setCornerPoints(p[base], p[base + 1], p[base + 2], p[base + 3],
+					          p[base + 4], p[base + 5], p[base + 6], p[base + 7]);
+		}
+		else if (type[i] == SuperSurface.BEZIER){
+			BezierSurface bs = new BezierSurface(parent, vm, res[i], id[i], name, filename);
+			for (int k = 0; k < 4; k++){
+				setPoint(bs.getCornerPoint(k), base + k * 2);
+			}
+			for (int k = 0; k < 8; k++){
+				setPoint(bs.getBezierPoint(k), base + 8 + k * 2);
+			}
+			bs.setForce(horizontalForce[i], verticalForce[i]);
+			s = bs;
+		}
+		else if (type[i] == SuperSurface.MESH){
+			MeshSurface ms = new MeshSurface(parent, vm, columns[i], rows[i], id[i], name, filename);
+			// Like MeshSurface's XML constructor, spread the lattice between
+			//  the corners first, in case some of its points are missing
+			boolean corners = true;
+			for (int k = 0; k < 8; k++){
+				corners &= !Float.isNaN(p[base + k]);
+			}
+			if (corners){
+				ms.spanCorners(p[base], p[base + 1], p[base + 2], p[base + 3],
+						       p[base + 4], p[base + 5], p[base + 6], p[base + 7]);
+			}
+			PVector[] lattice = ms.getMeshPoints();
+			for (int k = 0; k < lattice.length; k++){
+				setPoint(lattice[k], base + 8 + k * 2);
+			}
+			s = ms;
+		}
+		else {
+			return null;
+		}
+		if ((flags[i] & FLAG_LOCKED) != 0){
+			s.setLocked(true);
+		}
+		s.setOutput(output[i]);
+		// Nothing's been worked out yet, so this does it all once
+		s.updateTransform();
+		s.commitEdit();
+		return s;
+	}
+
+	/**
+	 * Copies a point out of the points array, unless it's missing
+	 */
+	private void setPoint(PVector point, int index){
+		if (!Float.isNaN(points[index])){
+			point.x = points[index];
+			point.y = points[index + 1];
+		}
+	}
+
+	/**
+	 * Writes the mapping to a file
+	 * @param file File to write
+	 * @throws IOException If the file can't be written
+	 */
+	public void write(File file) throws IOException {
+		int floats = firstPoint[surfaceCount];
+		int bytes = (HEADER_INTS + FIELDS * surfaceCount + floats) * 4 + strings.size() + extras.length;
+		ByteBuffer buf = ByteBuffer.allocate(bytes).order(ByteOrder.LITTLE_ENDIAN);
+		buf.putInt(MAGIC);
+		buf.putInt(VERSION);
+		buf.putInt(surfaceCount);
+		buf.putInt(floats);
+		buf.putInt(strings.size());
+		buf.putInt(extras.length);
+		int[][] fields = fields();
+		for (int f = 0; f < FIELDS; f++){
+			buf.asIntBuffer().put(fields[f], 0, surfaceCount);
+			buf.position(buf.position() + surfaceCount * 4);
+		}
+		buf.asFloatBuffer().put(points, 0, floats);
+		buf.position(buf.position() + floats * 4);
+		buf.put(strings.bytes, 0, strings.size());
+		buf.put(extras);
+		buf.flip();
+
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+			while (buf.hasRemaining()){
+				channel.write(buf);
+			}
+		}
+	}
+
+	/**
+	 * Reads a mapping file, by memory-mapping it and copying
+	 *  each array out in one go
+	 * @param file File to read
+	 * @return Returns the mapping
+	 * @throws IOException If the file can't be read, isn't a mapping file, or is from a newer VMap
+	 */
+	public static MappingFile read(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)){
+			long size = channel.size();
+			if (size < HEADER_INTS * 4){
+				throw new IOException(file + " is too short to be a mapping file");
+			}
+			MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			ByteBuffer buf = mapped.order(ByteOrder.LITTLE_ENDIAN);
+			if (buf.getInt() != MAGIC){
+				throw new IOException(file + " isn't a mapping file");
+			}
+			int version = buf.getInt();
+			if (version > VERSION){
+				throw new IOException(file + " is mapping format " + version + ", but this VMap only reads up to " + VERSION);
+			}
+			int surfaceCount = buf.getInt();
+			int floatCount = buf.getInt();
+			int stringBytes = buf.getInt();
+			int extraBytes = buf.getInt();
+			long expected = (HEADER_INTS + (long) FIELDS * surfaceCount + floatCount) * 4 + stringBytes + extraBytes;
+			if (surfaceCount < 0 || floatCount < 0 || stringBytes < 0 || extraBytes < 0 || expected != size){
+				throw new IOException(file + " is damaged, it should be " + expected + " bytes but it's " + size);
+			}
+
+			MappingFile map = new MappingFile(surfaceCount);
+			map.surfaceCount = surfaceCount;
+			int[][] fields = map.fields();
+			for (int f = 0; f < FIELDS; f++){
+				buf.asIntBuffer().get(fields[f], 0, surfaceCount);
+				buf.position(buf.position() + surfaceCount * 4);
+			}
+			if (map.layoutPoints() != floatCount){
+				throw new IOException(file + " is damaged, its points don't match its surfaces");
+			}
+			map.points = new float[floatCount];
+			buf.asFloatBuffer().get(map.points);
+			buf.position(buf.position() + floatCount * 4);
+			byte[] strings = new byte[stringBytes];
+			buf.get(strings);
+			map.strings = new StringTable(strings, stringBytes);
+			map.extras = new byte[extraBytes];
+			buf.get(map.extras);
+			for (int i = 0; i < surfaceCount; i++){
+				if (!map.inStrings(map.filenameStart[i], map.filenameLength[i]) || !map.inStrings(map.nameStart[i], map.nameLength[i])){
+					throw new IOException(file + " is damaged, surface " + i + " has a bad string");
+				}
+			}
+			return map;
+		}
+	}
+
+	private boolean inStrings(int start, int length){
+		return length < 0 || (start >= 0 && start + length <= strings.size());
+	}
+
+	/**
+	 * @return Returns the per-surface arrays, in the order they're in the file
+	 */
+	private int[][] fields(){
+		return new int[][] {type, id, res, flags, output, columns, rows, horizontalForce, verticalForce,
+				            filenameStart, filenameLength, nameStart, nameLength};
+	}
+
+	/**
+	 * Collects the strings of all the surfaces into one UTF-8 byte array
+	 */
+	private static final class StringTable {
+		byte[] bytes;
+		private int size;
+
+		StringTable(byte[] bytes, int size){
+			this.bytes = bytes;
+			this.size = size;
+		}
+
+		int size(){
+			return size;
+		}
+
+		/**
+		 * @return Returns the length of the string in bytes, -1 for null
+		 */
+		int add(String s){
+			if (s == null){
+				return -1;
+			}
+			byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+			if (size + utf8.length > bytes.length){
+				bytes = Arrays.copyOf(bytes, Math.max(size + utf8.length, bytes.length * 2));
+			}
+			System.arraycopy(utf8, 0, bytes, size, utf8.length);
+			size += utf8.length;
+			return utf8.length;
+		}
+	}
+}
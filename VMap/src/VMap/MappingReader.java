@@ -0,0 +1,180 @@
+/**
+ * Part of the VMap library: https://github.com/AlanChatham/VMap
+ *
+ * Portions to update to Processing 2 copyright (c) 2014 - Laboratory LLC
+ * Copyright (c) 2011-12 Ixagon AB
+ *
+ * This source is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is available on the World
+ * Wide Web at <http://www.gnu.org/copyleft/gpl.html>. You can also
+ * obtain it by writing to the Free Software Foundation,
+ * Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package VMap;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import processing.core.PApplet;
+import processing.data.XML;
+
+/**
+ * Reads the XML VMap.saveXML() writes in one streaming pass, without
+ * building a DOM of the whole file.
+ *
+ * Each surface gets built as soon as its element closes, from the
+ * attributes and points collected on the way (see MappingFile), so it
+ * only gets worked out once, after all its points are in. Outputs and
+ * the timeline are small, so those still come out as XML elements.
+ *
+ * @author Laboratory
+ */
+final class MappingReader {
+
+	private final PApplet parent;
+	private final VMap vm;
+
+	// What we found, in file order
+	final ArrayList<SuperSurface> surfaces = new ArrayList<SuperSurface>();
+	final ArrayList<XML> outputs = new ArrayList<XML>();
+	XML timeline;
+
+	// Holds the surface being read, see MappingFile.addSurface()
+	private final MappingFile map = new MappingFile();
+
+	/**
+	 * @param parent PApplet the surfaces belong to
+	 * @param vm VMap the surfaces belong to
+	 */
+	MappingReader(PApplet parent, VMap vm){
+		this.parent = parent;
+		this.vm = vm;
+	}
+
+	/**
+	 * Reads a mapping file
+	 * @param file File to read
+	 * @throws IOException If the file can't be read or isn't well-formed XML
+	 */
+	void read(File file) throws IOException {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		// Mapping files never need these, and they're how XML files attack you
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+
+		try (InputStream in = new BufferedInputStream(new FileInputStream(file))){
+			XMLStreamReader xml = factory.createXMLStreamReader(in);
+			try {
+				read(xml);
+			}
+			finally {
+				xml.close();
+			}
+		} catch (XMLStreamException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+	}
+
+	private void read(XMLStreamReader xml) throws XMLStreamException {
+		int depth = 0;
+		// Index of the surface we're in, -1 if we aren't in one
+		int surface = -1;
+		// Point elements seen so far in the surface, for ones without an i
+		int pointCount = 0;
+		while (xml.hasNext()){
+			int event = xml.next();
+			if (event == XMLStreamConstants.START_ELEMENT){
+				depth++;
+				String name = xml.getLocalName();
+				if (depth == 2 && "surface".equals(name)){
+					surface = startSurface(xml);
+					pointCount = 0;
+				}
+				else if (depth == 3 && surface >= 0){
+					map.setPoint(surface, name, getInt(xml, "i", pointCount), getFloat(xml, "x"), getFloat(xml, "y"));
+					pointCount++;
+				}
+				else if (depth == 2 && "output".equals(name)){
+					outputs.add(readElement(xml));
+					depth--;
+				}
+				else if (depth == 2 && "timeline".equals(name)){
+					timeline = readElement(xml);
+					depth--;
+				}
+			}
+			else if (event == XMLStreamConstants.END_ELEMENT){
+				if (depth == 2 && surface >= 0){
+					SuperSurface s = map.createSurface(surface, parent, vm);
+					if (s != null){
+						surfaces.add(s);
+					}
+					surface = -1;
+				}
+				depth--;
+			}
+		}
+	}
+
+	/**
+	 * Adds a surface element's attributes to the map
+	 * @return Returns the index of the surface in the map
+	 */
+	private int startSurface(XMLStreamReader xml){
+		int res = getInt(xml, "res", 0);
+		return map.addSurface(getInt(xml, "type", SuperSurface.QUAD), getInt(xml, "id", 0), res, getInt(xml, "lock", 0) == 1,
+				              getInt(xml, "output", SuperSurface.ALL_OUTPUTS),
+				              getInt(xml, "columns", res + 1), getInt(xml, "rows", res + 1),
+				              getInt(xml, "horizontalForce", 0), getInt(xml, "verticalForce", 0),
+				              xml.getAttributeValue(null, "filename"), xml.getAttributeValue(null, "name"));
+	}
+
+	/**
+	 * Reads the element we're at, and everything in it, into XML.
+	 *  Leaves the reader at the element's end tag.
+	 */
+	private static XML readElement(XMLStreamReader xml) throws XMLStreamException {
+		XML element = new XML(xml.getLocalName());
+		for (int i = 0; i < xml.getAttributeCount(); i++){
+			element.setString(xml.getAttributeLocalName(i), xml.getAttributeValue(i));
+		}
+		while (true){
+			int event = xml.next();
+			if (event == XMLStreamConstants.START_ELEMENT){
+				element.addChild(readElement(xml));
+			}
+			else if (event == XMLStreamConstants.END_ELEMENT){
+				return element;
+			}
+		}
+	}
+
+	private static int getInt(XMLStreamReader xml, String name, int defaultValue){
+		String value = xml.getAttributeValue(null, name);
+		return (value == null) ? defaultValue : Integer.parseInt(value.trim());
+	}
+
+	private static float getFloat(XMLStreamReader xml, String name){
+		String value = xml.getAttributeValue(null, name);
+		return (value == null) ? 0 : Float.parseFloat(value.trim());
+	}
+}
@@ -0,0 +1,658 @@
+/**
+ * Part of the VMap library: https://github.com/AlanChatham/VMap
+ *
+ * Portions to update to Processing 2 copyright (c) 2014 - Laboratory LLC
+ * Copyright (c) 2011-12 Ixagon AB
+ *
+ * This source is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is available on the World
+ * Wide Web at <http://www.gnu.org/copyleft/gpl.html>. You can also
+ * obtain it by writing to the Free Software Foundation,
+ * Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package VMap;
+
+import processing.core.PApplet;
+import processing.core.PGraphics;
+import processing.core.PImage;
+import processing.core.PVector;
+import processing.data.XML;
+
+/**
+ * A surface made of a free lattice of points, columns by rows, that can
+ * each be dragged anywhere. Good for warping onto things that aren't
+ * flat or nicely curved, where a quad or a Bezier patch won't do.
+ *
+ * The texture is spread evenly over the lattice, and each cell is drawn
+ * as two triangles. The four corners of the lattice are the surface's
+ * corner points, so snapping, selecting and moving corners work like
+ * they do on the other surfaces.
+ *
+ * @author Laboratory
+ */
+public class MeshSurface extends SuperSurface{
+
+	// The lattice, from left to right, top to bottom, like pixels.
+	//  The corner points are the same PVectors as the lattice's corners.
+	private PVector[] meshPoints;
+	private int columns;
+	private int rows;
+
+	private int selectedMeshPoint;
+
+	private float DEFAULT_SIZE = 100;
+	private int DEFAULT_POINTS = 4;
+
+	/**
+	 * Constructor for creating a new surface at X,Y with a lattice of columns by rows points
+	 * @param parent PApplet this belongs to
+	 * @param vm VMap instance this surface belongs to
+	 * @param x Starting X position
+	 * @param y Starting Y position
+	 * @param columns Number of points across, at least 2
+	 * @param rows Number of points down, at least 2
+	 * @param id ID of this surface
+	 */
+	MeshSurface(PApplet parent, VMap vm, float x, float y, int columns, int rows, int id) {
+		init(parent, vm, columns, rows, id, null);
+		float half = this.DEFAULT_SIZE * 0.5f;
+		this.spanCorners(x - half, y - half, x + half, y - half, x + half, y + half, x - half, y + half);
+		this.updateTransform();
+	}
+
+	/**
+	 * Constructor for creating a new surface at X,Y, showing an image from a file
+	 * @param fileName Filename of the image to show on this surface
+	 * @param parent PApplet this belongs to
+	 * @param vm VMap instance this surface belongs to
+	 * @param x Starting X position
+	 * @param y Starting Y position
+	 * @param columns Number of points across, at least 2
+	 * @param rows Number of points down, at least 2
+	 * @param id ID of this surface
+	 */
+	MeshSurface(String fileName, PApplet parent, VMap vm, float x, float y, int columns, int rows, int id) {
+		this(parent, vm, x, y, columns, rows, id);
+		this.textureFilename = fileName;
+		if (this.textureFilename != null){
+			this.texture = parent.loadImage(fileName);
+		}
+	}
+
+	/**
+	 * Constructor used when loading a surface from file
+	 * @param parent PApplet this belongs to
+	 * @param vm VMap instance this is a part of
+	 * @param xml XML object to load this from
+	 */
+	MeshSurface(PApplet parent, VMap vm, XML xml) {
+		int res = xml.getInt("res", DEFAULT_POINTS - 1);
+		init(parent, vm, xml.getInt("columns", res + 1), xml.getInt("rows", res + 1), xml.getInt("id"), xml.getString("name"));
+		this.textureFilename = xml.getString("filename");
+		if (this.textureFilename != null){
+			this.texture = parent.loadImage(this.textureFilename);
+		}
+		if (xml.getInt("lock") == 1)
+			this.toggleLocked();
+
+		// Spread the lattice between the corners first, so a file
+		//  that only has corners still gives a sensible surface
+		XML[] corners = xml.getChildren("cornerpoint");
+		if (corners.length == 4) {
+			this.spanCorners(corners[0].getFloat("x"), corners[0].getFloat("y"), corners[1].getFloat("x"), corners[1].getFloat("y"),
+							 corners[2].getFloat("x"), corners[2].getFloat("y"), corners[3].getFloat("x"), corners[3].getFloat("y"));
+		}
+		for (XML point : xml.getChildren("meshpoint")) {
+			int i = point.getInt("i");
+			if (i >= 0 && i < meshPoints.length) {
+				meshPoints[i].x = point.getFloat("x");
+				meshPoints[i].y = point.getFloat("y");
+			}
+		}
+		this.updateTransform();
+	}
+
+	/**
+	 * Constructor used by loaders that set the points themselves.
+	 *  The surface starts with an edit open (see beginEdit()), so set
+	 *  the lattice (spanCorners() helps), then commitEdit() works everything out once.
+	 * @param parent PApplet this belongs to
+	 * @param vm VMap instance this is a part of
+	 * @param columns Number of points across, at least 2
+	 * @param rows Number of points down, at least 2
+	 * @param id ID of this surface
+	 * @param name Name, or null
+	 * @param filename Image filename to show, or null
+	 */
+	MeshSurface(PApplet parent, VMap vm, int columns, int rows, int id, String name, String filename) {
+		this.beginEdit();
+		init(parent, vm, columns, rows, id, name);
+		this.textureFilename = filename;
+		if (this.textureFilename != null){
+			this.texture = parent.loadImage(this.textureFilename);
+		}
+	}
+
+	/**
+	 * Convenience method used by the constructors.
+	 * @param parent Parent applet
+	 * @param vm VMap object containing this surface
+	 * @param columns Number of points across
+	 * @param rows Number of points down
+	 * @param id ID of this surface
+	 * @param name Name
+	 */
+	private void init(PApplet parent, VMap vm, int columns, int rows, int id, String name) {
+		this.parent = parent;
+		this.sm = vm;
+		this.surfaceName = name;
+		this.surfaceId = id;
+		this.selectedMeshPoint = -1;
+		this.type = SuperSurface.MESH;
+
+		this.allocateMesh(Math.max(2, columns), Math.max(2, rows));
+
+		GRID_LINE_COLOR = parent.color(128, 128, 128);
+		GRID_LINE_SELECTED_COLOR = parent.color(160, 160, 160);
+		SELECTED_OUTLINE_OUTER_COLOR = parent.color(255, 255, 255, 128);
+		SELECTED_OUTLINE_INNER_COLOR = parent.color(255, 255, 255);
+		CORNER_MARKER_COLOR = parent.color(255, 255, 255);
+		SELECTED_CORNER_MARKER_COLOR = parent.color(255, 0, 0);
+	}
+
+	/**
+	 * Makes a new lattice, and points the corners at its corners
+	 * @param columns Number of points across
+	 * @param rows Number of points down
+	 */
+	private void allocateMesh(int columns, int rows) {
+		this.columns = columns;
+		this.rows = rows;
+		this.meshPoints = new PVector[columns * rows];
+		for (int i = 0; i < this.meshPoints.length; i++) {
+			this.meshPoints[i] = new PVector();
+		}
+		this.linkCorners();
+	}
+
+	/**
+	 * Points the corner points at the corners of the lattice
+	 */
+	private void linkCorners() {
+		if (this.cornerPoints == null) {
+			this.cornerPoints = new PVector[4];
+		}
+		this.cornerPoints[0] = meshPoints[0];
+		this.cornerPoints[1] = meshPoints[columns - 1];
+		this.cornerPoints[2] = meshPoints[columns * rows - 1];
+		this.cornerPoints[3] = meshPoints[columns * (rows - 1)];
+	}
+
+	/**
+	 * Spreads the lattice evenly between four corners
+	 */
+	void spanCorners(float x0, float y0, float x1, float y1, float x2, float y2, float x3, float y3) {
+		for (int j = 0; j < rows; j++) {
+			float v = (float) j / (rows - 1);
+			for (int i = 0; i < columns; i++) {
+				float u = (float) i / (columns - 1);
+				PVector p = meshPoints[i + j * columns];
+				p.x = (1 - v) * ((1 - u) * x0 + u * x1) + v * ((1 - u) * x3 + u * x2);
+				p.y = (1 - v) * ((1 - u) * y0 + u * y1) + v * ((1 - u) * y3 + u * y2);
+				p.z = 0;
+			}
+		}
+	}
+
+	/**
+	 * Get the amount of subdivision used in the surface
+	 * @return Returns the number of cells across
+	 */
+	public int getRes() {
+		return columns - 1;
+	}
+
+	/**
+	 * Get the number of points across the lattice
+	 * @return Returns the number of columns
+	 */
+	public int getColumns() {
+		return columns;
+	}
+
+	/**
+	 * Get the number of points down the lattice
+	 * @return Returns the number of rows
+	 */
+	public int getRows() {
+		return rows;
+	}
+
+	/**
+	 * Adds a column and a row to the lattice, keeping its current shape
+	 */
+	public void increaseResolution() {
+		this.resample(columns + 1, rows + 1);
+	}
+
+	/**
+	 * Takes a column and a row off the lattice, keeping its rough shape
+	 */
+	public void decreaseResolution() {
+		if (columns > 2 && rows > 2) {
+			this.resample(columns - 1, rows - 1);
+		}
+	}
+
+	/**
+	 * Rebuilds the lattice at a new size, with each new point
+	 *  placed where it falls on the old one
+	 * @param newColumns Number of points across
+	 * @param newRows Number of points down
+	 */
+	private void resample(int newColumns, int newRows) {
+		PVector[] old = this.meshPoints;
+		int oldColumns = this.columns;
+		int oldRows = this.rows;
+		this.allocateMesh(newColumns, newRows);
+
+		for (int j = 0; j < newRows; j++) {
+			float v = (float) j * (oldRows - 1) / (newRows - 1);
+			int j0 = Math.min((int) v, oldRows - 2);
+			float fv = v - j0;
+			for (int i = 0; i < newColumns; i++) {
+				float u = (float) i * (oldColumns - 1) / (newColumns - 1);
+				int i0 = Math.min((int) u, oldColumns - 2);
+				float fu = u - i0;
+				PVector a = old[i0 + j0 * oldColumns];
+				PVector b = old[i0 + 1 + j0 * oldColumns];
+				PVector c = old[i0 + (j0 + 1) * oldColumns];
+				PVector d = old[i0 + 1 + (j0 + 1) * oldColumns];
+				PVector p = meshPoints[i + j * newColumns];
+				p.x = (1 - fv) * ((1 - fu) * a.x + fu * b.x) + fv * ((1 - fu) * c.x + fu * d.x);
+				p.y = (1 - fv) * ((1 - fu) * a.y + fu * b.y) + fv * ((1 - fu) * c.y + fu * d.y);
+			}
+		}
+		this.selectedMeshPoint = -1;
+		this.updateTransform();
+	}
+
+	/**
+	 * Get all the lattice points, left to right, top to bottom.
+	 *  Change them through setMeshPoint(), so the surface knows they moved.
+	 * @return PVector array of the lattice
+	 */
+	public PVector[] getMeshPoints() {
+		return this.meshPoints;
+	}
+
+	/**
+	 * Get one lattice point
+	 * @param index Index of the point, column + row * getColumns()
+	 * @return PVector of the point
+	 */
+	public PVector getMeshPoint(int index) {
+		return this.meshPoints[index];
+	}
+
+	/**
+	 * Set a lattice point to coordinates
+	 * @param index Index of the point, column + row * getColumns()
+	 * @param x X position of the point
+	 * @param y Y position of the point
+	 */
+	public void setMeshPoint(int index, float x, float y) {
+		this.meshPoints[index].x = x;
+		this.meshPoints[index].y = y;
+		this.updateTransform();
+	}
+
+	/**
+	 * Moves the whole surface, every lattice point along with it
+	 * @param dx Distance to move along X
+	 * @param dy Distance to move along Y
+	 */
+	public void translate(float dx, float dy) {
+		// The corners are in the lattice, so they move too
+		for (int i = 0; i < this.meshPoints.length; i++) {
+			this.meshPoints[i].x += dx;
+			this.meshPoints[i].y += dy;
+		}
+		this.updateTransform();
+	}
+
+	/**
+	 * Set target lattice point to selected
+	 * @param selectedMeshPoint Index of the point to select, -1 for none
+	 */
+	public void setSelectedMeshPoint(int selectedMeshPoint) {
+		this.selectedMeshPoint = selectedMeshPoint;
+	}
+
+	/**
+	 * Get the currently selected lattice point
+	 * @return Index of the selected point, -1 if there isn't one
+	 */
+	public int getSelectedMeshPoint() {
+		return selectedMeshPoint;
+	}
+
+	/**
+	 * Returns the index of a lattice point if the coordinates are on one.
+	 *  Corners are left out, since getActiveCornerPointIndex() finds those.
+	 * @param mX mouseX
+	 * @param mY mouseY
+	 * @return index of the first nearby lattice point, -1 if there isn't one
+	 */
+	public int getActiveMeshPointIndex(int mX, int mY) {
+		for (int i = 0; i < this.meshPoints.length; i++) {
+			if (this.isCorner(i)) {
+				continue;
+			}
+			if (PApplet.dist(mX, mY, this.meshPoints[i].x, this.meshPoints[i].y) < sm.getSelectionDistance()) {
+				this.setSelectedMeshPoint(i);
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Checks if a lattice point is one of the corners
+	 */
+	private boolean isCorner(int index) {
+		return index == 0 || index == columns - 1 || index == columns * (rows - 1) || index == columns * rows - 1;
+	}
+
+	/**
+	 * Recalculates the outline of the surface.
+	 * Must be called whenever any change has been done to the surface.
+	 */
+	public void updateTransform() {
+		if (this.deferTransform()) {
+			return;
+		}
+
+		// Around the edge of the lattice, clockwise from the top left
+		poly.reset();
+		for (int i = 0; i < columns - 1; i++) {
+			poly.addPoint((int) meshPoints[i].x, (int) meshPoints[i].y);
+		}
+		for (int j = 0; j < rows - 1; j++) {
+			PVector p = meshPoints[columns - 1 + j * columns];
+			poly.addPoint((int) p.x, (int) p.y);
+		}
+		for (int i = columns - 1; i > 0; i--) {
+			PVector p = meshPoints[i + (rows - 1) * columns];
+			poly.addPoint((int) p.x, (int) p.y);
+		}
+		for (int j = rows - 1; j > 0; j--) {
+			PVector p = meshPoints[j * columns];
+			poly.addPoint((int) p.x, (int) p.y);
+		}
+
+		this.geometryChanged();
+	}
+
+	/**
+	 * Render method for rendering while in calibration mode
+	 * @param g PGraphics to draw on
+	 */
+	public void render(PGraphics g) {
+		if (this.MODE == this.MODE_CALIBRATE && !this.isHidden()) {
+			g.beginDraw();
+			this.renderGrid(g);
+			g.endDraw();
+		}
+	}
+
+	/**
+	 * Draws the calibration grid into a PGraphics that's already drawing
+	 * @param g PGraphics to draw on
+	 */
+	protected void drawGrid(PGraphics g) {
+		if (this.MODE == this.MODE_CALIBRATE && !this.isHidden()) {
+			this.renderGrid(g);
+		}
+	}
+
+	/**
+	 * Render method for rendering in RENDER mode.
+	 * Takes one PGraphics and one Texture. The Texture is the texture used for the surface, and is drawn to the offscreen buffer.
+	 * @param g PGraphics to work on
+	 * @param tex Texture to draw
+	 */
+	public void render(PGraphics g, PImage tex) {
+		if(this.isHidden()) return;
+		this.renderSurface(g, tex);
+	}
+
+	/**
+	 * Actual rendering of the surface. Is called from the render method.
+	 * Should normally not be accessed directly.
+	 * @param g PGraphics to draw surface on
+	 * @param tex Texture to apply to the surface
+	 */
+	private void renderSurface(PGraphics g, PImage tex) {
+		g.beginDraw();
+		g.noStroke();
+		g.beginShape(PApplet.QUADS);
+		g.texture(tex);
+		for (int j = 0; j < rows - 1; j++) {
+			for (int i = 0; i < columns - 1; i++) {
+				this.textureVertex(g, tex, i, j);
+				this.textureVertex(g, tex, i + 1, j);
+				this.textureVertex(g, tex, i + 1, j + 1);
+				this.textureVertex(g, tex, i, j + 1);
+			}
+		}
+		g.endShape(PApplet.CLOSE);
+		g.endDraw();
+	}
+
+	private void textureVertex(PGraphics g, PImage tex, int i, int j) {
+		PVector p = meshPoints[i + j * columns];
+		g.vertex(p.x, p.y, p.z + currentZ,
+				((float) i / (columns - 1)) * tex.width,
+				((float) j / (rows - 1)) * tex.height);
+	}
+
+	/**
+	 * Renders the grid in the surface. (useful in calibration mode)
+	 * @param g PGraphics to render to
+	 */
+	private void renderGrid(PGraphics g) {
+		if (ccolor == 0) {
+			g.fill(50, 80, 150);
+		} else {
+			g.fill(ccolor);
+		}
+		g.noStroke();
+		g.beginShape(PApplet.QUADS);
+		for (int j = 0; j < rows - 1; j++) {
+			for (int i = 0; i < columns - 1; i++) {
+				int p = i + j * columns;
+				g.vertex(meshPoints[p].x, meshPoints[p].y);
+				g.vertex(meshPoints[p + 1].x, meshPoints[p + 1].y);
+				g.vertex(meshPoints[p + 1 + columns].x, meshPoints[p + 1 + columns].y);
+				g.vertex(meshPoints[p + columns].x, meshPoints[p + columns].y);
+			}
+		}
+		g.endShape();
+
+		g.textFont(sm.getIdFont());
+		if (ccolor == 0) {
+			g.fill(255);
+		} else {
+			g.fill(0);
+		}
+
+		g.textAlign(PApplet.CENTER, PApplet.CENTER);
+		g.textSize(40);
+		g.text("" + surfaceId, this.getCenter().x, this.getCenter().y);
+		if (isLocked) {
+			g.textSize(12);
+			g.text("Surface locked", this.getCenter().x, this.getCenter().y+26);
+		}
+
+		g.noFill();
+		g.stroke(MeshSurface.GRID_LINE_COLOR);
+		g.strokeWeight(2);
+		if (isSelected)
+			g.stroke(MeshSurface.GRID_LINE_SELECTED_COLOR);
+
+		if (!isLocked) {
+			// Lattice lines, across then down
+			for (int j = 0; j < rows; j++) {
+				for (int i = 0; i < columns - 1; i++) {
+					PVector a = meshPoints[i + j * columns];
+					PVector b = meshPoints[i + 1 + j * columns];
+					g.line(a.x, a.y, b.x, b.y);
+				}
+			}
+			for (int i = 0; i < columns; i++) {
+				for (int j = 0; j < rows - 1; j++) {
+					PVector a = meshPoints[i + j * columns];
+					PVector b = meshPoints[i + (j + 1) * columns];
+					g.line(a.x, a.y, b.x, b.y);
+				}
+			}
+		}
+
+		if (isSelected) {
+			g.strokeWeight(4);
+			g.stroke(SELECTED_OUTLINE_OUTER_COLOR);
+			this.renderOutline(g);
+		}
+		g.strokeWeight(1);
+		g.stroke(SELECTED_OUTLINE_INNER_COLOR);
+		this.renderOutline(g);
+
+		this.drawControlPoints(g);
+	}
+
+	/**
+	 * Draws the outline polygon
+	 * @param g PGraphics to draw on
+	 */
+	private void renderOutline(PGraphics g) {
+		for (int i = 0; i < poly.npoints; i++) {
+			int next = (i + 1) % poly.npoints;
+			g.line(poly.xpoints[i], poly.ypoints[i], poly.xpoints[next], poly.ypoints[next]);
+		}
+	}
+
+	public void renderControlPoints(PGraphics g){
+		g.beginDraw();
+		this.drawControlPoints(g);
+		g.endDraw();
+	}
+
+	/**
+	 * Draws the control points into a PGraphics that's already drawing
+	 * @param g PGraphics to draw on
+	 */
+	protected void drawControlPoints(PGraphics g){
+		if (!isLocked) {
+			for (int i = 0; i < this.meshPoints.length; i++) {
+				if (!this.isCorner(i)) {
+					this.renderMeshPoint(g, this.meshPoints[i].x, this.meshPoints[i].y, (this.selectedMeshPoint == i));
+				}
+			}
+			for (int i = 0; i < this.cornerPoints.length; i++) {
+				this.renderCornerPoint(g, this.cornerPoints[i].x, this.cornerPoints[i].y, (this.activePoint == i), i);
+			}
+		}
+	}
+
+	/**
+	 * Draws a corner point
+	 * @param g PGraphics instance to draw onto
+	 * @param x X coordinate of the point
+	 * @param y Y coordinate of the point
+	 * @param selected Whether or not the point is selected
+	 * @param cornerIndex The cornerIndex of the point
+	 */
+	private void renderCornerPoint(PGraphics g, float x, float y, boolean selected, int cornerIndex) {
+		g.noFill();
+		g.strokeWeight(2);
+		if (selected) {
+			g.stroke(MeshSurface.SELECTED_CORNER_MARKER_COLOR);
+		} else {
+			g.stroke(MeshSurface.CORNER_MARKER_COLOR);
+		}
+		if (cornerIndex == getSelectedCorner() && isSelected()) {
+			g.fill(MeshSurface.SELECTED_CORNER_MARKER_COLOR, 100);
+			g.stroke(MeshSurface.SELECTED_CORNER_MARKER_COLOR);
+		}
+		g.ellipse(x, y, 16, 16);
+		g.line(x, y - 8, x, y + 8);
+		g.line(x - 8, y, x + 8, y);
+	}
+
+	/**
+	 * Draws a lattice point, a bit smaller than the corners
+	 * @param g PGraphics instance to draw onto
+	 * @param x X coordinate of the point
+	 * @param y Y coordinate of the point
+	 * @param selected Whether or not the point is selected
+	 */
+	private void renderMeshPoint(PGraphics g, float x, float y, boolean selected) {
+		g.noFill();
+		g.strokeWeight(1);
+		if (selected) {
+			g.fill(MeshSurface.SELECTED_CORNER_MARKER_COLOR, 100);
+			g.stroke(MeshSurface.SELECTED_CORNER_MARKER_COLOR);
+		} else {
+			g.stroke(MeshSurface.CORNER_MARKER_COLOR);
+		}
+		g.ellipse(x, y, 10, 10);
+		g.line(x, y - 5, x, y + 5);
+		g.line(x - 5, y, x + 5, y);
+	}
+
+	/**
+	 * Rotates the lattice a quarter turn, so the texture turns
+	 *  the same way it does on the other surfaces. The columns and rows swap.
+	 * @param direction CLOCKWISE or COUNTERCLOCKWISE
+	 */
+	public void rotateCornerPoints(int direction){
+		if (direction != SuperSurface.CLOCKWISE && direction != SuperSurface.COUNTERCLOCKWISE) {
+			return;
+		}
+		PVector[] old = this.meshPoints;
+		int oldColumns = this.columns;
+		int oldRows = this.rows;
+		PVector[] rotated = new PVector[old.length];
+		// The new top left is the old top right going clockwise,
+		//  or the old bottom left going counterclockwise
+		for (int j = 0; j < oldColumns; j++) {
+			for (int i = 0; i < oldRows; i++) {
+				int source;
+				if (direction == SuperSurface.CLOCKWISE) {
+					source = (oldColumns - 1 - j) + i * oldColumns;
+				}
+				else {
+					source = j + (oldRows - 1 - i) * oldColumns;
+				}
+				rotated[i + j * oldRows] = old[source];
+			}
+		}
+		this.meshPoints = rotated;
+		this.columns = oldRows;
+		this.rows = oldColumns;
+		this.selectedMeshPoint = -1;
+		this.linkCorners();
+		this.updateTransform();
+	}
+}
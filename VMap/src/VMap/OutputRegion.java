@@ -0,0 +1,337 @@
+/**
+ * Part of the VMap library: https://github.com/AlanChatham/VMap
+ *
+ * Portions to update to Processing 2 copyright (c) 2014 - Laboratory LLC
+ * Copyright (c) 2011-12 Ixagon AB
+ *
+ * This source is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is available on the World
+ * Wide Web at <http://www.gnu.org/copyleft/gpl.html>. You can also
+ * obtain it by writing to the Free Software Foundation,
+ * Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package VMap;
+
+import processing.data.XML;
+
+/**
+ * One output (usually one projector) in a multi-output layout.
+ *
+ * An output shows a rectangle of VMap's canvas (its source, which is
+ * where you place surfaces, in the same pixels as the sketch window),
+ * drawn into a rectangle of whatever VMap renders to (its viewport).
+ * For a wide window spanning several projectors, the source and the
+ * viewport are usually the same, one projector's worth of the window each.
+ *
+ * Each output can also have a keystone, which warps everything it shows
+ * by moving the four corners of the output. Keystone corners are in
+ * output coordinates, where (0,0) is the top left and (1,1) the bottom right.
+ *
+ * Where projectors overlap, each output can fade out towards its edges
+ * (edge blending), so the overlap doesn't come out twice as bright.
+ * Blend zones are set per edge in viewport pixels, and get evaluated
+ * in VMap's shaders while the surfaces are drawn, so they cost no extra pass.
+ * The gamma should match your projectors, and the curve sets how the fade
+ * is shaped (1 is a straight ramp, higher is an S-curve).
+ *
+ * Add outputs with VMap.addOutput(), and pick which output a surface
+ * shows up in with SuperSurface.setOutput().
+ *
+ * @author Laboratory
+ */
+public class OutputRegion {
+
+	public static final int TOP_LEFT = 0;
+	public static final int TOP_RIGHT = 1;
+	public static final int BOTTOM_RIGHT = 2;
+	public static final int BOTTOM_LEFT = 3;
+
+	// Edges, for blending
+	public static final int LEFT = 0;
+	public static final int RIGHT = 1;
+	public static final int TOP = 2;
+	public static final int BOTTOM = 3;
+
+	// Part of the canvas this output shows, in canvas pixels
+	private int sourceX;
+	private int sourceY;
+	private int sourceWidth;
+	private int sourceHeight;
+
+	// Where it gets drawn, in pixels of the render target
+	private int viewportX;
+	private int viewportY;
+	private int viewportWidth;
+	private int viewportHeight;
+
+	// Keystone corners, x and y for top left, top right, bottom right, bottom left
+	private float[] keystone = {0, 0, 1, 0, 1, 1, 0, 1};
+
+	// Edge blend zone widths, in viewport pixels, for left, right, top and bottom
+	private float[] blendWidths = {0, 0, 0, 0};
+	private float blendGamma = 2.2f;
+	private float blendCurve = 2.0f;
+
+	// Goes up every time anything here changes
+	private int version;
+
+	// Scratch space for building the transform
+	private float[] toOutput = new float[9];
+	private float[] keystoneMatrix = new float[9];
+	private float[] fromCanvas = new float[9];
+	private float[] temp = new float[9];
+	private float[] result = new float[9];
+	private float[] columnMajor = new float[9];
+
+	/**
+	 * Create an output that shows part of the canvas in the same spot it's drawn
+	 * @param x Left edge, in pixels
+	 * @param y Top edge, in pixels
+	 * @param width Width, in pixels
+	 * @param height Height, in pixels
+	 */
+	public OutputRegion(int x, int y, int width, int height){
+		setSource(x, y, width, height);
+		setViewport(x, y, width, height);
+	}
+
+	/**
+	 * Create an output from XML saved by toXML()
+	 * @param xml XML element to load
+	 */
+	public OutputRegion(XML xml){
+		setSource(xml.getInt("sourceX"), xml.getInt("sourceY"), xml.getInt("sourceWidth"), xml.getInt("sourceHeight"));
+		setViewport(xml.getInt("viewportX"), xml.getInt("viewportY"), xml.getInt("viewportWidth"), xml.getInt("viewportHeight"));
+		setBlend(LEFT, xml.getFloat("blendLeft"));
+		setBlend(RIGHT, xml.getFloat("blendRight"));
+		setBlend(TOP, xml.getFloat("blendTop"));
+		setBlend(BOTTOM, xml.getFloat("blendBottom"));
+		setBlendGamma(xml.getFloat("blendGamma", 2.2f));
+		setBlendCurve(xml.getFloat("blendCurve", 2.0f));
+		for (XML corner : xml.getChildren("keystone")){
+			setKeystone(corner.getInt("i"), corner.getFloat("x"), corner.getFloat("y"));
+		}
+	}
+
+	/**
+	 * Saves this output as XML, for VMap.saveXML()
+	 * @return Returns an output element
+	 */
+	public XML toXML(){
+		XML xml = new XML("output");
+		xml.setInt("sourceX", sourceX);
+		xml.setInt("sourceY", sourceY);
+		xml.setInt("sourceWidth", sourceWidth);
+		xml.setInt("sourceHeight", sourceHeight);
+		xml.setInt("viewportX", viewportX);
+		xml.setInt("viewportY", viewportY);
+		xml.setInt("viewportWidth", viewportWidth);
+		xml.setInt("viewportHeight", viewportHeight);
+		xml.setFloat("blendLeft", blendWidths[LEFT]);
+		xml.setFloat("blendRight", blendWidths[RIGHT]);
+		xml.setFloat("blendTop", blendWidths[TOP]);
+		xml.setFloat("blendBottom", blendWidths[BOTTOM]);
+		xml.setFloat("blendGamma", blendGamma);
+		xml.setFloat("blendCurve", blendCurve);
+		for (int i = 0; i < 4; i++){
+			XML corner = xml.addChild("keystone");
+			corner.setInt("i", i);
+			corner.setFloat("x", keystone[i * 2]);
+			corner.setFloat("y", keystone[i * 2 + 1]);
+		}
+		return xml;
+	}
+
+	/**
+	 * Sets which part of the canvas this output shows
+	 * @param x Left edge, in canvas pixels
+	 * @param y Top edge, in canvas pixels
+	 * @param width Width, in canvas pixels
+	 * @param height Height, in canvas pixels
+	 */
+	public void setSource(int x, int y, int width, int height){
+		this.sourceX = x;
+		this.sourceY = y;
+		this.sourceWidth = Math.max(1, width);
+		this.sourceHeight = Math.max(1, height);
+		version++;
+	}
+
+	/**
+	 * Sets where this output gets drawn
+	 * @param x Left edge, in render target pixels
+	 * @param y Top edge, in render target pixels
+	 * @param width Width, in render target pixels (this output's resolution)
+	 * @param height Height, in render target pixels (this output's resolution)
+	 */
+	public void setViewport(int x, int y, int width, int height){
+		this.viewportX = x;
+		this.viewportY = y;
+		this.viewportWidth = Math.max(1, width);
+		this.viewportHeight = Math.max(1, height);
+		version++;
+	}
+
+	/**
+	 * Moves one of the keystone corners
+	 * @param corner TOP_LEFT, TOP_RIGHT, BOTTOM_RIGHT or BOTTOM_LEFT
+	 * @param x X position, 0 is the output's left edge and 1 its right
+	 * @param y Y position, 0 is the output's top edge and 1 its bottom
+	 */
+	public void setKeystone(int corner, float x, float y){
+		keystone[corner * 2] = x;
+		keystone[corner * 2 + 1] = y;
+		version++;
+	}
+
+	/**
+	 * Gets one of the keystone corners
+	 * @param corner TOP_LEFT, TOP_RIGHT, BOTTOM_RIGHT or BOTTOM_LEFT
+	 * @return Returns the corner's x and y, in output coordinates
+	 */
+	public float[] getKeystone(int corner){
+		return new float[]{keystone[corner * 2], keystone[corner * 2 + 1]};
+	}
+
+	/**
+	 * Puts all the keystone corners back in the corners of the output
+	 */
+	public void resetKeystone(){
+		setKeystone(TOP_LEFT, 0, 0);
+		setKeystone(TOP_RIGHT, 1, 0);
+		setKeystone(BOTTOM_RIGHT, 1, 1);
+		setKeystone(BOTTOM_LEFT, 0, 1);
+	}
+
+	/**
+	 * Sets how wide the blend zone along one edge is. Inside it,
+	 *  the output fades to black towards the edge.
+	 * @param edge LEFT, RIGHT, TOP or BOTTOM
+	 * @param width Width of the zone in viewport pixels, 0 for no blending
+	 */
+	public void setBlend(int edge, float width){
+		blendWidths[edge] = Math.max(0, width);
+		version++;
+	}
+
+	/**
+	 * Gets how wide the blend zone along one edge is
+	 * @param edge LEFT, RIGHT, TOP or BOTTOM
+	 * @return Returns the width of the zone in viewport pixels
+	 */
+	public float getBlend(int edge){
+		return blendWidths[edge];
+	}
+
+	/**
+	 * Sets the gamma the blend gets corrected for, which should match the projector
+	 * @param gamma Gamma, 2.2 by default
+	 */
+	public void setBlendGamma(float gamma){
+		this.blendGamma = Math.max(0.01f, gamma);
+		version++;
+	}
+
+	/**
+	 * @return Returns the gamma the blend gets corrected for
+	 */
+	public float getBlendGamma(){
+		return blendGamma;
+	}
+
+	/**
+	 * Sets the shape of the blend. 1 fades in a straight line,
+	 *  higher values make an S-curve that's flatter at both ends.
+	 * @param curve Curve exponent, 2 by default
+	 */
+	public void setBlendCurve(float curve){
+		this.blendCurve = Math.max(0.01f, curve);
+		version++;
+	}
+
+	/**
+	 * @return Returns the shape of the blend
+	 */
+	public float getBlendCurve(){
+		return blendCurve;
+	}
+
+	/**
+	 * Gets the blend zone widths as fractions of the viewport, for the shaders
+	 * @param out Array to put left, right, top and bottom in
+	 * @return Returns out
+	 */
+	float[] getBlendFractions(float[] out){
+		out[0] = blendWidths[LEFT] / viewportWidth;
+		out[1] = blendWidths[RIGHT] / viewportWidth;
+		out[2] = blendWidths[TOP] / viewportHeight;
+		out[3] = blendWidths[BOTTOM] / viewportHeight;
+		return out;
+	}
+
+	public int getSourceX(){ return sourceX; }
+	public int getSourceY(){ return sourceY; }
+	public int getSourceWidth(){ return sourceWidth; }
+	public int getSourceHeight(){ return sourceHeight; }
+	public int getViewportX(){ return viewportX; }
+	public int getViewportY(){ return viewportY; }
+	public int getViewportWidth(){ return viewportWidth; }
+	public int getViewportHeight(){ return viewportHeight; }
+
+	/**
+	 * @return Returns a number that goes up every time this output changes
+	 */
+	public int getVersion(){
+		return version;
+	}
+
+	/**
+	 * Builds the transform from canvas OpenGL coordinates (what's in
+	 *  VMap's vertex buffer) to this output's OpenGL coordinates,
+	 *  keystone included
+	 * @param canvasWidth Width of the canvas the vertices were made for
+	 * @param canvasHeight Height of the canvas the vertices were made for
+	 * @return Returns the transform as a column-major 3x3 matrix, ready for
+	 *  glUniformMatrix3fv. It gets reused, so don't hold on to it.
+	 */
+	float[] getTransform(float canvasWidth, float canvasHeight){
+		// Canvas OpenGL coordinates to 0-1 across our source
+		fromCanvas[0] = canvasWidth / (2 * sourceWidth);
+		fromCanvas[1] = 0;
+		fromCanvas[2] = (canvasWidth / 2 - sourceX) / sourceWidth;
+		fromCanvas[3] = 0;
+		fromCanvas[4] = -canvasHeight / (2 * sourceHeight);
+		fromCanvas[5] = (canvasHeight / 2 - sourceY) / sourceHeight;
+		fromCanvas[6] = 0;
+		fromCanvas[7] = 0;
+		fromCanvas[8] = 1;
+
+		Homography.squareToQuad(keystone[0], keystone[1], keystone[2], keystone[3],
+				                keystone[4], keystone[5], keystone[6], keystone[7], keystoneMatrix);
+
+		// 0-1 back out to OpenGL coordinates, flipping Y like pixelToOpenGLY does
+		toOutput[0] = 2; toOutput[1] = 0;  toOutput[2] = -1;
+		toOutput[3] = 0; toOutput[4] = -2; toOutput[5] = 1;
+		toOutput[6] = 0; toOutput[7] = 0;  toOutput[8] = 1;
+
+		Homography.multiply(keystoneMatrix, fromCanvas, temp);
+		Homography.multiply(toOutput, temp, result);
+
+		for (int r = 0; r < 3; r++){
+			for (int c = 0; c < 3; c++){
+				columnMajor[c * 3 + r] = result[r * 3 + c];
+			}
+		}
+		return columnMajor;
+	}
+}
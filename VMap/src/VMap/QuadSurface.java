@@ -26,7 +26,7 @@ package VMap;
 //and code from rrrufusss
 //https://forum.processing.org/topic/compensating-for-keystone-distortion-or-creating-some-kind-of-homography-routine
 
-import java.awt.Polygon;
+import java.util.Arrays;
 
 //import javax.media.jai.PerspectiveTransform;
 
@@ -48,11 +48,15 @@ public class QuadSurface extends SuperSurface{
 	// during rendering.
 	private PVector[][] vertexPoints;
 
-	// The transform! Thank you Java Advanced Imaging, now I don't have to learn
-	// a bunch of math..
-	// Docs:
-	// http://download.oracle.com/docs/cd/E17802_01/products/products/java-media/jai/forDevelopers/jai-apidocs/javax/media/jai/PerspectiveTransform.html
-//	private PerspectiveTransform transform;
+	// The transform! Maps the unit square (texture space) onto our corners,
+	// and the inverse takes screen points back. Both get worked out once
+	// per corner change in updateTransform(), see Homography for the layout.
+	private float[] transform = Homography.identity(new float[9]);
+	private float[] inverseTransform = Homography.identity(new float[9]);
+	// Whether the corners make a convex quad, which the inverse only works for
+	private boolean convex = false;
+	// Q value of each corner for projective texturing, 1 if we're not convex
+	private float[] cornerQ = {1, 1, 1, 1};
 
 	private int GRID_RESOLUTION;
 	// Metrics for the projected texture..
@@ -104,6 +108,8 @@ public class QuadSurface extends SuperSurface{
 	 * @param xml XML object to load from
 	 */
 	QuadSurface(PApplet parent, VMap vm, XML xml) {
+		// Set everything, then work it out once
+		this.beginEdit();
 		if (xml.getString("filename") != null){
 			init(xml.getString("filename"), parent, vm, xml.getInt("res"), xml.getInt("id"), xml.getString("name"));
 		}
@@ -118,7 +124,28 @@ public class QuadSurface extends SuperSurface{
 								xml.getChild(1).getFloat("x"), xml.getChild(1).getFloat("y"), 
 								xml.getChild(2).getFloat("x"), xml.getChild(2).getFloat("y"),
 								xml.getChild(3).getFloat("x"), xml.getChild(3).getFloat("y"));
-
+		this.commitEdit();
+	}
+	
+	/**
+	 * Constructor used by loaders that set the corners themselves.
+	 *  The surface starts with an edit open (see beginEdit()), so set
+	 *  the corners, then commitEdit() works everything out once.
+	 * @param parent PApplet this belongs to
+	 * @param vm VMap instance this is a part of
+	 * @param res Resolution, like getRes()
+	 * @param id ID of this surface
+	 * @param name Name, or null
+	 * @param filename Image filename to show, or null
+	 */
+	QuadSurface(PApplet parent, VMap vm, int res, int id, String name, String filename) {
+		this.beginEdit();
+		if (filename != null){
+			init(filename, parent, vm, res, id, name);
+		}
+		else{
+			init(parent, vm, res, id, name);
+		}
 	}
 	
 	/**
@@ -180,9 +207,10 @@ public class QuadSurface extends SuperSurface{
 			this.gridPoints[i] = new PVector();
 		}
 
+		// Vertex points are the same points as the grid, just by column and row
 		for (int i = 0; i < this.GRID_RESOLUTION; i++) {
 			for(int j = 0; j < this.GRID_RESOLUTION; j++)
-			this.vertexPoints[i][j] = new PVector();
+			this.vertexPoints[i][j] = this.gridPoints[i + j * this.GRID_RESOLUTION];
 		}
 	}
 
@@ -249,126 +277,123 @@ public class QuadSurface extends SuperSurface{
 	 * Must be called whenever any change has been done to the surface.
 	 */
 	public void updateTransform() {
-	}
-/*	
-		// Update the PerspectiveTransform with the current width, height, and
-		// destination coordinates.
-		this.transform = PerspectiveTransform.getQuadToQuad(0, 0, this.DEFAULT_SIZE, 0, this.DEFAULT_SIZE, this.DEFAULT_SIZE, 0, this.DEFAULT_SIZE, 
-															this.cornerPoints[0].x, this.cornerPoints[0].y, this.cornerPoints[1].x, this.cornerPoints[1].y, 
-															this.cornerPoints[2].x, this.cornerPoints[2].y, this.cornerPoints[3].x, this.cornerPoints[3].y);
-
-		// calculate the x and y interval to subdivide the source rectangle into
-		// the desired resolution.
-		float stepX = this.DEFAULT_SIZE / (float) (this.GRID_RESOLUTION - 1);
-		float stepY = this.DEFAULT_SIZE / (float) (this.GRID_RESOLUTION - 1);
-
-		// figure out the number of points in the whole grid.
-		int numPoints = this.GRID_RESOLUTION * this.GRID_RESOLUTION;
-
-		// create the array of floats (used for input into the transform method,
-		// it requires a single array of floats)
-		float[] srcPoints = new float[numPoints * 2];
-
-		// calculate the source coordinates of the grid points, as well as the
-		// texture coordinates of the destination points.
-		int i = 0;
-		for (int y = 0; y < this.GRID_RESOLUTION; y++) {
-			for (int x = 0; x < this.GRID_RESOLUTION; x++) {
-//				float percentX = (x * stepX) / this.DEFAULT_SIZE;
-//				float percentY = (y * stepY) / this.DEFAULT_SIZE;
-// TODO: Figure out if we need the u and v components
-//				this.gridPoints[x + y * this.GRID_RESOLUTION].u = this.DEFAULT_SIZE * percentX + this.textureX;
-//				this.gridPoints[x + y * this.GRID_RESOLUTION].v = this.DEFAULT_SIZE * percentY + this.textureY; // y
-																													// *
-																													// stepY;
-
-				srcPoints[i++] = x * stepX;
-				srcPoints[i++] = y * stepY;
-			}
+		if (this.deferTransform()) {
+			return;
 		}
-
-		// create an array for the transformed points (populated by
-		// PerspectiveTransform.transform())
-		float[] transformed = new float[srcPoints.length];
-
-		// perform the transformation.
-		this.transform.transform(srcPoints, 0, transformed, 0, numPoints);
-
-		// convert the array of float values back into x/y pairs in the PVector
-		// class for ease of use later.
-		for (int p = 0; p < numPoints; p++) {
-			this.gridPoints[p].x = transformed[p * 2];
-			this.gridPoints[p].y = transformed[p * 2 + 1];
+		
+		// Work out the transform from the unit square to our corners, and back
+		Homography.squareToQuad(this.cornerPoints[0].x, this.cornerPoints[0].y, this.cornerPoints[1].x, this.cornerPoints[1].y, 
+								this.cornerPoints[2].x, this.cornerPoints[2].y, this.cornerPoints[3].x, this.cornerPoints[3].y, this.transform);
+		this.convex = this.isConvex() && Homography.invert(this.transform, this.inverseTransform);
+		
+		// Each corner's q is 1/w at that corner, which is what makes
+		//  plain screen space interpolation come out perspective correct
+		if (this.convex) {
+			this.cornerQ[0] = 1 / this.transform[8];
+			this.cornerQ[1] = 1 / (this.transform[6] + this.transform[8]);
+			this.cornerQ[2] = 1 / (this.transform[6] + this.transform[7] + this.transform[8]);
+			this.cornerQ[3] = 1 / (this.transform[7] + this.transform[8]);
 		}
-
-		// Precompute the verticies for use in rendering.
-		int offset = 0;
-		for (int x = 0; x < this.GRID_RESOLUTION - 1; x++) {
-			for (int y = 0; y < this.GRID_RESOLUTION - 1; y++) {
-				offset = x + y * this.GRID_RESOLUTION;
-//TODO: Figure out if this works or not, the copy operation.
-				this.vertexPoints[x][y] = this.gridPoints[offset];//.copyPoint(this.gridPoints[offset]);
-				this.vertexPoints[x+1][y] = this.gridPoints[offset + 1];//.copyPoint(this.gridPoints[offset + 1]);
-
-				offset = x + (y + 1) * this.GRID_RESOLUTION;
-
-				this.vertexPoints[x+1][y+1] = this.gridPoints[offset + 1];// .copyPoint(this.gridPoints[offset + 1]);
-				this.vertexPoints[x][y+1] = this.gridPoints[offset];//.copyPoint(this.gridPoints[offset]);
+		else {
+			Arrays.fill(this.cornerQ, 1);
+		}
+		
+		// Subdivide the unit square into our grid, and push it through the transform.
+		//  vertexPoints shares these, so it's up to date too.
+		float step = 1.0f / (this.GRID_RESOLUTION - 1);
+		for (int y = 0; y < this.GRID_RESOLUTION; y++) {
+			for (int x = 0; x < this.GRID_RESOLUTION; x++) {
+				Homography.apply(this.transform, x * step, y * step, this.gridPoints[x + y * this.GRID_RESOLUTION]);
 			}
 		}
-
-		// keep track of the four transformed corner points for use in
-		// calibration mode.
-		this.cornerPoints[0].x = this.gridPoints[0].x;
-		this.cornerPoints[0].y = this.gridPoints[0].y;
-
-		this.cornerPoints[1].x = this.gridPoints[this.GRID_RESOLUTION - 1].x;
-		this.cornerPoints[1].y = this.gridPoints[this.GRID_RESOLUTION - 1].y;
-
-		this.cornerPoints[2].x = this.gridPoints[this.gridPoints.length - 1].x;
-		this.cornerPoints[2].y = this.gridPoints[this.gridPoints.length - 1].y;
-
-		this.cornerPoints[3].x = this.gridPoints[this.gridPoints.length - this.GRID_RESOLUTION].x;
-		this.cornerPoints[3].y = this.gridPoints[this.gridPoints.length - this.GRID_RESOLUTION].y;
-
-		poly = new Polygon();
-
+		
+		// Reuse the polygon rather than making a new one every time
+		poly.reset();
 		poly.addPoint((int) cornerPoints[0].x, (int) cornerPoints[0].y);
 		poly.addPoint((int) cornerPoints[1].x, (int) cornerPoints[1].y);
 		poly.addPoint((int) cornerPoints[2].x, (int) cornerPoints[2].y);
 		poly.addPoint((int) cornerPoints[3].x, (int) cornerPoints[3].y);
+		
+		this.geometryChanged();
+	}
+	
+	/**
+	 * Checks whether the corners make a convex quad, by making sure
+	 *  every corner turns the same way
+	 * @return Returns true if the quad is convex
+	 */
+	private boolean isConvex() {
+		int positive = 0;
+		int negative = 0;
+		for (int i = 0; i < 4; i++) {
+			PVector a = this.cornerPoints[i];
+			PVector b = this.cornerPoints[(i + 1) % 4];
+			PVector c = this.cornerPoints[(i + 2) % 4];
+			float cross = (b.x - a.x) * (c.y - b.y) - (b.y - a.y) * (c.x - b.x);
+			if (cross > 0) positive++;
+			else if (cross < 0) negative++;
+		}
+		return positive == 4 || negative == 4;
 	}
-
 	
-*/
+	/**
+	 * Get the q values of the corners for projective texturing.
+	 *  These belong to the surface, so don't change them.
+	 * @return Returns the q values, in the same order as the corners
+	 */
+	float[] getCornerQ() {
+		return this.cornerQ;
+	}
 
 	/**
 	 * Translate a point on the screen into a point in the surface.
-	 * @param x
-	 * @param y
-	 * @return
+	 * @param x X coordinate on the screen
+	 * @param y Y coordinate on the screen
+	 * @return Returns the point in texture space, from (0,0) at the top left
+	 *  corner to (1,1) at the bottom right. If the quad isn't convex, you get (0,0).
 	 */
-/*	public PVector screenCoordinatesToQuad(float x, float y) {
-		double[] srcPts = new double[2];
-		srcPts[0] = x;
-		srcPts[1] = y;
-
-		double[] dstPts = new double[2];
-
-		try {
-			this.transform.inverseTransform(srcPts, 0, dstPts, 0, 1);
-		} catch (Exception e) {
+	public PVector screenCoordinatesToQuad(float x, float y) {
+		if (!this.convex) {
 			return new PVector(0, 0);
 		}
-
-		return new PVector((float) dstPts[0], (float) dstPts[1]);
+		return Homography.apply(this.inverseTransform, x, y, new PVector());
 	}
-*/
+	
+	/**
+	 * Check if coordinates are inside the surface. For convex quads this
+	 *  just maps the point back into texture space and checks it's in there.
+	 * @param mX X coordinate of the checked point
+	 * @param mY Y coordinate of the checked point
+	 * @return boolean Whether the coordinates are inside the surface
+	 */
+	public boolean isInside(float mX, float mY) {
+		if (!this.convex) {
+			return super.isInside(mX, mY);
+		}
+		float[] m = this.inverseTransform;
+		float w = m[6] * mX + m[7] * mY + m[8];
+		float u = (m[0] * mX + m[1] * mY + m[2]) / w;
+		float v = (m[3] * mX + m[4] * mY + m[5]) / w;
+		return u >= 0 && u <= 1 && v >= 0 && v <= 1;
+	}
+
 	/**
 	 * Render method for rendering while in calibration mode
 	 * @param g
 	 */
 	public void render(PGraphics g) {
+		if (this.MODE == this.MODE_CALIBRATE && !this.isHidden()) {
+			g.beginDraw();
+			this.renderGrid(g);
+			g.endDraw();
+		}
+	}
+	
+	/**
+	 * Draws the calibration grid into a PGraphics that's already drawing
+	 * @param g PGraphics to draw on
+	 */
+	protected void drawGrid(PGraphics g) {
 		if (this.MODE == this.MODE_CALIBRATE && !this.isHidden()) {
 			this.renderGrid(g);
 		}
@@ -455,9 +480,6 @@ public class QuadSurface extends SuperSurface{
 	 * @param g
 	 */
 	private void renderGrid(PGraphics g) {
-		g.beginDraw();
-	
-		
 		if (ccolor == 0) {
 			g.fill(50, 80, 150);
 		} else {
@@ -527,21 +549,25 @@ public class QuadSurface extends SuperSurface{
 			}
 
 		}
-
-		g.endDraw();
 	}
 	
 	public void renderControlPoints(PGraphics g){
 		g.beginDraw();
-		
+		this.drawControlPoints(g);
+		g.endDraw();
+	}
+	
+	/**
+	 * Draws the control points into a PGraphics that's already drawing
+	 * @param g PGraphics to draw on
+	 */
+	protected void drawControlPoints(PGraphics g){
 		if (!this.isLocked) {
 			// Draw the control points.
 			for (int i = 0; i < this.cornerPoints.length; i++) {
 				this.renderCornerPoint(g, this.cornerPoints[i].x, this.cornerPoints[i].y, (this.activePoint == i), i);
 			}
 		}
-		
-		g.endDraw();
 	}
 
 	/**
@@ -0,0 +1,149 @@
+/**
+ * Part of the VMap library: https://github.com/AlanChatham/VMap
+ *
+ * Portions to update to Processing 2 copyright (c) 2014 - Laboratory LLC
+ * Copyright (c) 2011-12 Ixagon AB
+ *
+ * This source is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is available on the World
+ * Wide Web at <http://www.gnu.org/copyleft/gpl.html>. You can also
+ * obtain it by writing to the Free Software Foundation,
+ * Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package VMap;
+
+import processing.opengl.PShader;
+
+import com.jogamp.opengl.GL;
+import com.jogamp.opengl.GL3ES3;
+
+/**
+ * The attribute and uniform locations VMap uses in a shader program.
+ * Looking these up by name is slow, so we do it once per program
+ * and keep the answers around.
+ *
+ * Any location the shader doesn't use comes back as -1, so shaders
+ * only need to declare the inputs they actually care about.
+ *
+ * @author Laboratory
+ */
+final class ShaderLocations {
+
+	// The program these locations belong to. If Processing rebuilds
+	//  the shader, this changes and we have to look everything up again.
+	final int program;
+
+	// Vertex attributes
+	final int position;
+	final int color;
+	final int texLoc;
+	// Corners of the quad a vertex belongs to, used by the bilinear shader
+	final int p0;
+	final int p1;
+	final int p2;
+	final int p3;
+	// Shake of the surface a vertex belongs to
+	final int shake;
+	// Where the keyframes of a vertex's surface start, see Timeline
+	final int track;
+
+	// Uniforms
+	// 1 if the bound texture is stored upside down (framebuffer textures are)
+	final int texFlipY;
+	// Maps our canvas coordinates into the output being drawn, keystone and all
+	final int outputTransform;
+	// Where the output is in the framebuffer, and its edge blending
+	final int outputViewport;
+	final int blendWidths;
+	final int blendGamma;
+	final int blendCurve;
+	// Bezier patch the bezierPatch shader works the mesh out from
+	final int patchPoints;
+	final int patchForce;
+	final int patchRes;
+	final int canvasHalf;
+	// Animation clock, in seconds, and how far the camera is from the
+	//  canvas, for turning shake into the perspective it used to have
+	final int time;
+	final int eyeDistance;
+	// Keyframe texture and playhead, see Timeline
+	final int tracks;
+	final int timelineTime;
+
+	/**
+	 * Looks up all the locations in a shader.
+	 *  The shader needs to be bound (or have been bound before),
+	 *  since Processing doesn't build the program until then.
+	 * @param gl OpenGL context
+	 * @param shader Shader to look in
+	 */
+	ShaderLocations(GL3ES3 gl, PShader shader){
+		this.program = shader.glProgram;
+		this.position = gl.glGetAttribLocation(program, "position");
+		this.color = gl.glGetAttribLocation(program, "color");
+		this.texLoc = gl.glGetAttribLocation(program, "texLoc");
+		this.p0 = gl.glGetAttribLocation(program, "p0");
+		this.p1 = gl.glGetAttribLocation(program, "p1");
+		this.p2 = gl.glGetAttribLocation(program, "p2");
+		this.p3 = gl.glGetAttribLocation(program, "p3");
+		this.shake = gl.glGetAttribLocation(program, "shake");
+		this.track = gl.glGetAttribLocation(program, "track");
+		this.texFlipY = gl.glGetUniformLocation(program, "texFlipY");
+		this.outputTransform = gl.glGetUniformLocation(program, "outputTransform");
+		this.outputViewport = gl.glGetUniformLocation(program, "outputViewport");
+		this.blendWidths = gl.glGetUniformLocation(program, "blendWidths");
+		this.blendGamma = gl.glGetUniformLocation(program, "blendGamma");
+		this.blendCurve = gl.glGetUniformLocation(program, "blendCurve");
+		this.patchPoints = gl.glGetUniformLocation(program, "patchPoints");
+		this.patchForce = gl.glGetUniformLocation(program, "patchForce");
+		this.patchRes = gl.glGetUniformLocation(program, "patchRes");
+		this.canvasHalf = gl.glGetUniformLocation(program, "canvasHalf");
+		this.time = gl.glGetUniformLocation(program, "time");
+		this.eyeDistance = gl.glGetUniformLocation(program, "eyeDistance");
+		this.tracks = gl.glGetUniformLocation(program, "tracks");
+		this.timelineTime = gl.glGetUniformLocation(program, "timelineTime");
+	}
+
+	/**
+	 * Points all the attributes this shader uses at the currently bound VBO,
+	 *  which needs to be laid out like VertexStaging
+	 * @param gl OpenGL context
+	 */
+	void setupVertexAttributes(GL3ES3 gl){
+		attribute(gl, position, 3, VertexStaging.POSITION_OFFSET);
+		attribute(gl, color, 4, VertexStaging.COLOR_OFFSET);
+		attribute(gl, texLoc, 3, VertexStaging.TEXTURE_OFFSET);
+		attribute(gl, p0, 2, VertexStaging.CORNER_OFFSET);
+		attribute(gl, p1, 2, VertexStaging.CORNER_OFFSET + 2);
+		attribute(gl, p2, 2, VertexStaging.CORNER_OFFSET + 4);
+		attribute(gl, p3, 2, VertexStaging.CORNER_OFFSET + 6);
+		attribute(gl, shake, 4, VertexStaging.SHAKE_OFFSET);
+		attribute(gl, track, 1, VertexStaging.TRACK_OFFSET);
+	}
+
+	/**
+	 * Sets up a single vertex attribute, if the shader uses it
+	 * @param gl OpenGL context
+	 * @param location Attribute location, -1 if unused
+	 * @param size Number of floats in the attribute
+	 * @param offset Offset of the attribute in the vertex, in floats
+	 */
+	private static void attribute(GL3ES3 gl, int location, int size, int offset){
+		if (location < 0){
+			return;
+		}
+		gl.glVertexAttribPointer(location, size, GL.GL_FLOAT, false,
+				                 VertexStaging.FLOATS_PER_VERTEX * Float.BYTES, (long) offset * Float.BYTES);
+		gl.glEnableVertexAttribArray(location);
+	}
+}
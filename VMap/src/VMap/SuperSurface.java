@@ -54,6 +54,7 @@ public abstract class SuperSurface{
 	
 	public final static int QUAD = 0;
 	public final static int BEZIER = 1;
+	public final static int MESH = 2;
 	
 	public final static int CLOCKWISE = 0;
 	public final static int COUNTERCLOCKWISE = 1;
@@ -71,11 +72,17 @@ public abstract class SuperSurface{
 	protected Polygon poly = new Polygon();
 
 	protected float currentZ;
-	protected boolean shaking;
-	protected float shakeStrength;
-	protected int shakeSpeed;
-	protected float shakeAngle;
-	protected int fallOfSpeed;
+	
+	// Shaking is worked out from these and the time, on the graphics card
+	//  (see VMap.getTime()), so nothing needs updating while it happens.
+	//  Amplitude is in pixels of Z, frequency in Hz, falloff per second,
+	//  and the start time in VMap.getTime() seconds.
+	protected float shakeAmplitude;
+	protected float shakeFrequency;
+	protected float shakeFalloff;
+	protected float shakeStart;
+	// Goes up whenever the shake settings change
+	protected int animationVersion;
 
 	protected boolean hidden = false;
 	
@@ -86,6 +93,22 @@ public abstract class SuperSurface{
 	// Allow each SuperSurface to have it's own shader, just in case
 	protected PShader shader;
 	
+	// How this surface's texture gets sampled, see VMap.setTextureFilter()
+	protected int textureFilter = VMap.FILTER_DEFAULT;
+	
+	// Which of VMap's outputs this surface shows up in, see VMap.addOutput()
+	public final static int ALL_OUTPUTS = -1;
+	protected int output = ALL_OUTPUTS;
+	
+	// Goes up every time the surface's geometry changes, so VMap
+	//  knows when it has to rebuild this surface's vertices
+	protected int geometryVersion;
+	
+	// How many edits are open, see beginEdit(), and whether
+	//  anything changed that needs recomputing when they're done
+	private int editDepth = 0;
+	private boolean transformPending = false;
+	
 	// Default constructor
 	/**
 	 * Default constructor
@@ -97,7 +120,7 @@ public abstract class SuperSurface{
 	/**
 	 * Constructor used to create a new Surface. This should always be used when creating a new surface.
 	 * @param fileName is the image texture to use
-	 * @param type is either QUAD(0) or BEZIER(1) because Ixagon doesn't know what an abstract class is
+	 * @param type is QUAD(0), BEZIER(1) or MESH(2) because Ixagon doesn't know what an abstract class is
 	 * @param parent is the processing applet for some reason
 	 * @param ks is the VMap this belongs to, again, why?
 	 * @param x is the x position
@@ -128,7 +151,7 @@ public abstract class SuperSurface{
 	}
 	/**
 	 * Constructor used to create a new Surface. This should always be used when creating a new surface.
-	 * @param type is either QUAD(0) or BEZIER(1) because Ixagon doesn't know what an abstract class is
+	 * @param type is QUAD(0), BEZIER(1) or MESH(2) because Ixagon doesn't know what an abstract class is
 	 * @param parent is the processing applet for some reason
 	 * @param ks is the VMap this belongs to, again, why?
 	 * @param x is the x position
@@ -171,6 +194,40 @@ public abstract class SuperSurface{
 	public PShader getShader(){
 		return this.shader;
 	}
+	
+	/**
+	 * Sets how this surface's texture gets sampled, overriding VMap's setting.
+	 *  Use VMap.FILTER_NEAREST, FILTER_LINEAR, FILTER_TRILINEAR or FILTER_AUTO,
+	 *  or VMap.FILTER_DEFAULT to go back to whatever VMap uses.
+	 * @param filter Filter to use
+	 */
+	public void setTextureFilter(int filter){
+		this.textureFilter = filter;
+	}
+	
+	/**
+	 * Gets how this surface's texture gets sampled
+	 * @return Returns the filter, VMap.FILTER_DEFAULT if it follows VMap's setting
+	 */
+	public int getTextureFilter(){
+		return this.textureFilter;
+	}
+	
+	/**
+	 * Sets which output this surface shows up in, if VMap has any
+	 * @param output Index of the output in VMap.getOutputs(), or ALL_OUTPUTS (the default)
+	 */
+	public void setOutput(int output){
+		this.output = output;
+	}
+	
+	/**
+	 * Gets which output this surface shows up in
+	 * @return Returns the output's index, or ALL_OUTPUTS
+	 */
+	public int getOutput(){
+		return this.output;
+	}
 
 	/**
 	 * Constructor for loading a surface from file
@@ -252,33 +309,130 @@ public abstract class SuperSurface{
 	}
 	
 	/**
-	 * Set parameters for shaking the surface.
+	 * Set parameters for shaking the surface, starting now.
+	 *  These used to be stepped once per frame, so they get converted
+	 *  as if we were running at 60 frames per second.
 	 * @param strength max Z-displacement
-	 * @param speed vibration speed
-	 * @param fallOfSpeed 1-1000 == how fast strength is diminished
+	 * @param speed vibration speed, in thousandths of a radian per frame
+	 * @param fallOfSpeed 1-1000 == how fast strength is diminished (1000 stops it right away)
 	 */
 	public void setShake(int strength, int speed, int fallOfSpeed){
 		if(fallOfSpeed < 1) fallOfSpeed = 1;
-		if(fallOfSpeed > 1000) fallOfSpeed = 1000;
-		shaking = true;
-		this.shakeStrength = strength;
-		this.shakeSpeed = speed;
-		this.fallOfSpeed = 1000-fallOfSpeed;
-		shakeAngle = 0;
+		if(fallOfSpeed >= 1000){
+			this.stopShake();
+			return;
+		}
+		float frequency = (float) (speed / 1000.0 * 60 / (2 * Math.PI));
+		float falloff = (float) (-60 * Math.log((1000 - fallOfSpeed) / 1000.0));
+		this.startShake(strength, frequency, falloff);
 	}
 	
 	/**
-	 * Tells surface to shake (will only do something if setShake has been called quite recently)
+	 * Shake the surface, starting now. See setShake(float, float, float, float).
+	 * @param amplitude max Z-displacement, in pixels
+	 * @param frequency vibrations per second
+	 * @param falloff how fast it dies down, 0 shakes forever
+	 */
+	public void startShake(float amplitude, float frequency, float falloff){
+		this.setShake(amplitude, frequency, falloff, (sm != null) ? sm.getTime() : 0);
+	}
+	
+	/**
+	 * Set parameters for shaking the surface. The displacement at a time t is
+	 *  amplitude * e^(-falloff * (t - startTime)) * sin(2 * PI * frequency * (t - startTime)),
+	 *  worked out on the graphics card, so this costs nothing per frame.
+	 * @param amplitude max Z-displacement, in pixels
+	 * @param frequency vibrations per second
+	 * @param falloff how fast it dies down, 0 shakes forever
+	 * @param startTime when to start, in VMap.getTime() seconds
+	 */
+	public void setShake(float amplitude, float frequency, float falloff, float startTime){
+		this.shakeAmplitude = amplitude;
+		this.shakeFrequency = frequency;
+		this.shakeFalloff = Math.max(falloff, 0);
+		this.shakeStart = startTime;
+		this.animationVersion++;
+	}
+	
+	/**
+	 * Stops any shaking
+	 */
+	public void stopShake(){
+		this.setShake(0, 0, 0, 0);
+		this.currentZ = 0;
+	}
+	
+	/**
+	 * See if the surface is still shaking (or waiting to start)
+	 * @param time Time to check, in VMap.getTime() seconds
+	 * @return Returns true until the shake dies down under a pixel
+	 */
+	public boolean isShaking(float time){
+		if (this.shakeAmplitude == 0){
+			return false;
+		}
+		float t = time - this.shakeStart;
+		return t < 0 || Math.abs(this.shakeAmplitude) * Math.exp(-this.shakeFalloff * t) >= 1;
+	}
+	
+	/**
+	 * Works out the Z-displacement of the shake, the same way the shaders do
+	 * @param time Time to check, in VMap.getTime() seconds
+	 * @return Returns the displacement, in pixels
+	 */
+	public float getShakeOffset(float time){
+		float t = time - this.shakeStart;
+		if (this.shakeAmplitude == 0 || t < 0){
+			return 0;
+		}
+		return (float) (this.shakeAmplitude * Math.exp(-this.shakeFalloff * t) * Math.sin(2 * Math.PI * this.shakeFrequency * t));
+	}
+	
+	/**
+	 * @return Returns the max Z-displacement of the shake, in pixels
+	 */
+	public float getShakeAmplitude(){
+		return this.shakeAmplitude;
+	}
+	
+	/**
+	 * @return Returns the vibrations per second of the shake
+	 */
+	public float getShakeFrequency(){
+		return this.shakeFrequency;
+	}
+	
+	/**
+	 * @return Returns how fast the shake dies down
+	 */
+	public float getShakeFalloff(){
+		return this.shakeFalloff;
+	}
+	
+	/**
+	 * @return Returns when the shake starts, in VMap.getTime() seconds
+	 */
+	public float getShakeStart(){
+		return this.shakeStart;
+	}
+	
+	/**
+	 * Get the animation version of this surface. It changes every time
+	 *  the shake settings do, like getGeometryVersion() does for the geometry.
+	 * @return int animation version
+	 */
+	public int getAnimationVersion(){
+		return this.animationVersion;
+	}
+	
+	/**
+	 * Updates the Z-displacement for the Processing renderers (render(g, tex)),
+	 *  which can't work it out on the graphics card.
+	 *  VMap's own drawing doesn't need this.
 	 */
 	public void shake(){
-		if(shaking){
-			shakeAngle += (float)shakeSpeed/1000;
-			shakeStrength *= ((float)this.fallOfSpeed/1000);
-			float shakeZ = (float) (Math.sin(shakeAngle)*shakeStrength);
-			this.setZ(shakeZ);
-			if(shakeStrength < 1){
-				shaking = false;
-			}
+		if (this.shakeAmplitude != 0 && sm != null){
+			this.setZ(this.getShakeOffset(sm.getTime()));
 		}
 	}
 	
@@ -488,8 +642,97 @@ public abstract class SuperSurface{
 		this.updateTransform();
 	}
 	
+	/**
+	 * Recomputes the surface after its corners, control points or resolution
+	 *  changed. Subclasses have to do two things here:
+	 *  first return early if deferTransform() says an edit is open,
+	 *  then call geometryChanged() once the surface is up to date.
+	 *  VMap only rebuilds a surface's vertices, and the hit-testing index only
+	 *  picks up its new bounds, when the geometry version changes, so a
+	 *  surface that skips geometryChanged() will look like it never moved.
+	 */
 	protected abstract void updateTransform();
 	
+	/**
+	 * Starts a batch of changes. Until the matching commitEdit(), changing
+	 *  corners or control points doesn't recompute the surface, it just
+	 *  remembers that it has to. Edits can be nested.
+	 */
+	public void beginEdit(){
+		this.editDepth++;
+	}
+	
+	/**
+	 * Finishes a batch of changes started with beginEdit(). Once the
+	 *  outermost edit is done, the surface gets recomputed once, if anything changed.
+	 */
+	public void commitEdit(){
+		if (this.editDepth == 0){
+			return;
+		}
+		this.editDepth--;
+		if (this.editDepth == 0 && this.transformPending){
+			this.transformPending = false;
+			this.updateTransform();
+		}
+	}
+	
+	/**
+	 * See if an edit is open on this surface
+	 * @return Returns true between beginEdit() and the matching commitEdit()
+	 */
+	public boolean isEditing(){
+		return this.editDepth > 0;
+	}
+	
+	/**
+	 * Subclasses call this first thing in updateTransform(). If an edit
+	 *  is open, it remembers the surface needs recomputing for commitEdit().
+	 * @return Returns true if updateTransform() should skip the work for now
+	 */
+	protected boolean deferTransform(){
+		if (this.editDepth > 0){
+			this.transformPending = true;
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Moves the whole surface
+	 * @param dx Distance to move along X
+	 * @param dy Distance to move along Y
+	 */
+	public void translate(float dx, float dy){
+		for (int i = 0; i < this.cornerPoints.length; i++){
+			this.cornerPoints[i].x += dx;
+			this.cornerPoints[i].y += dy;
+		}
+		this.updateTransform();
+	}
+	
+	/**
+	 * Marks the surface's geometry as changed. Subclasses call this
+	 *  from updateTransform(), which runs after every change to the
+	 *  corners, control points or resolution.
+	 */
+	protected void geometryChanged(){
+		this.geometryVersion++;
+		if (this.sm != null){
+			this.sm.surfaceMoved(this);
+		}
+	}
+	
+	/**
+	 * Get the geometry version of this surface. It changes every time
+	 *  a corner or control point moves, or the resolution changes, so
+	 *  you can compare it to an older value to see if anything moved.
+	 * @return int geometry version
+	 */
+	public int getGeometryVersion(){
+		return this.geometryVersion;
+	}
+	
 	/**
 	 * Get the average center point of the surface
 	 * @return PVector center point
@@ -560,6 +803,31 @@ public abstract class SuperSurface{
 	 */
 	public abstract void renderControlPoints(PGraphics g);
 	
+	/**
+	 * Same as render(g), but for a PGraphics you've already called beginDraw() on,
+	 *  so a bunch of surfaces can share one beginDraw()/endDraw().
+	 *  The built-in surfaces override this to draw straight into g. By default
+	 *  it pauses the shared drawing and falls back to render(g), which does its
+	 *  own beginDraw()/endDraw(), so surfaces that only have render(g) still work.
+	 * @param g PGraphics to draw on
+	 */
+	protected void drawGrid(PGraphics g){
+		g.endDraw();
+		this.render(g);
+		g.beginDraw();
+	}
+	
+	/**
+	 * Same as renderControlPoints(g), but for a PGraphics you've already called beginDraw() on.
+	 *  By default it falls back to renderControlPoints(g), like drawGrid() does.
+	 * @param g PGraphics to draw on
+	 */
+	protected void drawControlPoints(PGraphics g){
+		g.endDraw();
+		this.renderControlPoints(g);
+		g.beginDraw();
+	}
+	
 	/**
 	 * See which type this surface is
 	 * @return
@@ -0,0 +1,351 @@
+/**
+ * Part of the VMap library: https://github.com/AlanChatham/VMap
+ *
+ * Portions to update to Processing 2 copyright (c) 2014 - Laboratory LLC
+ * Copyright (c) 2011-12 Ixagon AB
+ *
+ * This source is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is available on the World
+ * Wide Web at <http://www.gnu.org/copyleft/gpl.html>. You can also
+ * obtain it by writing to the Free Software Foundation,
+ * Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package VMap;
+
+import java.awt.Polygon;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import processing.core.PVector;
+
+/**
+ * A uniform grid over the surfaces, so mouse handling only has to look
+ * at the surfaces near the mouse instead of every single one.
+ *
+ * Each surface goes into every cell its bounds touch. The bounds cover
+ * the outline, the corners, the control points of Bezier surfaces and
+ * the lattice of mesh surfaces, so anything you can grab with the mouse
+ * is in there.
+ *
+ * Surfaces that move just get marked (see markMoved()), and are put back
+ * in the right cells the next time someone asks a question, so dragging
+ * a surface around doesn't re-index it on every single change.
+ *
+ * Results come back top first, in the order surfaces are drawn.
+ *
+ * @author Laboratory
+ */
+final class SurfaceIndex {
+
+	/**
+	 * What we know about one surface
+	 */
+	private static final class Entry {
+		final SuperSurface surface;
+		// Drawing order, bigger is on top
+		int order;
+		float minX, minY, maxX, maxY;
+		// Cells the surface is in right now
+		int cellX0, cellY0, cellX1, cellY1;
+		boolean moved;
+		// Too big to put in cells, see MAX_CELLS
+		boolean oversized;
+		// Last query that saw this entry, so it only gets reported once
+		int queryStamp;
+
+		Entry(SuperSurface surface){
+			this.surface = surface;
+		}
+	}
+
+	// Surfaces covering more cells than this (someone dragged a corner way
+	//  off screen) go in one list that every query checks instead
+	private static final int MAX_CELLS = 1024;
+
+	private final float cellSize;
+	private final HashMap<Long, ArrayList<Entry>> cells = new HashMap<Long, ArrayList<Entry>>();
+	private final IdentityHashMap<SuperSurface, Entry> entries = new IdentityHashMap<SuperSurface, Entry>();
+	private final ArrayList<Entry> oversizedEntries = new ArrayList<Entry>();
+	private final ArrayList<Entry> movedEntries = new ArrayList<Entry>();
+	private final ArrayList<Entry> found = new ArrayList<Entry>();
+	private int queryStamp;
+
+	private static final Comparator<Entry> TOP_FIRST = new Comparator<Entry>(){
+		public int compare(Entry a, Entry b){
+			return Integer.compare(b.order, a.order);
+		}
+	};
+
+	/**
+	 * Create an empty index
+	 * @param cellSize Width and height of a grid cell, in pixels
+	 */
+	SurfaceIndex(float cellSize){
+		this.cellSize = cellSize;
+	}
+
+	/**
+	 * Throws everything out and indexes a list of surfaces
+	 * @param list Surfaces in drawing order
+	 */
+	void rebuild(List<SuperSurface> list){
+		cells.clear();
+		entries.clear();
+		oversizedEntries.clear();
+		movedEntries.clear();
+		for (int i = 0; i < list.size(); i++){
+			Entry entry = new Entry(list.get(i));
+			entry.order = i;
+			entries.put(entry.surface, entry);
+			insert(entry);
+		}
+	}
+
+	/**
+	 * @return Returns the number of surfaces in the index
+	 */
+	int size(){
+		return entries.size();
+	}
+
+	/**
+	 * Tells the index a surface moved. Surfaces that aren't indexed are ignored.
+	 *  This is safe to call from the threads VMap.commitEdits() uses.
+	 * @param surface Surface that moved
+	 */
+	synchronized void markMoved(SuperSurface surface){
+		Entry entry = entries.get(surface);
+		if (entry != null && !entry.moved){
+			entry.moved = true;
+			movedEntries.add(entry);
+		}
+	}
+
+	/**
+	 * Finds the surfaces whose bounds come within some distance of a point
+	 * @param x X of the point
+	 * @param y Y of the point
+	 * @param radius How close the bounds have to be, 0 for just the surfaces over the point
+	 * @param out List to put the surfaces in, which gets cleared first
+	 * @return Returns out, top surface first
+	 */
+	ArrayList<SuperSurface> queryPoint(float x, float y, float radius, ArrayList<SuperSurface> out){
+		return queryRect(x - radius, y - radius, x + radius, y + radius, out);
+	}
+
+	/**
+	 * Finds the surfaces whose bounds overlap a rectangle
+	 * @param x0 Left edge
+	 * @param y0 Top edge
+	 * @param x1 Right edge
+	 * @param y1 Bottom edge
+	 * @param out List to put the surfaces in, which gets cleared first
+	 * @return Returns out, top surface first
+	 */
+	ArrayList<SuperSurface> queryRect(float x0, float y0, float x1, float y1, ArrayList<SuperSurface> out){
+		out.clear();
+		collect(x0, y0, x1, y1);
+		for (int i = 0; i < found.size(); i++){
+			out.add(found.get(i).surface);
+		}
+		return out;
+	}
+
+	/**
+	 * Finds the closest corner point of any surface but one
+	 * @param x X of the point to search from
+	 * @param y Y of the point to search from
+	 * @param maxDistance Corners have to be closer than this
+	 * @param exclude Surface to skip, usually the one the point belongs to
+	 * @return Returns the closest corner, or null if none are close enough
+	 */
+	PVector nearestCorner(float x, float y, float maxDistance, SuperSurface exclude){
+		collect(x - maxDistance, y - maxDistance, x + maxDistance, y + maxDistance);
+		PVector closest = null;
+		float closestDist = maxDistance;
+		for (int i = 0; i < found.size(); i++){
+			SuperSurface ss = found.get(i).surface;
+			if (ss == exclude){
+				continue;
+			}
+			PVector[] corners = ss.getCornerPoints();
+			for (int c = 0; c < corners.length; c++){
+				float dx = corners[c].x - x;
+				float dy = corners[c].y - y;
+				float dist = (float) Math.sqrt(dx * dx + dy * dy);
+				if (dist < closestDist){
+					closestDist = dist;
+					closest = corners[c];
+				}
+			}
+		}
+		return closest;
+	}
+
+	/**
+	 * Fills found with the entries whose bounds overlap a rectangle, top first
+	 */
+	private void collect(float x0, float y0, float x1, float y1){
+		flushMoved();
+		found.clear();
+		queryStamp++;
+		collect(oversizedEntries, x0, y0, x1, y1);
+		int cx0 = cell(x0), cy0 = cell(y0), cx1 = cell(x1), cy1 = cell(y1);
+		if ((long) (cx1 - cx0 + 1) * (cy1 - cy0 + 1) > cells.size()){
+			// Asking about a huge area, so just go through everything we have
+			for (ArrayList<Entry> list : cells.values()){
+				collect(list, x0, y0, x1, y1);
+			}
+		}
+		else {
+			for (int cy = cy0; cy <= cy1; cy++){
+				for (int cx = cx0; cx <= cx1; cx++){
+					ArrayList<Entry> list = cells.get(key(cx, cy));
+					if (list != null){
+						collect(list, x0, y0, x1, y1);
+					}
+				}
+			}
+		}
+		Collections.sort(found, TOP_FIRST);
+	}
+
+	/**
+	 * Adds the entries in one list that overlap a rectangle to found,
+	 *  skipping any we already saw this query
+	 */
+	private void collect(ArrayList<Entry> list, float x0, float y0, float x1, float y1){
+		for (int i = 0; i < list.size(); i++){
+			Entry entry = list.get(i);
+			if (entry.queryStamp == queryStamp){
+				continue;
+			}
+			entry.queryStamp = queryStamp;
+			if (entry.maxX >= x0 && entry.minX <= x1 && entry.maxY >= y0 && entry.minY <= y1){
+				found.add(entry);
+			}
+		}
+	}
+
+	/**
+	 * Puts the surfaces that moved since the last query back in the right cells
+	 */
+	private void flushMoved(){
+		for (int i = 0; i < movedEntries.size(); i++){
+			Entry entry = movedEntries.get(i);
+			removeFromCells(entry);
+			insert(entry);
+			entry.moved = false;
+		}
+		movedEntries.clear();
+	}
+
+	/**
+	 * Works out an entry's bounds and adds it to the cells they touch
+	 */
+	private void insert(Entry entry){
+		SuperSurface ss = entry.surface;
+		entry.minX = entry.minY = Float.MAX_VALUE;
+		entry.maxX = entry.maxY = -Float.MAX_VALUE;
+		PVector[] corners = ss.getCornerPoints();
+		for (int i = 0; i < corners.length; i++){
+			grow(entry, corners[i].x, corners[i].y);
+		}
+		Polygon poly = ss.getPolygon();
+		for (int i = 0; i < poly.npoints; i++){
+			grow(entry, poly.xpoints[i], poly.ypoints[i]);
+		}
+		if (ss instanceof BezierSurface){
+			BezierSurface bs = (BezierSurface) ss;
+			for (int i = 0; i < 8; i++){
+				grow(entry, bs.getBezierPoint(i).x, bs.getBezierPoint(i).y);
+			}
+		}
+		if (ss instanceof MeshSurface){
+			// Points inside the lattice can be dragged past the outline
+			PVector[] points = ((MeshSurface) ss).getMeshPoints();
+			for (int i = 0; i < points.length; i++){
+				grow(entry, points[i].x, points[i].y);
+			}
+		}
+		if (entry.minX > entry.maxX){
+			// Nothing to go on, so it's nowhere
+			entry.cellX0 = entry.cellY0 = 0;
+			entry.cellX1 = entry.cellY1 = -1;
+			return;
+		}
+
+		entry.cellX0 = cell(entry.minX);
+		entry.cellY0 = cell(entry.minY);
+		entry.cellX1 = cell(entry.maxX);
+		entry.cellY1 = cell(entry.maxY);
+		if ((long) (entry.cellX1 - entry.cellX0 + 1) * (entry.cellY1 - entry.cellY0 + 1) > MAX_CELLS){
+			entry.oversized = true;
+			oversizedEntries.add(entry);
+			return;
+		}
+		for (int cy = entry.cellY0; cy <= entry.cellY1; cy++){
+			for (int cx = entry.cellX0; cx <= entry.cellX1; cx++){
+				Long key = key(cx, cy);
+				ArrayList<Entry> list = cells.get(key);
+				if (list == null){
+					list = new ArrayList<Entry>(4);
+					cells.put(key, list);
+				}
+				list.add(entry);
+			}
+		}
+	}
+
+	/**
+	 * Takes an entry out of all the cells it's in
+	 */
+	private void removeFromCells(Entry entry){
+		if (entry.oversized){
+			entry.oversized = false;
+			oversizedEntries.remove(entry);
+			return;
+		}
+		for (int cy = entry.cellY0; cy <= entry.cellY1; cy++){
+			for (int cx = entry.cellX0; cx <= entry.cellX1; cx++){
+				Long key = key(cx, cy);
+				ArrayList<Entry> list = cells.get(key);
+				if (list != null){
+					list.remove(entry);
+					if (list.isEmpty()){
+						cells.remove(key);
+					}
+				}
+			}
+		}
+	}
+
+	private static void grow(Entry entry, float x, float y){
+		if (x < entry.minX) entry.minX = x;
+		if (x > entry.maxX) entry.maxX = x;
+		if (y < entry.minY) entry.minY = y;
+		if (y > entry.maxY) entry.maxY = y;
+	}
+
+	private int cell(float v){
+		return (int) Math.floor(v / cellSize);
+	}
+
+	private static Long key(int cx, int cy){
+		return ((long) cx << 32) | (cy & 0xffffffffL);
+	}
+}
@@ -0,0 +1,363 @@
+/**
+ * Part of the VMap library: https://github.com/AlanChatham/VMap
+ *
+ * Portions to update to Processing 2 copyright (c) 2014 - Laboratory LLC
+ * Copyright (c) 2011-12 Ixagon AB
+ *
+ * This source is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is available on the World
+ * Wide Web at <http://www.gnu.org/copyleft/gpl.html>. You can also
+ * obtain it by writing to the Free Software Foundation,
+ * Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package VMap;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+import processing.core.PVector;
+
+import com.jogamp.opengl.GL;
+import com.jogamp.opengl.GL3ES3;
+
+/**
+ * The mesh of a BezierSurface or a MeshSurface, kept on the graphics card
+ * in its own vertex and index buffers so the whole surface goes out in
+ * one draw call.
+ *
+ * The vertices only get rebuilt when the surface's geometry or shake changes,
+ * and the indices only when its resolution does, so a surface that
+ * isn't being dragged around doesn't send anything up at all.
+ *
+ * Vertices are laid out like VertexStaging, with q = 1 since the mesh
+ * is already fine enough that each triangle can be mapped on its own.
+ *
+ * If a Bezier surface is evaluated on the GPU, the vertices are just a unit
+ * grid (only the texture coordinates are filled in) that the bezierPatch
+ * shader moves into place, so they only change with the resolution.
+ *
+ * A MeshSurface gets one vertex per lattice point, in the same order as
+ * its lattice. Dragging one point around only changes that vertex, so
+ * only the vertices that actually moved get rewritten and sent up.
+ *
+ * @author Laboratory
+ */
+final class SurfaceMesh {
+
+	final SuperSurface surface;
+
+	private final VertexStaging vertices = new VertexStaging(0);
+	private IntBuffer indices;
+	private int indexCount;
+
+	private int vbo;
+	private int ibo;
+
+	// What the buffers were last built from
+	private int builtVersion;
+	private int builtAnimationVersion;
+	private int builtRes = -1;
+	private int builtWidth;
+	private int builtHeight;
+	private boolean builtOnGPU;
+
+	// Last frame this mesh got drawn, so VMap can let go of unused ones
+	long lastUsedFrame;
+
+	// Past this many separate runs of moved vertices, one big upload is cheaper
+	private static final int MAX_PARTIAL_RUNS = 16;
+
+	/**
+	 * Create a mesh for a surface. Nothing goes to the graphics card until update().
+	 * @param surface Surface to build the mesh from
+	 */
+	SurfaceMesh(SuperSurface surface){
+		this.surface = surface;
+	}
+
+	/**
+	 * Rebuilds and sends up the mesh, if the surface changed since last time
+	 * @param gl OpenGL context
+	 * @param canvasWidth Width of the sketch, for converting to OpenGL coordinates
+	 * @param canvasHeight Height of the sketch, for converting to OpenGL coordinates
+	 * @param onGPU True if the bezierPatch shader works out where the vertices go
+	 * @return Returns true if anything got sent up
+	 */
+	boolean update(GL3ES3 gl, int canvasWidth, int canvasHeight, boolean onGPU){
+		int res = getLayout();
+		int version = surface.getGeometryVersion();
+		int animationVersion = surface.getAnimationVersion();
+		if (vbo != 0 && res == builtRes && onGPU == builtOnGPU && animationVersion == builtAnimationVersion){
+			// The unit grid doesn't care where the surface is
+			if (onGPU || (version == builtVersion && canvasWidth == builtWidth && canvasHeight == builtHeight)){
+				return false;
+			}
+			// Same lattice, so just send up the points that moved
+			if (surface instanceof MeshSurface && canvasWidth == builtWidth && canvasHeight == builtHeight
+					&& updateMovedPoints(gl, canvasWidth / 2, canvasHeight / 2)){
+				builtVersion = version;
+				return true;
+			}
+		}
+
+		if (vbo == 0){
+			int[] names = new int[2];
+			gl.glGenBuffers(2, names, 0);
+			vbo = names[0];
+			ibo = names[1];
+		}
+
+		// The shake is the same for every vertex of the surface
+		vertices.setShake(surface.getShakeAmplitude(), surface.getShakeFrequency(),
+				          surface.getShakeFalloff(), surface.getShakeStart());
+		if (surface instanceof MeshSurface){
+			buildLattice(canvasWidth / 2, canvasHeight / 2);
+		}
+		else if (onGPU){
+			buildUnitGrid(surface.getRes());
+		}
+		else {
+			buildVertices(surface.getRes(), canvasWidth / 2, canvasHeight / 2);
+		}
+		vertices.upload(gl, vbo);
+
+		if (res != builtRes){
+			if (surface instanceof MeshSurface){
+				MeshSurface mesh = (MeshSurface) surface;
+				buildIndices(mesh.getColumns(), mesh.getRows(), 1, mesh.getColumns());
+			}
+			else {
+				// Bezier vertices go down each column first
+				int points = surface.getRes() + 1;
+				buildIndices(points, points, points, 1);
+			}
+			gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, ibo);
+			gl.glBufferData(GL.GL_ELEMENT_ARRAY_BUFFER, (long) indexCount * Integer.BYTES, indices, GL.GL_STATIC_DRAW);
+		}
+
+		builtRes = res;
+		builtVersion = version;
+		builtAnimationVersion = animationVersion;
+		builtWidth = canvasWidth;
+		builtHeight = canvasHeight;
+		builtOnGPU = onGPU;
+		return true;
+	}
+
+	/**
+	 * Works out a number that changes whenever the vertex and index
+	 *  layout does, so update() knows when it has to start over
+	 * @return Returns the resolution, or the lattice size for a MeshSurface
+	 */
+	private int getLayout(){
+		if (surface instanceof MeshSurface){
+			MeshSurface mesh = (MeshSurface) surface;
+			return mesh.getColumns() * 65536 + mesh.getRows();
+		}
+		return surface.getRes();
+	}
+
+	/**
+	 * Fills in one vertex per mesh point, converted to OpenGL coordinates
+	 *  the same way VMap converts quad corners
+	 * @param res Resolution of the surface
+	 * @param halfWidth Half the sketch width, rounded down
+	 * @param halfHeight Half the sketch height, rounded down
+	 */
+	private void buildVertices(int res, int halfWidth, int halfHeight){
+		float[] points = ((BezierSurface) surface).getMeshCoordinates();
+		PVector[] corners = surface.getCornerPoints();
+		vertices.setCorners(toX(corners[0].x, halfWidth), toY(corners[0].y, halfHeight),
+				            toX(corners[1].x, halfWidth), toY(corners[1].y, halfHeight),
+				            toX(corners[3].x, halfWidth), toY(corners[3].y, halfHeight),
+				            toX(corners[2].x, halfWidth), toY(corners[2].y, halfHeight));
+
+		vertices.clear();
+		vertices.setVertexCount((res + 1) * (res + 1));
+		vertices.position(0);
+		int k = 0;
+		for (int i = 0; i <= res; i++){
+			for (int j = 0; j <= res; j++){
+				vertices.vertex(toX(points[k], halfWidth), toY(points[k + 1], halfHeight), (float) i / res, (float) j / res, 1.0f);
+				k += 2;
+			}
+		}
+	}
+
+	/**
+	 * Fills in one vertex per lattice point of a MeshSurface
+	 * @param halfWidth Half the sketch width, rounded down
+	 * @param halfHeight Half the sketch height, rounded down
+	 */
+	private void buildLattice(int halfWidth, int halfHeight){
+		MeshSurface mesh = (MeshSurface) surface;
+		PVector[] points = mesh.getMeshPoints();
+		// Nothing the lattice gets drawn with uses the corners
+		vertices.setCorners(0, 0, 0, 0, 0, 0, 0, 0);
+		vertices.clear();
+		vertices.setVertexCount(points.length);
+		vertices.position(0);
+		for (int k = 0; k < points.length; k++){
+			latticeVertex(mesh, k, halfWidth, halfHeight);
+		}
+	}
+
+	/**
+	 * Rewrites the vertices of lattice points that moved since the last
+	 *  upload, and sends up just those, one glBufferSubData per run of
+	 *  neighbors. The staged vertices still hold the old positions,
+	 *  so that's what we compare against.
+	 * @param gl OpenGL context
+	 * @param halfWidth Half the sketch width, rounded down
+	 * @param halfHeight Half the sketch height, rounded down
+	 * @return Returns false if so much moved that a full upload is better,
+	 *  in which case nothing got sent up
+	 */
+	private boolean updateMovedPoints(GL3ES3 gl, int halfWidth, int halfHeight){
+		MeshSurface mesh = (MeshSurface) surface;
+		PVector[] points = mesh.getMeshPoints();
+		if (points.length != vertices.vertexCount()){
+			return false;
+		}
+
+		// Find the runs first, so we don't send anything if it's too many
+		int runs = 0;
+		boolean inRun = false;
+		for (int k = 0; k < points.length; k++){
+			boolean moved = hasMoved(points[k], k, halfWidth, halfHeight);
+			if (moved && !inRun){
+				runs++;
+				if (runs > MAX_PARTIAL_RUNS){
+					return false;
+				}
+			}
+			inRun = moved;
+		}
+
+		int runStart = -1;
+		for (int k = 0; k <= points.length; k++){
+			boolean moved = k < points.length && hasMoved(points[k], k, halfWidth, halfHeight);
+			if (moved){
+				vertices.position(k);
+				latticeVertex(mesh, k, halfWidth, halfHeight);
+				if (runStart == -1){
+					runStart = k;
+				}
+			}
+			else if (runStart != -1){
+				vertices.uploadRange(gl, vbo, runStart, k - runStart);
+				runStart = -1;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Checks if a lattice point is somewhere other than its staged vertex
+	 */
+	private boolean hasMoved(PVector p, int k, int halfWidth, int halfHeight){
+		int i = k * VertexStaging.FLOATS_PER_VERTEX + VertexStaging.POSITION_OFFSET;
+		return vertices.get(i) != toX(p.x, halfWidth) || vertices.get(i + 1) != toY(p.y, halfHeight);
+	}
+
+	/**
+	 * Writes the vertex of one lattice point at the cursor
+	 */
+	private void latticeVertex(MeshSurface mesh, int k, int halfWidth, int halfHeight){
+		int columns = mesh.getColumns();
+		PVector p = mesh.getMeshPoint(k);
+		vertices.vertex(toX(p.x, halfWidth), toY(p.y, halfHeight),
+				        (float) (k % columns) / (columns - 1), (float) (k / columns) / (mesh.getRows() - 1), 1.0f);
+	}
+
+	/**
+	 * Fills in one vertex per mesh point, with only the texture coordinates set
+	 * @param res Resolution of the surface
+	 */
+	private void buildUnitGrid(int res){
+		vertices.setCorners(0, 0, 0, 0, 0, 0, 0, 0);
+		vertices.clear();
+		vertices.setVertexCount((res + 1) * (res + 1));
+		vertices.position(0);
+		for (int i = 0; i <= res; i++){
+			for (int j = 0; j <= res; j++){
+				vertices.vertex(0.0f, 0.0f, (float) i / res, (float) j / res, 1.0f);
+			}
+		}
+	}
+
+	/**
+	 * Makes two triangles for every cell of the mesh
+	 * @param columns Number of points across
+	 * @param rows Number of points down
+	 * @param columnStride How far apart neighboring columns are in the vertices
+	 * @param rowStride How far apart neighboring rows are in the vertices
+	 */
+	private void buildIndices(int columns, int rows, int columnStride, int rowStride){
+		indexCount = (columns - 1) * (rows - 1) * 6;
+		if (indices == null || indices.capacity() < indexCount){
+			indices = ByteBuffer.allocateDirect(indexCount * Integer.BYTES).order(ByteOrder.nativeOrder()).asIntBuffer();
+		}
+		indices.clear();
+		for (int i = 0; i < columns - 1; i++){
+			for (int j = 0; j < rows - 1; j++){
+				int topLeft = i * columnStride + j * rowStride;
+				int topRight = topLeft + columnStride;
+				int bottomLeft = topLeft + rowStride;
+				int bottomRight = topRight + rowStride;
+				indices.put(topLeft).put(topRight).put(bottomRight);
+				indices.put(topLeft).put(bottomRight).put(bottomLeft);
+			}
+		}
+		indices.flip();
+	}
+
+	/**
+	 * @return Returns the VBO holding the vertices, 0 until the first update()
+	 */
+	int getVBO(){
+		return vbo;
+	}
+
+	/**
+	 * Draws the whole mesh. The shader needs to be bound,
+	 *  with its attributes pointed at getVBO().
+	 * @param gl OpenGL context
+	 */
+	void draw(GL3ES3 gl){
+		gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, ibo);
+		gl.glDrawElements(GL.GL_TRIANGLES, indexCount, GL.GL_UNSIGNED_INT, 0);
+	}
+
+	/**
+	 * Frees up the buffers on the graphics card
+	 * @param gl OpenGL context
+	 */
+	void dispose(GL3ES3 gl){
+		if (vbo != 0){
+			gl.glDeleteBuffers(2, new int[] {vbo, ibo}, 0);
+			vbo = 0;
+			ibo = 0;
+			builtRes = -1;
+		}
+	}
+
+	private static float toX(float x, int halfWidth){
+		return (x - halfWidth) / halfWidth;
+	}
+
+	private static float toY(float y, int halfHeight){
+		return (-y + halfHeight) / halfHeight;
+	}
+}
@@ -0,0 +1,508 @@
+/**
+ * Part of the VMap library: https://github.com/AlanChatham/VMap
+ *
+ * Portions to update to Processing 2 copyright (c) 2014 - Laboratory LLC
+ * Copyright (c) 2011-12 Ixagon AB
+ *
+ * This source is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is available on the World
+ * Wide Web at <http://www.gnu.org/copyleft/gpl.html>. You can also
+ * obtain it by writing to the Free Software Foundation,
+ * Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package VMap;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import processing.core.PGraphics;
+import processing.core.PImage;
+
+import com.jogamp.opengl.GL;
+import com.jogamp.opengl.GL2ES3;
+import com.jogamp.opengl.GL3ES3;
+
+/**
+ * Keeps one OpenGL texture around for every PImage we've been asked
+ * to draw, so we only send pixels to the graphics card when they
+ * actually change, instead of re-uploading everything every frame.
+ *
+ * Textures are looked up by the PImage object itself (not by its contents),
+ * so two surfaces sharing the same PImage also share the same texture.
+ *
+ * A texture gets re-uploaded when:
+ *  - its size changed
+ *  - someone called markDirty() on its image
+ *  - Processing flagged the image as modified (i.e. you called updatePixels())
+ *  - it's a PGraphics, since those get drawn to every frame without telling anyone
+ *
+ * Images that change every frame (like a Movie) can be set to stream with
+ * setStreaming(). Streaming images get copied into a ring of pixel buffer
+ * objects (PBOs) instead of straight into the texture, and the texture
+ * gets filled from the PBO on the next frame, so the graphics card can
+ * copy it over while it's busy drawing instead of making us wait.
+ * That means a streamed image shows up one frame late.
+ *
+ * Mipmaps only get built when someone binds the texture asking for them,
+ * and only once each time the pixels change, so textures that are never
+ * shrunk on screen never pay for them.
+ *
+ * Each image gets uploaded at most once per frame (see beginFrame()), no
+ * matter how many surfaces draw it. getUploadCount() and
+ * getSkippedUploadCount() tell you how much that's saving you.
+ *
+ * Note that we clear Processing's modified flag after uploading, same
+ * as Processing does when it uploads its own textures. If you also draw
+ * the same PImage with Processing's image(), call markDirty() after
+ * updating its pixels so both of us pick up the change.
+ *
+ * @author Laboratory
+ */
+public class TextureCache {
+
+	private GL3ES3 gl;
+
+	// Everything we've uploaded, keyed by the PImage it came from
+	private IdentityHashMap<PImage, Entry> entries;
+
+	// Staging buffer for uploads, reused so we don't allocate every frame
+	private IntBuffer pixelBuffer;
+
+	// How many PBOs each streaming image cycles through
+	public static final int STREAMING_BUFFERS = 3;
+
+	// Images that should stream through PBOs, see setStreaming()
+	private Set<PImage> streaming;
+	private boolean streamAll = false;
+
+	// Counts calls to beginFrame(), so we know when a PBO is a frame old
+	//  and which images have already been sent this frame
+	private int frame;
+
+	// Uploads we actually did, and ones we skipped because
+	//  the image had already been sent this frame
+	private long uploadCount;
+	private long skippedUploadCount;
+
+	/**
+	 * Everything we need to remember about a texture on the graphics card
+	 */
+	private static class Entry {
+		int glName;
+		int width;
+		int height;
+		boolean dirty = true;
+		// Last frame we sent pixels for this image
+		int uploadedFrame = -1;
+		// True if the pixels changed since we last built the mipmaps
+		boolean mipmapsStale = true;
+
+		// Streaming only - the PBO ring, which one we fill next,
+		//  and which one holds pixels the texture hasn't gotten yet (-1 if none)
+		int[] pbos;
+		int nextPbo;
+		int pendingPbo = -1;
+		int pendingFrame;
+	}
+
+	/**
+	 * Create a new texture cache
+	 * @param gl OpenGL context to create textures in
+	 */
+	TextureCache(GL3ES3 gl){
+		this.gl = gl;
+		this.entries = new IdentityHashMap<PImage, Entry>();
+		this.streaming = Collections.newSetFromMap(new IdentityHashMap<PImage, Boolean>());
+	}
+
+	/**
+	 * Call this once per frame, before binding anything.
+	 *  Streaming images use it to tell which pixels are ready.
+	 */
+	public void beginFrame(){
+		frame++;
+	}
+
+	/**
+	 * Set whether an image streams its pixels through PBOs.
+	 *  Turn this on for images that change every frame, like movies and
+	 *  cameras. New pixels show up one frame after the image changes.
+	 * @param image Image to set streaming for
+	 * @param stream Whether it should stream
+	 */
+	public void setStreaming(PImage image, boolean stream){
+		if (stream){
+			streaming.add(image);
+		}
+		else {
+			streaming.remove(image);
+			Entry entry = entries.get(image);
+			if (entry != null){
+				// Whatever was still waiting in a PBO gets uploaded the normal way instead
+				deleteBuffers(entry);
+				entry.dirty = true;
+			}
+		}
+	}
+
+	/**
+	 * Set whether every image streams through PBOs, even
+	 *  ones nobody called setStreaming() for
+	 * @param stream Whether everything should stream
+	 */
+	public void setStreamingAll(boolean stream){
+		this.streamAll = stream;
+	}
+
+	/**
+	 * Check if an image streams its pixels through PBOs
+	 * @param image Image to check
+	 * @return Returns true if it streams
+	 */
+	public boolean isStreaming(PImage image){
+		return streamAll || streaming.contains(image);
+	}
+
+	/**
+	 * Binds the texture for an image to GL_TEXTURE_2D,
+	 *  uploading it first if it's new or has changed,
+	 *  and making sure its mipmaps are up to date.
+	 * @param image Image to bind
+	 * @return Returns the OpenGL name of the bound texture
+	 */
+	public int bind(PImage image){
+		return bind(image, true);
+	}
+
+	/**
+	 * Binds the texture for an image to GL_TEXTURE_2D,
+	 *  uploading it first if it's new or has changed.
+	 * @param image Image to bind
+	 * @param mipmaps Whether we're going to sample the mipmaps. If not,
+	 *  we don't bother building them until someone does.
+	 * @return Returns the OpenGL name of the bound texture
+	 */
+	public int bind(PImage image, boolean mipmaps){
+		Entry entry = entries.get(image);
+
+		// Immutable storage can't be resized, so if the size changed
+		//  we have to throw the old texture out and start over
+		if (entry != null && (entry.width != image.width || entry.height != image.height)){
+			deleteTexture(entry);
+			entries.remove(image);
+			entry = null;
+		}
+
+		boolean created = false;
+		if (entry == null){
+			entry = createEntry(image);
+			entries.put(image, entry);
+			created = true;
+		}
+
+		gl.glBindTexture(GL.GL_TEXTURE_2D, entry.glName);
+
+		boolean changed = entry.dirty || image.isModified() || image instanceof PGraphics;
+		if (entry.uploadedFrame == frame){
+			// Another surface already sent these pixels this frame. Count it
+			//  even if the image doesn't look changed anymore, since sending
+			//  it cleared the modified flag
+			skippedUploadCount++;
+			changed = false;
+		}
+		else if (changed){
+			uploadCount++;
+			entry.uploadedFrame = frame;
+		}
+
+		// Brand new textures get uploaded right away, so we don't draw garbage for a frame
+		if (isStreaming(image) && !created){
+			flushPending(entry);
+			if (changed){
+				stream(image, entry);
+				entry.dirty = false;
+			}
+		}
+		else if (changed){
+			upload(image);
+			entry.dirty = false;
+			entry.mipmapsStale = true;
+		}
+
+		if (mipmaps && entry.mipmapsStale){
+			gl.glGenerateMipmap(GL.GL_TEXTURE_2D);
+			entry.mipmapsStale = false;
+		}
+
+		return entry.glName;
+	}
+
+	/**
+	 * Tell the cache that an image's pixels have changed,
+	 *  so it gets re-uploaded the next time it's drawn
+	 * @param image Image that changed
+	 */
+	public void markDirty(PImage image){
+		Entry entry = entries.get(image);
+		if (entry != null){
+			entry.dirty = true;
+		}
+	}
+
+	/**
+	 * Check if binding an image would send anything to the graphics card,
+	 *  i.e. if its texture is missing or out of date
+	 * @param image Image to check
+	 * @return Returns true if the image's texture needs updating
+	 */
+	public boolean needsUpload(PImage image){
+		Entry entry = entries.get(image);
+		if (entry == null || entry.width != image.width || entry.height != image.height){
+			return true;
+		}
+		return entry.dirty || entry.pendingPbo >= 0 || image.isModified() || image instanceof PGraphics;
+	}
+
+	/**
+	 * Check if we're holding a texture for an image
+	 * @param image Image to check for
+	 * @return Returns true if the image has a texture on the graphics card
+	 */
+	public boolean contains(PImage image){
+		return entries.containsKey(image);
+	}
+
+	/**
+	 * Free the texture for an image. It'll be uploaded
+	 *  again if anyone draws it later.
+	 * @param image Image to free the texture for
+	 */
+	public void evict(PImage image){
+		Entry entry = entries.remove(image);
+		if (entry != null){
+			deleteTexture(entry);
+		}
+	}
+
+	/**
+	 * Frees every texture whose image isn't in the given collection.
+	 *  Used to clean up after surfaces get removed.
+	 * @param inUse Images that are still being drawn
+	 */
+	public void retainOnly(Collection<PImage> inUse){
+		Set<PImage> keep = Collections.newSetFromMap(new IdentityHashMap<PImage, Boolean>());
+		keep.addAll(inUse);
+		Iterator<Map.Entry<PImage, Entry>> it = entries.entrySet().iterator();
+		while (it.hasNext()){
+			Map.Entry<PImage, Entry> e = it.next();
+			if (!keep.contains(e.getKey())){
+				deleteTexture(e.getValue());
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Frees every texture in the cache
+	 */
+	public void clear(){
+		retainOnly(new ArrayList<PImage>());
+	}
+
+	/**
+	 * @return Returns the number of times we've sent an image to the graphics card
+	 */
+	public long getUploadCount(){
+		return uploadCount;
+	}
+
+	/**
+	 * @return Returns the number of times an image got bound again after
+	 *  it had already been sent to the graphics card that frame,
+	 *  i.e. uploads we saved by sharing it between surfaces
+	 */
+	public long getSkippedUploadCount(){
+		return skippedUploadCount;
+	}
+
+	/**
+	 * Sets the upload counters back to zero
+	 */
+	public void resetUploadCounts(){
+		uploadCount = 0;
+		skippedUploadCount = 0;
+	}
+
+	/**
+	 * @return Returns the number of textures currently on the graphics card
+	 */
+	public int size(){
+		return entries.size();
+	}
+
+	/**
+	 * Makes a new texture with immutable storage sized for the image,
+	 *  including room for all the mipmap levels
+	 * @param image Image to make the texture for
+	 * @return Returns the new cache entry
+	 */
+	private Entry createEntry(PImage image){
+		Entry entry = new Entry();
+		entry.width = image.width;
+		entry.height = image.height;
+
+		int[] names = new int[1];
+		gl.glGenTextures(1, names, 0);
+		entry.glName = names[0];
+
+		gl.glBindTexture(GL.GL_TEXTURE_2D, entry.glName);
+		gl.glTexStorage2D(GL.GL_TEXTURE_2D, mipmapLevels(image.width, image.height), GL.GL_RGBA8,
+				          image.width, image.height);
+		return entry;
+	}
+
+	/**
+	 * Copies an image's pixels into the currently bound texture
+	 * @param image Image to upload
+	 */
+	private void upload(PImage image){
+		image.loadPixels();
+
+		IntBuffer buf = getPixelBuffer(image.width * image.height);
+		buf.put(image.pixels, 0, image.width * image.height);
+		buf.rewind();
+
+		// Processing stores pixels as ARGB ints, which on a little-endian
+		//  machine comes out as BGRA bytes
+		gl.glTexSubImage2D(GL.GL_TEXTURE_2D, 0, 0, 0, image.width, image.height,
+				           GL.GL_BGRA, GL.GL_UNSIGNED_BYTE, buf);
+
+		image.setModified(false);
+	}
+
+	/**
+	 * Copies an image's pixels into the next PBO in its entry's ring.
+	 *  They get moved into the texture by flushPending() on the next frame.
+	 * @param image Image to stream
+	 * @param entry Cache entry for the image
+	 */
+	private void stream(PImage image, Entry entry){
+		if (entry.pbos == null){
+			entry.pbos = new int[STREAMING_BUFFERS];
+			gl.glGenBuffers(STREAMING_BUFFERS, entry.pbos, 0);
+		}
+		image.loadPixels();
+
+		int bytes = image.width * image.height * Integer.BYTES;
+		int pbo = entry.pbos[entry.nextPbo];
+		gl.glBindBuffer(GL2ES3.GL_PIXEL_UNPACK_BUFFER, pbo);
+		// Orphan the old storage, so we never wait on a copy that's still going
+		gl.glBufferData(GL2ES3.GL_PIXEL_UNPACK_BUFFER, bytes, null, GL2ES3.GL_STREAM_DRAW);
+		ByteBuffer mapped = gl.glMapBufferRange(GL2ES3.GL_PIXEL_UNPACK_BUFFER, 0, bytes,
+				                                GL.GL_MAP_WRITE_BIT | GL.GL_MAP_INVALIDATE_BUFFER_BIT);
+		if (mapped == null){
+			// Couldn't map it, so just do it the slow way
+			gl.glBindBuffer(GL2ES3.GL_PIXEL_UNPACK_BUFFER, 0);
+			upload(image);
+			entry.mipmapsStale = true;
+			return;
+		}
+		mapped.order(ByteOrder.nativeOrder()).asIntBuffer().put(image.pixels, 0, image.width * image.height);
+		gl.glUnmapBuffer(GL2ES3.GL_PIXEL_UNPACK_BUFFER);
+		gl.glBindBuffer(GL2ES3.GL_PIXEL_UNPACK_BUFFER, 0);
+
+		entry.pendingPbo = entry.nextPbo;
+		entry.pendingFrame = frame;
+		entry.nextPbo = (entry.nextPbo + 1) % STREAMING_BUFFERS;
+
+		image.setModified(false);
+	}
+
+	/**
+	 * Moves pixels streamed on an earlier frame from their PBO
+	 *  into the entry's texture, which needs to be bound already.
+	 *  Pixels streamed this frame are left alone until next frame.
+	 * @param entry Cache entry to flush
+	 */
+	private void flushPending(Entry entry){
+		if (entry.pendingPbo < 0 || entry.pendingFrame == frame){
+			return;
+		}
+		gl.glBindBuffer(GL2ES3.GL_PIXEL_UNPACK_BUFFER, entry.pbos[entry.pendingPbo]);
+		// With a PBO bound, the last argument is an offset into it
+		gl.glTexSubImage2D(GL.GL_TEXTURE_2D, 0, 0, 0, entry.width, entry.height,
+				           GL.GL_BGRA, GL.GL_UNSIGNED_BYTE, 0L);
+		gl.glBindBuffer(GL2ES3.GL_PIXEL_UNPACK_BUFFER, 0);
+		entry.pendingPbo = -1;
+		entry.mipmapsStale = true;
+	}
+
+	/**
+	 * Gets our reusable staging buffer, growing it if it's too small
+	 * @param n Number of pixels we need room for
+	 * @return Returns a rewound IntBuffer with room for at least n ints
+	 */
+	private IntBuffer getPixelBuffer(int n){
+		if (pixelBuffer == null || pixelBuffer.capacity() < n){
+			pixelBuffer = ByteBuffer.allocateDirect(n * Integer.BYTES).order(ByteOrder.nativeOrder()).asIntBuffer();
+		}
+		pixelBuffer.clear();
+		return pixelBuffer;
+	}
+
+	/**
+	 * Deletes a texture from the graphics card
+	 * @param entry Cache entry to delete
+	 */
+	private void deleteTexture(Entry entry){
+		gl.glDeleteTextures(1, new int[]{entry.glName}, 0);
+		deleteBuffers(entry);
+	}
+
+	/**
+	 * Deletes an entry's streaming PBOs, if it has any
+	 * @param entry Cache entry to delete the PBOs of
+	 */
+	private void deleteBuffers(Entry entry){
+		if (entry.pbos != null){
+			gl.glDeleteBuffers(entry.pbos.length, entry.pbos, 0);
+			entry.pbos = null;
+			entry.nextPbo = 0;
+			entry.pendingPbo = -1;
+		}
+	}
+
+	/**
+	 * Figures out how many mipmap levels a full chain needs
+	 * @param width Texture width
+	 * @param height Texture height
+	 * @return Returns the number of mipmap levels, including the base level
+	 */
+	private static int mipmapLevels(int width, int height){
+		int size = Math.max(width, height);
+		int levels = 1;
+		while (size > 1){
+			size >>= 1;
+			levels++;
+		}
+		return levels;
+	}
+}
@@ -0,0 +1,556 @@
+/**
+ * Part of the VMap library: https://github.com/AlanChatham/VMap
+ *
+ * Portions to update to Processing 2 copyright (c) 2014 - Laboratory LLC
+ * Copyright (c) 2011-12 Ixagon AB
+ *
+ * This source is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is available on the World
+ * Wide Web at <http://www.gnu.org/copyleft/gpl.html>. You can also
+ * obtain it by writing to the Free Software Foundation,
+ * Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package VMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+import processing.core.PApplet;
+import processing.core.PVector;
+import processing.data.XML;
+
+/**
+ * Keyframe animation for surfaces. Add tracks to corners, Bezier control
+ * points and Bezier forces, key them, then play() or scrub with setTime().
+ *
+ * The keys go to the graphics card once (again only when you change them),
+ * and the shaders work out where every corner is from the playhead, so
+ * playing or scrubbing doesn't rebuild any vertices. Animated Bezier
+ * surfaces get drawn with the bezierPatch shader, with their patch worked
+ * out from the tracks each frame, so they don't rebuild their mesh either.
+ *
+ * Mesh surfaces can't be animated yet, since nothing works out their
+ * lattice from the corners on the graphics card. The timeline won't add
+ * tracks to them, and keySurface() leaves them alone.
+ *
+ * A track overrides what it moves while it has keys. Since the surfaces
+ * themselves don't move, calibrating (and hit-testing) still works on the
+ * points they had before; use apply() to actually move them to where
+ * the timeline has them right now.
+ *
+ * Get VMap's timeline with VMap.getTimeline().
+ *
+ * @author Laboratory
+ */
+public class Timeline {
+
+	// Width of the key texture, in texels. The shaders need to agree.
+	static final int TEXTURE_WIDTH = 256;
+
+	private final VMap vmap;
+	private final ArrayList<Track> tracks = new ArrayList<Track>();
+	private final IdentityHashMap<SuperSurface, ArrayList<Track>> surfaceTracks = new IdentityHashMap<SuperSurface, ArrayList<Track>>();
+
+	private boolean playing;
+	private boolean looping;
+	// Where the playhead is when paused, or where it was when play() was called
+	private float position;
+	// VMap.getTime() when play() was called
+	private float playStart;
+
+	// Bumps whenever a key changes, or the playhead jumps
+	private int version;
+	// Bumps whenever a key changes
+	private int trackVersion;
+
+	// Keys as the graphics card gets them, see pack()
+	private float[] packed = new float[TEXTURE_WIDTH * Track.KEY_SIZE];
+	private int packedTexels;
+	private int packedVersion = -1;
+	private final IdentityHashMap<SuperSurface, Integer> trackBases = new IdentityHashMap<SuperSurface, Integer>();
+
+	private final PVector value = new PVector();
+
+	/**
+	 * Create an empty timeline. Use VMap.getTimeline() instead.
+	 * @param vmap VMap whose clock it plays on
+	 */
+	Timeline(VMap vmap){
+		this.vmap = vmap;
+	}
+
+	/**
+	 * Adds a track that moves a corner, or gets the one it already has
+	 * @param ss Surface to animate
+	 * @param corner Corner to move, 0 - 3 for top left, top right, bottom right, bottom left
+	 * @return Returns the track, or null if the surface is a mesh surface
+	 */
+	public Track addCornerTrack(SuperSurface ss, int corner){
+		return addTrack(ss, Track.CORNER, corner);
+	}
+
+	/**
+	 * Adds a track that moves a Bezier control point, or gets the one it already has
+	 * @param bs Surface to animate
+	 * @param point Control point to move, 0 - 7 like BezierSurface.getBezierPoint()
+	 * @return Returns the track
+	 */
+	public Track addBezierTrack(BezierSurface bs, int point){
+		return addTrack(bs, Track.BEZIER_POINT, point);
+	}
+
+	/**
+	 * Adds a track for the horizontal and vertical forces of a Bezier
+	 *  surface, or gets the one it already has
+	 * @param bs Surface to animate
+	 * @return Returns the track
+	 */
+	public Track addForceTrack(BezierSurface bs){
+		return addTrack(bs, Track.FORCE, 0);
+	}
+
+	private Track addTrack(SuperSurface ss, int target, int index){
+		if (ss instanceof MeshSurface){
+			PApplet.println("Warning! Mesh surfaces can't be animated, not adding a track to surface " + ss.getId());
+			return null;
+		}
+		Track track = getTrack(ss, target, index);
+		if (track == null){
+			track = new Track(this, ss, target, index);
+			tracks.add(track);
+			ArrayList<Track> list = surfaceTracks.get(ss);
+			if (list == null){
+				list = new ArrayList<Track>(4);
+				surfaceTracks.put(ss, list);
+			}
+			list.add(track);
+			tracksChanged();
+		}
+		return track;
+	}
+
+	/**
+	 * Gets a track
+	 * @param ss Surface the track animates
+	 * @param target Track.CORNER, Track.BEZIER_POINT or Track.FORCE
+	 * @param index Which corner or control point, 0 for forces
+	 * @return Returns the track, or null if there isn't one
+	 */
+	public Track getTrack(SuperSurface ss, int target, int index){
+		ArrayList<Track> list = surfaceTracks.get(ss);
+		if (list != null){
+			for (int i = 0; i < list.size(); i++){
+				Track track = list.get(i);
+				if (track.getTarget() == target && track.getIndex() == index){
+					return track;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return Returns all the tracks
+	 */
+	public ArrayList<Track> getTracks(){
+		return tracks;
+	}
+
+	/**
+	 * Check if a surface has any tracks
+	 * @param ss Surface to check
+	 * @return Returns true if it's animated
+	 */
+	public boolean hasTracks(SuperSurface ss){
+		return surfaceTracks.containsKey(ss);
+	}
+
+	/**
+	 * Removes a track
+	 * @param track Track to remove
+	 */
+	public void removeTrack(Track track){
+		if (tracks.remove(track)){
+			ArrayList<Track> list = surfaceTracks.get(track.getSurface());
+			list.remove(track);
+			if (list.isEmpty()){
+				surfaceTracks.remove(track.getSurface());
+			}
+			tracksChanged();
+		}
+	}
+
+	/**
+	 * Removes all the tracks of a surface
+	 * @param ss Surface to stop animating
+	 */
+	public void removeTracks(SuperSurface ss){
+		ArrayList<Track> list = surfaceTracks.remove(ss);
+		if (list != null){
+			tracks.removeAll(list);
+			tracksChanged();
+		}
+	}
+
+	/**
+	 * Removes every track and rewinds
+	 */
+	public void clear(){
+		tracks.clear();
+		surfaceTracks.clear();
+		playing = false;
+		position = 0;
+		tracksChanged();
+	}
+
+	/**
+	 * Keys everything a surface has right where it is now: its corners,
+	 *  and for Bezier surfaces its control points and forces too.
+	 *  Mesh surfaces can't be animated, so they don't get keyed.
+	 * @param ss Surface to key
+	 * @param time Time of the keys, in seconds
+	 * @param easing Easing to the next keys, see Track
+	 */
+	public void keySurface(SuperSurface ss, float time, int easing){
+		if (ss instanceof MeshSurface){
+			return;
+		}
+		for (int i = 0; i < 4; i++){
+			addCornerTrack(ss, i).addKey(time, ss.getCornerPoint(i).x, ss.getCornerPoint(i).y, easing);
+		}
+		if (ss instanceof BezierSurface){
+			BezierSurface bs = (BezierSurface) ss;
+			for (int i = 0; i < 8; i++){
+				addBezierTrack(bs, i).addKey(time, bs.getBezierPoint(i).x, bs.getBezierPoint(i).y, easing);
+			}
+			addForceTrack(bs).addKey(time, bs.getHorizontalForce(), bs.getVerticalForce(), easing);
+		}
+	}
+
+	/**
+	 * Starts playing from wherever the playhead is
+	 */
+	public void play(){
+		if (!playing){
+			if (!looping && position >= getDuration()){
+				position = 0;
+			}
+			playing = true;
+			playStart = vmap.getTime();
+			version++;
+		}
+	}
+
+	/**
+	 * Stops playing, leaving the playhead where it is
+	 */
+	public void pause(){
+		if (playing){
+			position = getTime();
+			playing = false;
+			version++;
+		}
+	}
+
+	/**
+	 * Stops playing and rewinds to the start
+	 */
+	public void stop(){
+		playing = false;
+		position = 0;
+		version++;
+	}
+
+	/**
+	 * @return Returns true if the timeline is playing
+	 */
+	public boolean isPlaying(){
+		return playing;
+	}
+
+	/**
+	 * Moves the playhead. This is all scrubbing takes, nothing gets rebuilt.
+	 * @param time Time to jump to, in seconds
+	 */
+	public void setTime(float time){
+		position = time;
+		playStart = vmap.getTime();
+		version++;
+	}
+
+	/**
+	 * @return Returns where the playhead is, in seconds
+	 */
+	public float getTime(){
+		if (!playing){
+			return position;
+		}
+		float time = position + vmap.getTime() - playStart;
+		float duration = getDuration();
+		if (looping && duration > 0){
+			time %= duration;
+		}
+		return time;
+	}
+
+	/**
+	 * Sets whether playing starts over once it gets to the end
+	 * @param looping True to loop
+	 */
+	public void setLooping(boolean looping){
+		if (playing){
+			position = getTime();
+			playStart = vmap.getTime();
+		}
+		this.looping = looping;
+	}
+
+	/**
+	 * @return Returns true if playing starts over once it gets to the end
+	 */
+	public boolean isLooping(){
+		return looping;
+	}
+
+	/**
+	 * @return Returns the time of the last key in any track, in seconds
+	 */
+	public float getDuration(){
+		float duration = 0;
+		for (int i = 0; i < tracks.size(); i++){
+			duration = Math.max(duration, tracks.get(i).getEnd());
+		}
+		return duration;
+	}
+
+	/**
+	 * Moves the surfaces to where the timeline has them right now,
+	 *  so calibrating, hit-testing and saving see the animated points.
+	 *  Each surface only gets recomputed once.
+	 */
+	public void apply(){
+		float time = getTime();
+		for (SuperSurface ss : surfaceTracks.keySet()){
+			ArrayList<Track> list = surfaceTracks.get(ss);
+			ss.beginEdit();
+			for (int i = 0; i < list.size(); i++){
+				Track track = list.get(i);
+				if (track.evaluate(time, value) == null){
+					continue;
+				}
+				if (track.getTarget() == Track.CORNER){
+					ss.setCornerPoint(track.getIndex(), value.x, value.y);
+				}
+				else if (track.getTarget() == Track.BEZIER_POINT){
+					((BezierSurface) ss).setBezierPoint(track.getIndex(), value.x, value.y);
+				}
+				else if (track.getTarget() == Track.FORCE){
+					((BezierSurface) ss).setForce(Math.round(value.x), Math.round(value.y));
+				}
+			}
+			ss.commitEdit();
+		}
+	}
+
+	/**
+	 * @return Returns a number that changes whenever a key changes or the playhead jumps
+	 */
+	int getVersion(){
+		return version;
+	}
+
+	/**
+	 * Tells the timeline one of its tracks changed
+	 */
+	void tracksChanged(){
+		version++;
+		trackVersion++;
+	}
+
+	/**
+	 * Gets the playhead for a frame, stopping at the end if we aren't looping
+	 * @return Returns the time to draw the frame at
+	 */
+	float update(){
+		float time = getTime();
+		if (playing && !looping && time >= getDuration()){
+			playing = false;
+			position = time = getDuration();
+			version++;
+		}
+		return time;
+	}
+
+	/**
+	 * Lays out the corner keys for the graphics card, if they changed.
+	 *  Every animated surface (other than Bezier surfaces, which work out
+	 *  their patch from the tracks in the bezierPatch shader) gets one
+	 *  texel per corner saying where that corner's keys start and how many
+	 *  there are, then the keys themselves, one texel each.
+	 * @return Returns a number that changes whenever the layout does
+	 */
+	int pack(){
+		if (packedVersion == trackVersion){
+			return packedVersion;
+		}
+		trackBases.clear();
+		int texels = 0;
+		for (SuperSurface ss : surfaceTracks.keySet()){
+			if (ss instanceof BezierSurface){
+				continue;
+			}
+			ArrayList<Track> list = surfaceTracks.get(ss);
+			int base = texels;
+			int keys = base + 4;
+			for (int corner = 0; corner < 4; corner++){
+				int count = 0;
+				for (int i = 0; i < list.size(); i++){
+					Track track = list.get(i);
+					if (track.getTarget() == Track.CORNER && track.getIndex() == corner){
+						ensureTexels(keys + track.getKeyCount());
+						track.copyKeys(packed, keys * Track.KEY_SIZE);
+						count = track.getKeyCount();
+						break;
+					}
+				}
+				ensureTexels(base + corner + 1);
+				int header = (base + corner) * Track.KEY_SIZE;
+				packed[header] = keys;
+				packed[header + 1] = count;
+				packed[header + 2] = 0;
+				packed[header + 3] = 0;
+				keys += count;
+			}
+			trackBases.put(ss, base);
+			texels = keys;
+		}
+		packedTexels = texels;
+		packedVersion = trackVersion;
+		return packedVersion;
+	}
+
+	private void ensureTexels(int texels){
+		if (texels * Track.KEY_SIZE > packed.length){
+			packed = Arrays.copyOf(packed, Math.max(texels * Track.KEY_SIZE, packed.length * 2));
+		}
+	}
+
+	/**
+	 * @return Returns the keys laid out by pack()
+	 */
+	float[] getPacked(){
+		return packed;
+	}
+
+	/**
+	 * @return Returns how many texels pack() used
+	 */
+	int getPackedTexels(){
+		return packedTexels;
+	}
+
+	/**
+	 * Gets where a surface's corners start in the key texture
+	 * @param ss Surface to look up
+	 * @return Returns the first texel, or -1 if the surface isn't animated there
+	 */
+	int getTrackBase(SuperSurface ss){
+		Integer base = trackBases.get(ss);
+		return (base == null) ? -1 : base;
+	}
+
+	/**
+	 * Works out a Bezier surface's patch at a time, laid out
+	 *  like BezierSurface.getPatchPoints()
+	 * @param bs Surface to work out
+	 * @param time Time in seconds
+	 * @param points Array of 24 floats to fill in
+	 */
+	void evaluatePatch(BezierSurface bs, float time, float[] points){
+		bs.getPatchPoints(points);
+		ArrayList<Track> list = surfaceTracks.get(bs);
+		if (list == null){
+			return;
+		}
+		for (int i = 0; i < list.size(); i++){
+			Track track = list.get(i);
+			if (track.evaluate(time, value) == null){
+				continue;
+			}
+			if (track.getTarget() == Track.CORNER){
+				points[track.getIndex() * 2] = value.x;
+				points[track.getIndex() * 2 + 1] = value.y;
+			}
+			else if (track.getTarget() == Track.BEZIER_POINT){
+				points[8 + track.getIndex() * 2] = value.x;
+				points[8 + track.getIndex() * 2 + 1] = value.y;
+			}
+		}
+	}
+
+	/**
+	 * Works out a Bezier surface's forces at a time
+	 * @param bs Surface to work out
+	 * @param time Time in seconds
+	 * @param out PVector to put the horizontal and vertical force in
+	 * @return Returns out
+	 */
+	PVector evaluateForce(BezierSurface bs, float time, PVector out){
+		Track track = getTrack(bs, Track.FORCE, 0);
+		if (track == null || track.evaluate(time, out) == null){
+			out.x = bs.getHorizontalForce();
+			out.y = bs.getVerticalForce();
+		}
+		return out;
+	}
+
+	/**
+	 * Saves the timeline as XML, for VMap.saveXML()
+	 * @return Returns a timeline element holding every track
+	 */
+	public XML toXML(){
+		XML xml = new XML("timeline");
+		xml.setInt("loop", looping ? 1 : 0);
+		for (int i = 0; i < tracks.size(); i++){
+			xml.addChild(tracks.get(i).toXML());
+		}
+		return xml;
+	}
+
+	/**
+	 * Replaces every track with the ones in XML saved by toXML().
+	 *  The surfaces need to be loaded already.
+	 * @param xml XML element to load
+	 */
+	public void loadXML(XML xml){
+		clear();
+		looping = xml.getInt("loop", 0) != 0;
+		for (XML element : xml.getChildren("track")){
+			SuperSurface ss = vmap.getSurfaceById(element.getInt("surface"));
+			int target = element.getInt("target", Track.CORNER);
+			if (ss == null || (target != Track.CORNER && !(ss instanceof BezierSurface))){
+				PApplet.println("Warning! Skipping a timeline track for surface " + element.getInt("surface") + ", which doesn't exist or isn't a Bezier surface");
+				continue;
+			}
+			if (ss instanceof MeshSurface){
+				PApplet.println("Warning! Skipping a timeline track for surface " + element.getInt("surface") + ", mesh surfaces can't be animated");
+				continue;
+			}
+			Track track = addTrack(ss, target, element.getInt("index", 0));
+			for (XML key : element.getChildren("key")){
+				track.addKey(key.getFloat("t"), key.getFloat("x"), key.getFloat("y"), key.getInt("easing", Track.LINEAR));
+			}
+		}
+	}
+}
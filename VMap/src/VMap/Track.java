@@ -0,0 +1,279 @@
+/**
+ * Part of the VMap library: https://github.com/AlanChatham/VMap
+ *
+ * Portions to update to Processing 2 copyright (c) 2014 - Laboratory LLC
+ * Copyright (c) 2011-12 Ixagon AB
+ *
+ * This source is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is available on the World
+ * Wide Web at <http://www.gnu.org/copyleft/gpl.html>. You can also
+ * obtain it by writing to the Free Software Foundation,
+ * Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package VMap;
+
+import java.util.Arrays;
+
+import processing.core.PVector;
+import processing.data.XML;
+
+/**
+ * Keyframes for one thing on one surface: a corner, a Bezier control
+ * point, or a Bezier surface's displacement forces. Every key is a time
+ * and an x, y pair (pixels for points, horizontal and vertical force
+ * for forces), plus the easing used on the way to the next key.
+ *
+ * Before the first key the track sits at the first key, and after the
+ * last one it stays at the last one.
+ *
+ * Get tracks from a Timeline, which is what plays them.
+ *
+ * @author Laboratory
+ */
+public class Track {
+
+	// What a track moves
+	public static final int CORNER = 0;
+	public static final int BEZIER_POINT = 1;
+	public static final int FORCE = 2;
+
+	// Easing from one key to the next
+	public static final int LINEAR = 0;
+	public static final int EASE_IN = 1;
+	public static final int EASE_OUT = 2;
+	public static final int EASE_IN_OUT = 3;
+	// Holds the key's value until the next key
+	public static final int STEP = 4;
+
+	// Floats per key: time, x, y, easing. This is also how
+	//  they go to the graphics card, one key per texel.
+	static final int KEY_SIZE = 4;
+
+	private final Timeline timeline;
+	private final SuperSurface surface;
+	private final int target;
+	private final int index;
+
+	// Keys, sorted by time
+	private float[] keys = new float[4 * KEY_SIZE];
+	private int count;
+
+	/**
+	 * Create an empty track. Use Timeline.addCornerTrack() and friends instead.
+	 * @param timeline Timeline this belongs to
+	 * @param surface Surface it moves
+	 * @param target CORNER, BEZIER_POINT or FORCE
+	 * @param index Which corner or control point, 0 for FORCE
+	 */
+	Track(Timeline timeline, SuperSurface surface, int target, int index){
+		this.timeline = timeline;
+		this.surface = surface;
+		this.target = target;
+		this.index = index;
+	}
+
+	/**
+	 * @return Returns the surface this track moves
+	 */
+	public SuperSurface getSurface(){
+		return surface;
+	}
+
+	/**
+	 * @return Returns CORNER, BEZIER_POINT or FORCE
+	 */
+	public int getTarget(){
+		return target;
+	}
+
+	/**
+	 * @return Returns which corner or control point this moves, 0 for forces
+	 */
+	public int getIndex(){
+		return index;
+	}
+
+	/**
+	 * Adds a key. A key already at that time gets replaced.
+	 * @param time Time of the key, in seconds
+	 * @param x X of the point, or horizontal force
+	 * @param y Y of the point, or vertical force
+	 * @param easing How to get from this key to the next, LINEAR, EASE_IN, EASE_OUT, EASE_IN_OUT or STEP
+	 * @return Returns this track, so you can chain keys
+	 */
+	public Track addKey(float time, float x, float y, int easing){
+		int i = 0;
+		while (i < count && keys[i * KEY_SIZE] < time){
+			i++;
+		}
+		if (i == count || keys[i * KEY_SIZE] != time){
+			if ((count + 1) * KEY_SIZE > keys.length){
+				keys = Arrays.copyOf(keys, keys.length * 2);
+			}
+			System.arraycopy(keys, i * KEY_SIZE, keys, (i + 1) * KEY_SIZE, (count - i) * KEY_SIZE);
+			count++;
+		}
+		keys[i * KEY_SIZE] = time;
+		keys[i * KEY_SIZE + 1] = x;
+		keys[i * KEY_SIZE + 2] = y;
+		keys[i * KEY_SIZE + 3] = easing;
+		timeline.tracksChanged();
+		return this;
+	}
+
+	/**
+	 * Adds a linear key
+	 * @param time Time of the key, in seconds
+	 * @param x X of the point, or horizontal force
+	 * @param y Y of the point, or vertical force
+	 * @return Returns this track, so you can chain keys
+	 */
+	public Track addKey(float time, float x, float y){
+		return addKey(time, x, y, LINEAR);
+	}
+
+	/**
+	 * Removes a key
+	 * @param key Index of the key, in time order
+	 */
+	public void removeKey(int key){
+		System.arraycopy(keys, (key + 1) * KEY_SIZE, keys, key * KEY_SIZE, (count - key - 1) * KEY_SIZE);
+		count--;
+		timeline.tracksChanged();
+	}
+
+	/**
+	 * @return Returns the number of keys
+	 */
+	public int getKeyCount(){
+		return count;
+	}
+
+	/**
+	 * @param key Index of the key, in time order
+	 * @return Returns the time of a key, in seconds
+	 */
+	public float getKeyTime(int key){
+		return keys[key * KEY_SIZE];
+	}
+
+	/**
+	 * @param key Index of the key, in time order
+	 * @return Returns the value of a key
+	 */
+	public PVector getKeyValue(int key){
+		return new PVector(keys[key * KEY_SIZE + 1], keys[key * KEY_SIZE + 2]);
+	}
+
+	/**
+	 * @param key Index of the key, in time order
+	 * @return Returns the easing from a key to the next one
+	 */
+	public int getKeyEasing(int key){
+		return (int) keys[key * KEY_SIZE + 3];
+	}
+
+	/**
+	 * @return Returns the time of the last key, 0 if there aren't any
+	 */
+	public float getEnd(){
+		return (count == 0) ? 0 : keys[(count - 1) * KEY_SIZE];
+	}
+
+	/**
+	 * Works out the value at a time, the same way the shaders do
+	 * @param time Time in seconds
+	 * @param out PVector to put the value in
+	 * @return Returns out, or null if the track has no keys
+	 */
+	public PVector evaluate(float time, PVector out){
+		if (count == 0){
+			return null;
+		}
+		int a = 0;
+		float x = keys[1];
+		float y = keys[2];
+		if (time > keys[0]){
+			for (int b = 1; b < count; b++){
+				float bTime = keys[b * KEY_SIZE];
+				if (time < bTime){
+					float aTime = keys[a * KEY_SIZE];
+					float t = ease((time - aTime) / (bTime - aTime), (int) keys[a * KEY_SIZE + 3]);
+					x = keys[a * KEY_SIZE + 1] + (keys[b * KEY_SIZE + 1] - keys[a * KEY_SIZE + 1]) * t;
+					y = keys[a * KEY_SIZE + 2] + (keys[b * KEY_SIZE + 2] - keys[a * KEY_SIZE + 2]) * t;
+					break;
+				}
+				a = b;
+				x = keys[b * KEY_SIZE + 1];
+				y = keys[b * KEY_SIZE + 2];
+			}
+		}
+		out.x = x;
+		out.y = y;
+		return out;
+	}
+
+	/**
+	 * Shapes the way from one key to the next
+	 * @param t How far along, 0 to 1
+	 * @param easing LINEAR, EASE_IN, EASE_OUT, EASE_IN_OUT or STEP
+	 * @return Returns how far along the value is, 0 to 1
+	 */
+	static float ease(float t, int easing){
+		switch (easing){
+		case EASE_IN:
+			return t * t * t;
+		case EASE_OUT:
+			float m = 1 - t;
+			return 1 - m * m * m;
+		case EASE_IN_OUT:
+			if (t < 0.5f){
+				return 4 * t * t * t;
+			}
+			float n = 2 - 2 * t;
+			return 1 - n * n * n / 2;
+		case STEP:
+			return 0;
+		default:
+			return t;
+		}
+	}
+
+	/**
+	 * Copies the keys into an array for the graphics card
+	 * @param out Array to copy into
+	 * @param offset Where to start, in floats
+	 */
+	void copyKeys(float[] out, int offset){
+		System.arraycopy(keys, 0, out, offset, count * KEY_SIZE);
+	}
+
+	/**
+	 * Saves this track as XML, for Timeline.toXML()
+	 * @return Returns a track element holding all the keys
+	 */
+	XML toXML(){
+		XML xml = new XML("track");
+		xml.setInt("surface", surface.getId());
+		xml.setInt("target", target);
+		xml.setInt("index", index);
+		for (int i = 0; i < count; i++){
+			XML key = xml.addChild("key");
+			key.setFloat("t", keys[i * KEY_SIZE]);
+			key.setFloat("x", keys[i * KEY_SIZE + 1]);
+			key.setFloat("y", keys[i * KEY_SIZE + 2]);
+			key.setInt("easing", (int) keys[i * KEY_SIZE + 3]);
+		}
+		return xml;
+	}
+}
@@ -24,9 +24,15 @@ package VMap;
 
 import java.awt.Rectangle;
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import processing.event.*;
 import processing.core.PApplet;
@@ -35,6 +41,7 @@ import processing.core.PFont;
 import processing.core.PGraphics;
 import processing.opengl.PGraphics2D;
 import processing.opengl.PGraphics3D;
+import processing.opengl.PGraphicsOpenGL;
 import processing.opengl.PJOGL;
 import processing.core.PMatrix;
 import processing.core.PMatrix2D;
@@ -45,6 +52,7 @@ import processing.core.PVector;
 import processing.data.XML;
 import processing.opengl.PGL;
 import processing.opengl.PShader;
+import processing.opengl.Texture;
 import processing.core.PStyle;
 // Add this in after updating to a new processing.core library
 //import processing.core.PSurface;
@@ -198,6 +206,12 @@ public class VMap extends PImage implements PConstants{
 	private PImage backgroundTexture;
 	private boolean usingBackground = false;
 	
+	// The calibration background (background image, grid and border),
+	//  kept around so we only draw it when something about it changes
+	private PGraphics overlayLayer;
+	private boolean overlayDirty = true;
+	private float gridResolution = 32.0f;
+	
 	private Rectangle selectionTool;
 	private PVector startPos;
 	private boolean isDragging;
@@ -218,43 +232,144 @@ public class VMap extends PImage implements PConstants{
 	//  which lets us do vmap.rect() and stuff,
 	//  and automatically apply it to mapped areas with no texture?
 	private boolean useDefault = true;
-
-	private boolean shaking;
-	private int shakeStrength;
-	private int shakeSpeed;
-	private float shakeAngle;
-	private float shakeZ;
 	
+	// Should render() copy what it drew into our own pixels?
+	//  image(vmap, ...) needs this, getOutput() and renderTo() don't.
+	private boolean copyToPixels = true;
+	
+	// Idle skipping - if nothing changed since the last frame, don't draw it again
+	private boolean idleSkipping = false;
+	private ChangeTracker changeTracker = new ChangeTracker();
+	private long renderedFrames;
+	private long skippedFrames;
+	// Go up when calibration input comes in, or the default draw buffer gets drawn to
+	private int inputVersion;
+	private int defaultDrawVersion;
+
 	// OpenGL stuff
 	public PImage gridTexture;
 	
 	public static final int BASIC = 0;
 	public static final int PROJECTIVE = 1;
 	public static final int BILINEAR = 2;
+	
+	// Texture filtering choices, see setTextureFilter()
+	public static final int FILTER_DEFAULT = -1;
+	public static final int FILTER_NEAREST = 0;
+	public static final int FILTER_LINEAR = 1;
+	public static final int FILTER_TRILINEAR = 2;
+	public static final int FILTER_AUTO = 3;
+	private int textureFilter = FILTER_AUTO;
+	
+	// One sampler object for each of nearest, linear and trilinear,
+	//  so surfaces sharing a texture can still sample it differently
+	private int[] samplers;
 	public PShader testShader;
 	public PShader projectiveShader;
 	public PShader bilinearShader;
+	// Works out Bezier surface meshes on the graphics card, see BezierSurface.setEvaluatingOnGPU()
+	public PShader bezierPatchShader;
 	public PShader currentMainShader;
 	
-	// Shader attribute locations
-	private int basicPosLoc;
-	private int basicColorLoc;
-	private int basicTexLoc;
-	
-	private int projectivePosLoc;
-	private int projectiveColorLoc;
-	private int projectiveTexLoc;
-	
-	private int bilinearPosLoc;
-	private int bilinearColorLoc;
-	private int bilinearTexLoc;
+	// Shader attribute and uniform locations, looked up once per shader
+	private IdentityHashMap<PShader, ShaderLocations> shaderLocations;
 	
 	
 	private int VAOAddress;
 	private int VBOAddress;
-	private int gridTexAddress;
 	
-	private ArrayList<Float> quadVertices;
+	// Keeps our textures on the graphics card between frames
+	private TextureCache textureCache;
+	
+	// Staging area for the vertices of every surface. Each surface
+	//  gets a block of 6 vertices, in the same order as the surfaces array,
+	//  and we keep the same data in our VBO between frames.
+	private VertexStaging quadVertices;
+	
+	// What each vertex block was last built from, so we only
+	//  rebuild the blocks of surfaces that actually moved
+	private SuperSurface[] cachedSurfaces = new SuperSurface[0];
+	private int[] cachedGeometryVersions = new int[0];
+	private int[] cachedAnimationVersions = new int[0];
+	private int[] cachedTrackBases = new int[0];
+	private boolean[] cachedProjective = new boolean[0];
+	private int cachedSurfaceCount = -1;
+	private int cachedParentWidth;
+	private int cachedParentHeight;
+	
+	// Runs of surfaces that can be drawn with a single draw call,
+	//  in the same order as the surfaces array
+	private ArrayList<DrawBatch> drawBatches;
+	private int numDrawBatches;
+	
+	// Outputs (usually projectors) we draw into, see addOutput().
+	//  If there aren't any, everything goes into the whole target like normal.
+	private ArrayList<OutputRegion> outputs;
+	private float[] identityTransform = {1, 0, 0, 0, 1, 0, 0, 0, 1};
+	private int[] savedViewport = new int[4];
+	// Viewport of the output being drawn, in framebuffer pixels, and its blend zones
+	private float[] outputViewport = new float[4];
+	private float[] blendWidths = new float[4];
+	private float blendGamma = 1;
+	private float blendCurve = 1;
+	
+	// OpenGL PGraphics textures we've already fetched this frame,
+	//  so each one only gets resolved once however many batches use it
+	private IdentityHashMap<PImage, Texture> sharedTextures;
+	
+	// Grid over the surfaces so mouse handling only looks at nearby ones,
+	//  see getSurfaceIndex()
+	private SurfaceIndex surfaceIndex;
+	private boolean surfaceIndexStale = true;
+	private ArrayList<SuperSurface> nearbySurfaces = new ArrayList<SuperSurface>();
+	
+	// Committing edits on more surfaces than this gets split up
+	//  and run in parallel, see commitEdits()
+	private static final int PARALLEL_EDIT_THRESHOLD = 16;
+	
+	// Meshes of the Bezier and mesh surfaces, kept on the graphics card between frames
+	private IdentityHashMap<SuperSurface, SurfaceMesh> surfaceMeshes;
+	// The same meshes in a list, so the per-frame sweep doesn't need an iterator
+	private ArrayList<SurfaceMesh> meshList;
+	private long meshFrame;
+	private float[] patchPoints = new float[24];
+	private PVector patchForce = new PVector();
+	
+	// getTime() at the start of drawing the current frame
+	private float frameTime;
+	
+	// Keyframe animation, see getTimeline()
+	private Timeline timeline;
+	// The timeline's keys on the graphics card, and what they were packed from
+	private int trackTexture;
+	private int uploadedTrackVersion = -1;
+	private FloatBuffer trackBuffer;
+	// Where the timeline's playhead is for the current frame
+	private float timelineTime;
+	// Timeline version the last drawn frame showed
+	private int drawnTimelineVersion = -1;
+	
+	/**
+	 * A run of neighboring surfaces that share a shader and a texture,
+	 *  so they can all go out in one glDrawArrays call.
+	 *  A Bezier or mesh surface always gets a batch to itself, drawn from its own mesh.
+	 *  These get reused every frame, so don't hold on to them.
+	 */
+	private static class DrawBatch {
+		PShader shader;
+		PImage texture;
+		// If the texture is an OpenGL PGraphics, this is its texture on the
+		//  graphics card, which we draw from directly instead of uploading
+		Texture sharedTexture;
+		// FILTER_NEAREST, FILTER_LINEAR or FILTER_TRILINEAR, never AUTO
+		int filter;
+		// Output to draw into, null if we don't have any
+		OutputRegion output;
+		// Mesh to draw instead of the quad vertices, for Bezier and mesh surfaces
+		SurfaceMesh mesh;
+		int firstVertex;
+		int vertexCount;
+	}
 	
 	PJOGL pgl;
 	GL3ES3 gl;
@@ -282,6 +397,8 @@ public class VMap extends PImage implements PConstants{
 		this.setSelectionMouseColor(0xFFCCCCCC);
 		surfaces = new ArrayList<SuperSurface>();
 		selectedSurfaces = new ArrayList<SuperSurface>();
+		surfaceIndex = new SurfaceIndex(128);
+		timeline = new Timeline(this);
 		allowUserInput = true;
 
 		// check the renderer type
@@ -297,11 +414,17 @@ public class VMap extends PImage implements PConstants{
 		
 		// OpenGL setup stuff //
 		
-		quadVertices = new ArrayList<Float>();		
+		quadVertices = new VertexStaging(64 * 6);
+		drawBatches = new ArrayList<DrawBatch>();
+		sharedTextures = new IdentityHashMap<PImage, Texture>();
+		surfaceMeshes = new IdentityHashMap<SuperSurface, SurfaceMesh>();
+		meshList = new ArrayList<SurfaceMesh>();
+		outputs = new ArrayList<OutputRegion>();
 		// Load in our shaders
 		this.testShader = parent.loadShader("testShader.frag", "testShader.vert");
 		this.projectiveShader = parent.loadShader("projectiveShader.frag", "projectiveShader.vert");
 		this.bilinearShader = parent.loadShader("bilinearInterpolation.frag", "bilinearInterpolation.vert");
+		this.bezierPatchShader = parent.loadShader("testShader.frag", "bezierPatch.vert");
 		
 		this.currentMainShader = this.bilinearShader;
 		
@@ -395,28 +518,39 @@ public class VMap extends PImage implements PConstants{
 	/**
 	 * Sets up vertex attribute locations
 	 *  by getting them from the shaders.
-	 *  Only have to do this once at the start
+	 *  Only have to do this once at the start for our built-in shaders,
+	 *  other shaders get looked up the first time they're drawn with.
 	 */
 	private void findVertexAttributeLocations(){
-		// Get Vertex Attribute Location for position
+		shaderLocations = new IdentityHashMap<PShader, ShaderLocations>();
+		
 		this.testShader.bind();
-	    basicPosLoc = gl.glGetAttribLocation(testShader.glProgram, "position");
-	    basicColorLoc = gl.glGetAttribLocation(testShader.glProgram, "color");
-	    basicTexLoc = gl.glGetAttribLocation(testShader.glProgram, "texLoc");
-	    this.testShader.unbind();
+		getShaderLocations(this.testShader);
+		this.testShader.unbind();
 	    
-	    this.projectiveShader.bind();
-	    projectivePosLoc = gl.glGetAttribLocation(projectiveShader.glProgram, "position");
-	    projectiveColorLoc = gl.glGetAttribLocation(projectiveShader.glProgram, "color");
-	    projectiveTexLoc = gl.glGetAttribLocation(projectiveShader.glProgram, "texLoc");
-	    this.projectiveShader.unbind();
+		this.projectiveShader.bind();
+		getShaderLocations(this.projectiveShader);
+		this.projectiveShader.unbind();
 	    
-	    this.bilinearShader.bind();
-	    bilinearPosLoc = gl.glGetAttribLocation(bilinearShader.glProgram, "position");
-	    bilinearColorLoc = gl.glGetAttribLocation(bilinearShader.glProgram, "color");
-	    bilinearTexLoc = gl.glGetAttribLocation(bilinearShader.glProgram, "texLoc");    
-	    this.bilinearShader.unbind();
+		this.bilinearShader.bind();
+		getShaderLocations(this.bilinearShader);
+		this.bilinearShader.unbind();
+	}
 	
+	/**
+	 * Gets the cached locations for a shader, looking them up if
+	 *  we haven't seen this shader (or this build of it) before.
+	 *  The shader needs to be bound.
+	 * @param shader Shader to get locations for
+	 * @return Returns the shader's locations
+	 */
+	private ShaderLocations getShaderLocations(PShader shader){
+		ShaderLocations locations = shaderLocations.get(shader);
+		if (locations == null || locations.program != shader.glProgram){
+			locations = new ShaderLocations(gl, shader);
+			shaderLocations.put(shader, locations);
+		}
+		return locations;
 	}
 	
 	/**
@@ -434,50 +568,187 @@ public class VMap extends PImage implements PConstants{
 				gl.glGenBuffers(1, VBONames);
 				VBOAddress = VBONames.get(0);
 				
-				// Get a texture address
-				IntBuffer TexNames = IntBuffer.allocate(1);
-				gl.glGenTextures(1, TexNames);
-				gridTexAddress = TexNames.get(0);
+				// Textures get their own addresses as we need them
+				textureCache = new TextureCache(gl);
+				
+				// Samplers for each way of filtering textures
+				samplers = new int[3];
+				gl.glGenSamplers(3, samplers, 0);
+				setupSampler(samplers[FILTER_NEAREST], GL.GL_NEAREST, GL.GL_NEAREST);
+				setupSampler(samplers[FILTER_LINEAR], GL.GL_LINEAR, GL.GL_LINEAR);
+				setupSampler(samplers[FILTER_TRILINEAR], GL.GL_LINEAR_MIPMAP_LINEAR, GL.GL_LINEAR);
+	}
+	
+	/**
+	 * Sets up the filtering and wrapping of a sampler object
+	 * @param sampler Sampler to set up
+	 * @param minFilter What to do when the texture is shrunk
+	 * @param magFilter What to do when the texture is stretched
+	 */
+	private void setupSampler(int sampler, int minFilter, int magFilter){
+		gl.glSamplerParameteri(sampler, GL.GL_TEXTURE_MIN_FILTER, minFilter);
+		gl.glSamplerParameteri(sampler, GL.GL_TEXTURE_MAG_FILTER, magFilter);
+		gl.glSamplerParameteri(sampler, GL.GL_TEXTURE_WRAP_S, GL.GL_CLAMP_TO_EDGE);
+		gl.glSamplerParameteri(sampler, GL.GL_TEXTURE_WRAP_T, GL.GL_CLAMP_TO_EDGE);
 	}
 	
 	/**
 	 * Sets up geometry in OpenGL
-	 *  Kind of a disaster right now, since
-	 *  it involves pulling mystery data out of thin air
-	 *  from a global set of coordinates in setOpenGLVerticies
-	 *  which should probably be refactored.
+	 *  Binds our VAO and VBO, rebuilding and sending up the vertex
+	 *  blocks of any surfaces that changed since last frame.
+	 *  If nothing moved, this doesn't touch any vertex data at all.
 	 */
 	private void setupOpenGLGeometry(){
 		
 		// Bind our VAO
 		gl.glBindVertexArray(VAOAddress);
 
-		// Now, create a VBO, bind it, add data to it,
+		// Now, update our VBO if we need to,
 		//  and keep it bound for us to use in this function
-		setOpenGLVertices();		
+		updateVertexCache();
+	}
+	
+	/**
+	 * Rebuilds the vertex blocks of surfaces whose geometry changed,
+	 *  and sends just those to the graphics card
+	 */
+	private void updateVertexCache(){
+		int count = surfaces.size();
 		
+		if (cachedSurfaces.length < count){
+			int newLength = Math.max(count, cachedSurfaces.length * 2);
+			cachedSurfaces = Arrays.copyOf(cachedSurfaces, newLength);
+			cachedGeometryVersions = Arrays.copyOf(cachedGeometryVersions, newLength);
+			cachedAnimationVersions = Arrays.copyOf(cachedAnimationVersions, newLength);
+			cachedTrackBases = Arrays.copyOf(cachedTrackBases, newLength);
+			cachedProjective = Arrays.copyOf(cachedProjective, newLength);
+		}
 		
-		// Now tell the shader how our data in our VBO is structured,
-		//  using Vertex Attribute pointers, like you do
-		gl.glVertexAttribPointer(basicPosLoc, 3, GL.GL_FLOAT,
-				                 false, 10 * Float.BYTES, 0);
-		gl.glEnableVertexAttribArray(basicPosLoc);  
+		// Our OpenGL coordinates depend on the window size,
+		//  so if that changed, everything is stale
+		if (parent.width != cachedParentWidth || parent.height != cachedParentHeight){
+			Arrays.fill(cachedSurfaces, null);
+			cachedParentWidth = parent.width;
+			cachedParentHeight = parent.height;
+		}
 		
-		// color
-		gl.glVertexAttribPointer(basicColorLoc, 4, GL.GL_FLOAT,
-		                         false, 10 * Float.BYTES, 3 * Float.BYTES);
-		gl.glEnableVertexAttribArray(basicColorLoc);
-		  
-		  // texture position
-		gl.glVertexAttribPointer(basicTexLoc, 3, GL.GL_FLOAT,
-		                         false, 10 * Float.BYTES, 7 * Float.BYTES);
-		gl.glEnableVertexAttribArray(basicTexLoc);
+		boolean resized = count != cachedSurfaceCount;
+		quadVertices.setVertexCount(count * 6);
 		
+		int firstDirty = -1;
+		int lastDirty = -1;
+		for (int i = 0; i < count; i++){
+			SuperSurface ss = surfaces.get(i);
+			boolean projective = getSurfaceShader(ss) == this.projectiveShader;
+			int trackBase = timeline.getTrackBase(ss);
+			if (cachedSurfaces[i] != ss || cachedGeometryVersions[i] != ss.getGeometryVersion()
+					|| cachedAnimationVersions[i] != ss.getAnimationVersion() || cachedProjective[i] != projective
+					|| cachedTrackBases[i] != trackBase){
+				quadVertices.position(i * 6);
+				quadVertices.setShake(ss.shakeAmplitude, ss.shakeFrequency, ss.shakeFalloff, ss.shakeStart);
+				quadVertices.setTrack(trackBase);
+				float[] cornerQ = (ss instanceof QuadSurface) ? ((QuadSurface) ss).getCornerQ() : null;
+				addQuadPointsToVertexList(ss.cornerPoints, projective, cornerQ);
+				
+				cachedSurfaces[i] = ss;
+				cachedGeometryVersions[i] = ss.getGeometryVersion();
+				cachedAnimationVersions[i] = ss.getAnimationVersion();
+				cachedTrackBases[i] = trackBase;
+				cachedProjective[i] = projective;
+				
+				if (firstDirty == -1){
+					firstDirty = i;
+				}
+				lastDirty = i;
+			}
+		}
+		// Forget about surfaces that aren't in the array anymore
+		for (int i = count; i < cachedSurfaceCount; i++){
+			cachedSurfaces[i] = null;
+		}
 		
-		//Unbind our VAO, just for s's and g's
-		//gl.glBindVertexArray(0);
-		// Do the same for our VBO
-		//gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+		if (resized){
+			setOpenGLVertices();
+		}
+		else if (firstDirty != -1){
+			quadVertices.uploadRange(gl, VBOAddress, firstDirty * 6, (lastDirty - firstDirty + 1) * 6);
+		}
+		else {
+			gl.glBindBuffer(GL.GL_ARRAY_BUFFER, VBOAddress);
+		}
+		cachedSurfaceCount = count;
+	}
+	
+	/**
+	 * Figures out which shader a surface gets drawn with
+	 * @param ss Surface to check
+	 * @return Returns the surface's own shader if it has one, otherwise the main shader
+	 */
+	private PShader getSurfaceShader(SuperSurface ss){
+		return (ss.shader == null) ? this.currentMainShader : ss.shader;
+	}
+	
+	/**
+	 * Figures out how a surface's texture gets sampled this frame
+	 * @param ss Surface to check
+	 * @param texture Texture the surface is drawing
+	 * @return Returns FILTER_NEAREST, FILTER_LINEAR or FILTER_TRILINEAR
+	 */
+	private int getSurfaceFilter(SuperSurface ss, PImage texture){
+		int filter = (ss.textureFilter == FILTER_DEFAULT) ? this.textureFilter : ss.textureFilter;
+		if (filter == FILTER_AUTO){
+			// Mipmaps only help if the texture is shrunk on screen
+			filter = isMinified(ss.cornerPoints, texture) ? FILTER_TRILINEAR : FILTER_LINEAR;
+		}
+		return filter;
+	}
+	
+	/**
+	 * Checks if a texture gets shrunk when drawn on a quad,
+	 *  by comparing the quad's longest top/bottom and left/right
+	 *  edges to the texture's width and height
+	 * @param corners Quad corners, top left, top right, bottom right, bottom left
+	 * @param texture Texture drawn on the quad
+	 * @return Returns true if either direction is shrunk
+	 */
+	private static boolean isMinified(PVector[] corners, PImage texture){
+		float across = Math.max(PApplet.dist(corners[0].x, corners[0].y, corners[1].x, corners[1].y),
+				                PApplet.dist(corners[3].x, corners[3].y, corners[2].x, corners[2].y));
+		float down = Math.max(PApplet.dist(corners[0].x, corners[0].y, corners[3].x, corners[3].y),
+				              PApplet.dist(corners[1].x, corners[1].y, corners[2].x, corners[2].y));
+		return across < texture.width || down < texture.height;
+	}
+	
+	/**
+	 * Sets how surface textures get sampled, for every surface that
+	 *  doesn't have its own setting (see SuperSurface.setTextureFilter()).
+	 *    FILTER_NEAREST - Blocky, but cheapest
+	 *    FILTER_LINEAR - Smooth, but shimmers when textures get shrunk a lot
+	 *    FILTER_TRILINEAR - Smooth at any size, but needs mipmaps built every time the texture changes
+	 *    FILTER_AUTO (the default) - Trilinear on surfaces that shrink their texture, linear otherwise
+	 * @param filter Filter to use
+	 */
+	public void setTextureFilter(int filter){
+		this.textureFilter = filter;
+	}
+	
+	/**
+	 * Gets how surface textures get sampled by default
+	 * @return Returns the filter, see setTextureFilter()
+	 */
+	public int getTextureFilter(){
+		return this.textureFilter;
+	}
+	
+	/**
+	 * Tells a shader how our data in our VBO is structured,
+	 *  using Vertex Attribute pointers, like you do.
+	 *  Attribute locations can differ between shaders, so this
+	 *  needs to happen whenever we switch shaders.
+	 * @param shader The shader that's currently bound
+	 */
+	private void setupVertexAttributes(PShader shader){
+		getShaderLocations(shader).setupVertexAttributes(gl);
 	}
 	
 	/**
@@ -485,250 +756,239 @@ public class VMap extends PImage implements PConstants{
 	 *  It takes in an array of exactly 4 PVector vertices, and
 	 *  calculates helper values that our projective and bilinear
 	 *  interpolation shaders need. Where the magic happens.
+	 *  Everything is done with plain floats straight into quadVertices,
+	 *  so this doesn't allocate anything.
 	 * @param vertices Array of 4 PVectors, taking the 4 corner points of the 
 	 *                  quad in screen pixel coordinates
 	 * @param projective Are we using the projective shader? If so, we need
 	 *                    to know, since we do extra calculations on our UV points
+	 * @param cornerQ Q values the surface already worked out for its corners,
+	 *                 or null to work them out here from the diagonals
 	 */
-	private void addQuadPointsToVertexList(PVector[] vertices, boolean projective){
+	private void addQuadPointsToVertexList(PVector[] vertices, boolean projective, float[] cornerQ){
 		if (vertices.length != 4){
 			PApplet.println("Warning! One of your superSurfaces has less than 4 vertices");
 		}
 		// For more sensible internal calculation
-		PVector topLeft = convertPixelToOpenGLCoords(vertices[0]);
-		PVector topRight = convertPixelToOpenGLCoords(vertices[1]);
-		PVector bottomRight = convertPixelToOpenGLCoords(vertices[2]);
-		PVector bottomLeft = convertPixelToOpenGLCoords(vertices[3]);
+		float topLeftX = pixelToOpenGLX(vertices[0].x);
+		float topLeftY = pixelToOpenGLY(vertices[0].y);
+		float topRightX = pixelToOpenGLX(vertices[1].x);
+		float topRightY = pixelToOpenGLY(vertices[1].y);
+		float bottomRightX = pixelToOpenGLX(vertices[2].x);
+		float bottomRightY = pixelToOpenGLY(vertices[2].y);
+		float bottomLeftX = pixelToOpenGLX(vertices[3].x);
+		float bottomLeftY = pixelToOpenGLY(vertices[3].y);
 		
-		// Figure out q values for projective projection
-		// Figure out the diagonal intersection point
-		PVector di = new PVector (0,0);
-		float m1 = (topRight.y - bottomLeft.y) / (topRight.x - bottomLeft.x);
-		float m2 = (bottomRight.y - topLeft.y) / (bottomRight.x - topLeft.x);
-		//  println(m1);
-		//  println(m2);
-		// y = mx + b, y - mx = b
-		float b1 = topRight.y - (m1 * topRight.x);  
-		float b2 = topLeft.y - (m2 * topLeft.x);
-
-		//  println(b1);
-		//  println(b2);
-		// woo more algebra
-		// y1 = m1x1 + b1,        y1 = y2 and x1 = x2
-		// y2 = m2x2 + b2,  m1x + b1 = m2x2 + b2
-        //                 m1x - m2x = b2 - b1
-		//                   m1 - m2 = (b2 - b1) / x
-		//     (m1 - m2) / (b2 - b1) = 1/x
-		//     (b2 - b1) / (m1 - m2) = x
-		di.x = (b2 - b1) / (m1 - m2);
-		di.y = di.x * m1 + b1;
-
-		// distances between the points and the intersection point
-		float dtr = di.dist(topRight);
-		float dbr = di.dist(bottomRight);
-		float dbl = di.dist(bottomLeft);
-		float dtl = di.dist(topLeft);
-
 		// uvq values for the points
-		float q = 1;
-		if (projective == true) {q = (dtr + dbl) / dbl;}  
-		PVector topRightUVQ = new PVector(1.0f * q, 0.0f * q, q); 
-
-		if (projective == true) {q = (dbr + dtl) / dtl;}
-		PVector bottomRightUVQ = new PVector(1.0f * q, 1.0f * q, q);
-
-		if (projective == true) {q = (dtr + dbl) / dtr;}
-		PVector bottomLeftUVQ = new PVector(0.0f * q, 1.0f * q, q); 
-
-		if (projective == true) {q = (dbr + dtl) / dbr;}
-		PVector topLeftUVQ = new PVector(0.0f * q, 0.0f * q, q); 
-		
-		// Set the actual quad vertices
-		PVectorToQuadVertices(bottomLeft, bottomLeftUVQ); // bottom left
-		PVectorToQuadVertices(bottomRight, bottomRightUVQ); // bottom right
-		PVectorToQuadVertices(topLeft, topLeftUVQ); // top left
-		PVectorToQuadVertices(bottomRight, bottomRightUVQ); // bottom right
-		PVectorToQuadVertices(topRight, topRightUVQ); // top right
-		PVectorToQuadVertices(topLeft, topLeftUVQ); // top left
-//		
-//		PVectorToQuadVertices(convertPixelToOpenGLCoords(vertices[3]), 0.0f, 0.0f); // bottom left
-//		PVectorToQuadVertices(convertPixelToOpenGLCoords(vertices[2]), 1.0f, 0.0f); // bottom right
-//		PVectorToQuadVertices(convertPixelToOpenGLCoords(vertices[0]), 0.0f, 1.0f); // top left
-//		PVectorToQuadVertices(convertPixelToOpenGLCoords(vertices[2]), 1.0f, 0.0f); // bottom right
-//		PVectorToQuadVertices(convertPixelToOpenGLCoords(vertices[1]), 1.0f, 1.0f); // top right
-//		PVectorToQuadVertices(convertPixelToOpenGLCoords(vertices[0]), 0.0f, 1.0f); // top left
-	}
-	
-	
-	/**
-	 * Helper function that adds a default color (1.0f, 1.0f, 1.0f)
-	 *  and UV texture mapping data to a coordinate PVector,
-	 *  getting it ready to send to the shader
-	 *  to our 
-	 * @param positions PVector containing X,Y (and Z, but that gets set to 0) points
-	 * @param texCoords PVector containing U,V texture mapping data for the point
-	 */
-	private void PVectorToQuadVertices(PVector positions, PVector texCoords){
-		this.PVectorToQuadVertices(positions, texCoords.x, texCoords.y, texCoords.z);
-	}
-	
-	/**
-	 * Helper function that adds a default color (1.0f, 1.0f, 1.0f)
-	 *  and UV texture mapping data to a coordinate PVector,
-	 *  getting it ready to send to the shader
-	 *  to our 
-	 * @param positions PVector containing X,Y (and Z, but that gets set to 0) points
-	 * @param U U texture sampling point for this vertex
-	 * @param V V texture sampling point for this vertex
-	 * @param Q Special mapping value, used in our projective mapping shader
-	 */
-	private void PVectorToQuadVertices(PVector vector, float U, float V, float Q){
-		float[] vertex = {vector.x, vector.y, 0.0f, //position
-						  1.0f, 1.0f, 1.0f, 1.0f,   //color
-						  U, V, Q};				//UVs
+		float topRightQ = 1;
+		float bottomRightQ = 1;
+		float bottomLeftQ = 1;
+		float topLeftQ = 1;
 		
-		for (int i = 0; i < vertex.length; i++){
-			quadVertices.add(vertex[i]);
+		if (projective == true && cornerQ != null) {
+			// The surface already worked these out from its homography
+			topLeftQ = cornerQ[0];
+			topRightQ = cornerQ[1];
+			bottomRightQ = cornerQ[2];
+			bottomLeftQ = cornerQ[3];
 		}
+		else if (projective == true) {
+			// Figure out q values for projective projection
+			// Figure out the diagonal intersection point
+			float m1 = (topRightY - bottomLeftY) / (topRightX - bottomLeftX);
+			float m2 = (bottomRightY - topLeftY) / (bottomRightX - topLeftX);
+			// y = mx + b, y - mx = b
+			float b1 = topRightY - (m1 * topRightX);  
+			float b2 = topLeftY - (m2 * topLeftX);
+	
+			// woo more algebra
+			// y1 = m1x1 + b1,        y1 = y2 and x1 = x2
+			// y2 = m2x2 + b2,  m1x + b1 = m2x2 + b2
+	        //                 m1x - m2x = b2 - b1
+			//                   m1 - m2 = (b2 - b1) / x
+			//     (m1 - m2) / (b2 - b1) = 1/x
+			//     (b2 - b1) / (m1 - m2) = x
+			float diX = (b2 - b1) / (m1 - m2);
+			float diY = diX * m1 + b1;
+	
+			// distances between the points and the intersection point
+			float dtr = PApplet.dist(diX, diY, topRightX, topRightY);
+			float dbr = PApplet.dist(diX, diY, bottomRightX, bottomRightY);
+			float dbl = PApplet.dist(diX, diY, bottomLeftX, bottomLeftY);
+			float dtl = PApplet.dist(diX, diY, topLeftX, topLeftY);
+			
+			topRightQ = (dtr + dbl) / dbl;
+			bottomRightQ = (dbr + dtl) / dtl;
+			bottomLeftQ = (dtr + dbl) / dtr;
+			topLeftQ = (dbr + dtl) / dbr;
+		}
+		
+		// Every vertex carries all four corners, for the bilinear shader
+		quadVertices.setCorners(topLeftX, topLeftY, topRightX, topRightY,
+				                bottomLeftX, bottomLeftY, bottomRightX, bottomRightY);
 		
+		// Set the actual quad vertices, UVs get multiplied by q
+		quadVertices.vertex(bottomLeftX, bottomLeftY, 0.0f, bottomLeftQ, bottomLeftQ); // bottom left
+		quadVertices.vertex(bottomRightX, bottomRightY, bottomRightQ, bottomRightQ, bottomRightQ); // bottom right
+		quadVertices.vertex(topLeftX, topLeftY, 0.0f, 0.0f, topLeftQ); // top left
+		quadVertices.vertex(bottomRightX, bottomRightY, bottomRightQ, bottomRightQ, bottomRightQ); // bottom right
+		quadVertices.vertex(topRightX, topRightY, topRightQ, 0.0f, topRightQ); // top right
+		quadVertices.vertex(topLeftX, topLeftY, 0.0f, 0.0f, topLeftQ); // top left
+	}
+	
+	/**
+	 * This binds a texture for OpenGL to use. Textures that already live on
+	 *  the graphics card (OpenGL PGraphics) get bound directly, everything
+	 *  else gets uploaded, but only if it's new or has changed since last time.
+	 * @param batch Batch holding the texture we want to use for the next OpenGL draw operations
+	 * @param locations Locations in the currently bound shader
+	 */
+	private void setupGridTexture(DrawBatch batch, ShaderLocations locations){
+		boolean flipY = false;
+		int filter = batch.filter;
+		if (batch.sharedTexture != null){
+			gl.glBindTexture(batch.sharedTexture.glTarget, batch.sharedTexture.glName);
+			// Framebuffer textures are stored bottom row first
+			flipY = batch.sharedTexture.invertedY();
+			// We don't own these, so if Processing didn't give them mipmaps we can't use any
+			if (filter == FILTER_TRILINEAR && !batch.sharedTexture.usingMipmaps()){
+				filter = FILTER_LINEAR;
+			}
+		}
+		else {
+			textureCache.bind(batch.texture, filter == FILTER_TRILINEAR);
+		}
+		gl.glBindSampler(0, samplers[filter]);
+		if (locations.texFlipY >= 0){
+			gl.glUniform1f(locations.texFlipY, flipY ? 1.0f : 0.0f);
+		}
 	}
 	
-	/*
-	 * This function passes quad points to our bilinear shader
-	 *  It uses some magic data stored in our global quadVerticies
-	 *  array, which is dumb.
+	/**
+	 * Gets the texture an OpenGL PGraphics already has on the graphics card,
+	 *  so we can sample it without reading its pixels back to the CPU.
+	 *  This has to happen outside of any beginDraw()/endDraw(), since
+	 *  Processing may need to resolve the PGraphics' framebuffer first.
+	 * @param image Image to check
+	 * @return Returns the image's texture, or null if we have to upload it ourselves
 	 */
-	private void setBilinearPoints(){
-		// Sanity check to make sure we have points to send
-		if (quadVertices.size() != 60){
-			PApplet.println("Warning: tried to set bilinear shader points without the right number of vertices");
-			PApplet.println("Expected 6, had " + quadVertices.size());
-			return;
+	private Texture getSharedTexture(PImage image){
+		if (!(image instanceof PGraphicsOpenGL)){
+			return null;
 		}
-		// Also, make sure we've bound the bilinear shader
-		if (this.bilinearShader == null) {
-			PApplet.println("Warning: bilinearShader was null when trying to use setBilinearPoints");
-			return;
+		if (sharedTextures.containsKey(image)){
+			return sharedTextures.get(image);
 		}
-		if (this.bilinearShader.bound() == false){
-		  PApplet.println("Warning: bilinear shader needs to be bound in order for setBilinearPoints to work");
-		  return;
+		Texture tex = ((PGraphicsOpenGL) image).getTexture();
+		if (tex != null && !tex.available()){
+			tex = null;
 		}
-		
-		// Now actually get points!
-		int p0Location = gl.glGetUniformLocation(bilinearShader.glProgram, "p0");
-		int p1Location = gl.glGetUniformLocation(bilinearShader.glProgram, "p1");
-		int p2Location = gl.glGetUniformLocation(bilinearShader.glProgram, "p2");
-		int p3Location = gl.glGetUniformLocation(bilinearShader.glProgram, "p3");
-		
-		// Since we have our nice points, let's send them to the shader
-		gl.glUniform2f(p0Location, quadVertices.get(20), quadVertices.get(21)); //Top left//40Top right, set in addQuadPointsToVertex
-		gl.glUniform2f(p1Location, quadVertices.get(40), quadVertices.get(41)); //Top right //10Bottom right, set in addQuadPointsToVertex
-		gl.glUniform2f(p2Location, quadVertices.get(0), quadVertices.get(1)); //Bottom left //20Top left, set in addQuadPointsToVertex
-		gl.glUniform2f(p3Location, quadVertices.get(10), quadVertices.get(11)); //Bottom right//0Bottom left, set in addQuadPointsToVertex
-		
-		
+		sharedTextures.put(image, tex);
+		return tex;
 	}
 	
 	/**
-	 * This loads in a texture to the graphics card for OpenGL to use
-	 * @param texture Texture we want to use for the next OpenGL draw operations
+	 * Figures out which texture a surface should actually be drawn with
+	 * @param texture The surface's own texture, might be null
+	 * @return Returns the texture to draw with
 	 */
-	private void setupGridTexture(PImage texture){
+	private PImage resolveTexture(PImage texture){
 		// If we're in calibration mode, 
 		//  set the texture to our grid texture
 		if (MODE == MODE_CALIBRATE){
-		    texture = gridTexture;
+		    return gridTexture;
 		}
 		// If there's no texture, draw VMap's defaultDrawBuffer
-					//  i.e., basic mode
+		//  i.e., basic mode
 		else if (texture == null){
-				texture = this.defaultDrawBuffer;
+			return this.defaultDrawBuffer;
 		}
-		
-		texture.loadPixels();
-		IntBuffer buf = allocateDirectIntBuffer(texture.width * texture.height);
-		buf.put(texture.pixels);
-		buf.rewind();
-		
-		// Bind the texture
-		gl.glBindTexture(GL.GL_TEXTURE_2D, gridTexAddress);
-		// Now generate the texture on the graphics card
-		gl.glTexImage2D(GL.GL_TEXTURE_2D, 0, GL.GL_BGRA,
-		                  texture.width, texture.height, 0, GL.GL_BGRA, 
-		                  GL.GL_UNSIGNED_BYTE, buf);
-		gl.glGenerateMipmap(GL.GL_TEXTURE_2D);
-		
-		
+		return texture;
 	}
 	
 	/**
-	 * Helper function that creates a buffer of size n. Mostly exists to make our code prettier
-	 * @param n Size of buffer
-	 * @return Returns a FloatBuffer of size n
+	 * Tell VMap that an image's pixels have changed, so it gets sent to
+	 *  the graphics card again the next time a surface draws it.
+	 *  Calling updatePixels() on the image does the same thing.
+	 * @param image Image that changed
 	 */
-	private FloatBuffer allocateDirectFloatBuffer(int n) {
-		  return ByteBuffer.allocateDirect(n * Float.BYTES).order(ByteOrder.nativeOrder()).asFloatBuffer();
-		}
+	public void markDirty(PImage image){
+		textureCache.markDirty(image);
+	}
 	
 	/**
-	 * Helper function that creates a buffer of size n. Mostly exists to make our code prettier
-	 * @param n Size of buffer
-	 * @return Returns an IBuffer of size n
+	 * Stream an image to the graphics card through pixel buffer objects,
+	 *  so uploading it doesn't stall drawing. Good for movies and cameras
+	 *  that get a new frame every frame. Streamed images show up one frame
+	 *  late, and only get sent when they have a new frame
+	 *  (i.e. after movie.read() or markDirty()).
+	 * @param image Image to stream
+	 * @param stream Whether it should stream
 	 */
-	private IntBuffer allocateDirectIntBuffer(int n) {
-		  return ByteBuffer.allocateDirect(n * Integer.BYTES).order(ByteOrder.nativeOrder()).asIntBuffer();
+	public void setStreamingTexture(PImage image, boolean stream){
+		textureCache.setStreaming(image, stream);
+	}
+	
+	/**
+	 * Free the graphics card texture VMap is holding for an image.
+	 *  It'll get uploaded again if a surface draws it later.
+	 * @param image Image to free the texture for
+	 */
+	public void evictTexture(PImage image){
+		textureCache.evict(image);
+	}
+	
+	/**
+	 * Get the cache holding our textures on the graphics card
+	 * @return Returns the TextureCache this VMap uses
+	 */
+	public TextureCache getTextureCache(){
+		return textureCache;
+	}
+	
+	/**
+	 * Frees the textures of images that no surface is using anymore
+	 */
+	private void releaseUnusedTextures(){
+		ArrayList<PImage> inUse = new ArrayList<PImage>();
+		inUse.add(gridTexture);
+		inUse.add(defaultDrawBuffer);
+		for (SuperSurface ss : surfaces){
+			if (ss.getTexture() != null){
+				inUse.add(ss.getTexture());
+			}
 		}
+		textureCache.retainOnly(inUse);
+	}
 	
 	/**
-	 * Convert a point on the screen to OpenGL -1.0f to 1.0f coordinates
-	 * @param point Point to convert
-	 * @return Returns a PVector containing coordinates translated into OpenGL scale
+	 * Convert an X position on the screen to OpenGL -1.0f to 1.0f coordinates
+	 * @param x X position to convert
+	 * @return Returns the X position translated into OpenGL scale
 	 */
-	private PVector convertPixelToOpenGLCoords(PVector point){
-		float convertedX = point.x - (parent.width/2);
-		convertedX = convertedX / (parent.width/2);
-		
+	private float pixelToOpenGLX(float x){
+		float convertedX = x - (parent.width/2);
+		return convertedX / (parent.width/2);
+	}
+	
+	/**
+	 * Convert a Y position on the screen to OpenGL -1.0f to 1.0f coordinates
+	 * @param y Y position to convert
+	 * @return Returns the Y position translated into OpenGL scale
+	 */
+	private float pixelToOpenGLY(float y){
 		// Processing has opposite Y coordinates, so we need to invert
-		float convertedY = -point.y + (parent.height/2);
-		convertedY = convertedY / (parent.height/2);
-
-		PVector convertedVector = new PVector(convertedX, convertedY);
-		return convertedVector;
+		float convertedY = -y + (parent.height/2);
+		return convertedY / (parent.height/2);
 	}
 	
 	/**
-	 * Takes some magic data (from our global quadVertices array)
-	 *  and sticks it into the OpenGL vertex buffer object (VBO)
-	 *  that we are currently using. Needs refactoring to at least
-	 *  pass our data like civilized people, probably the VBO address too
+	 * Sticks the vertices in our quadVertices staging area into the
+	 *  OpenGL vertex buffer object (VBO) that we are currently using.
+	 *  The VBO stays bound afterwards.
 	 */
 	private void setOpenGLVertices(){
-
-		// create a buffer for our vertices, and then add them in
-		FloatBuffer verticesBuffer = allocateDirectFloatBuffer(this.quadVertices.size());
-		verticesBuffer.rewind();
-		for (int i = 0; i < this.quadVertices.size(); i++){
-			verticesBuffer.put(quadVertices.get(i));
-		}
-		verticesBuffer.rewind();
-		
-		// debugging printing
-//		PApplet.println(verticesBuffer);
-//		for (int j = 0; j < quadVertices.size()/9; j++){
-//			for (int i = 0; i < 9; i++){
-//				PApplet.print(" " + verticesBuffer.get());
-//			}
-//			PApplet.println(" ");
-//		}
-//		verticesBuffer.rewind();
-		
-		
-		// Put the vertices in it!
-		gl.glBindBuffer(GL.GL_ARRAY_BUFFER, VBOAddress);
-		gl.glBufferData(GL.GL_ARRAY_BUFFER, Float.BYTES * quadVertices.size(),
-                verticesBuffer, GL.GL_STATIC_DRAW);
-		
+		quadVertices.upload(gl, VBOAddress);
 	}
 	
 	/**
@@ -736,268 +996,777 @@ public class VMap extends PImage implements PConstants{
 	 * @param glos PGrapics buffer for offscreen rendering
 	 */
 	public void render(PGraphics glos) {
+		if (MODE == MODE_CALIBRATE) {
+			updateOverlayLayer();
+		}
 		glos.beginDraw();
 		glos.clear();
-		glos.endDraw();
 		if (MODE == MODE_CALIBRATE) {
 			parent.cursor();
-			glos.beginDraw();
-			
-			if(this.isUsingBackground()){
-				glos.image(backgroundTexture, 0, 0, width, height);
-			}
-			
-			glos.fill(0,40);
-			glos.noStroke();
-			glos.rect(-2,-2,width+4,height+4);
-			glos.stroke(255, 255, 255, 40);
-			glos.strokeWeight(1);
-			float gridRes = 32.0f;
-			
-			float step = width/gridRes;
-
-			for (float i = 1; i < width; i += step) {
-				glos.line(i, 0, i, parent.height);
-			}
-			
-			step = height/gridRes;
-			
-			for (float i = 1; i < width; i += step) {
-				glos.line(0, i, parent.width, i);
-			}
-			
-			glos.stroke(255);
-			glos.strokeWeight(2);
-			glos.line(1,1,width-1,1);
-			glos.line(width-1,1,width-1, height-1);
-			glos.line(1,height-1,width-1,height-1);
-			glos.line(1,1,1,height-1);
-			
-		
-			
-			if (selectionTool != null && !disableSelectionTool) {
-				glos.stroke(255,100);
-				glos.strokeWeight(1);
-				glos.fill(100, 100, 255, 50);
-				glos.rect(selectionTool.x, selectionTool.y, selectionTool.width, selectionTool.height);
-				glos.noStroke();
-			}
+			drawCalibrationOverlay(glos);
 			
-			glos.endDraw();
-
 			for (int i = 0; i < surfaces.size(); i++) {
-				surfaces.get(i).render(glos);
+				surfaces.get(i).drawGrid(glos);
 			}
 			
-			//Draw circles for SelectionDistance or SnapDistance (snap if CMD is down)
-			glos.beginDraw();
-			if(!ctrlDown){
-				glos.ellipseMode(PApplet.CENTER);
-				glos.fill(this.getSelectionMouseColor(),100);
-				glos.noStroke();
-				glos.ellipse(parent.mouseX, parent.mouseY, this.getSelectionDistance()*2, this.getSelectionDistance()*2);
-			}else{
-				glos.ellipseMode(PApplet.CENTER);
-				glos.fill(255,0,0,100);
-				glos.noStroke();
-				glos.ellipse(parent.mouseX, parent.mouseY, this.getSnapDistance()*2, this.getSnapDistance()*2);
-			}
+			drawCursorMarker(glos);
 			
 			// Set up some instruction text
-			glos.text("New quad: a", 10, glos.width - 50);		
-			
-			glos.endDraw();
-			
-			
-			
+			glos.text("New quad: a", 10, glos.width - 50);
 		} else {
 			parent.noCursor();
 		}
+		glos.endDraw();
+	}
+	
+	/**
+	 * Draws the calibration background (background image, grid and border)
+	 *  and the selection rectangle. The background only gets redrawn into
+	 *  its own layer when something about it changes, otherwise we just
+	 *  draw the layer we already have. Call updateOverlayLayer() before
+	 *  beginDraw() on g, so we never draw into two PGraphics at once.
+	 * @param g PGraphics to draw on, which needs to be drawing already
+	 */
+	private void drawCalibrationOverlay(PGraphics g){
+		g.image(overlayLayer, 0, 0, width, height);
+		
+		if (selectionTool != null && !disableSelectionTool) {
+			g.stroke(255,100);
+			g.strokeWeight(1);
+			g.fill(100, 100, 255, 50);
+			g.rect(selectionTool.x, selectionTool.y, selectionTool.width, selectionTool.height);
+			g.noStroke();
+		}
+	}
+	
+	/**
+	 * Redraws the calibration background layer, if anything about it changed
+	 *  since last time (size, background image or grid resolution)
+	 */
+	private void updateOverlayLayer(){
+		if (overlayLayer == null || overlayLayer.width != width || overlayLayer.height != height){
+			overlayLayer = parent.createGraphics(width, height, P3D);
+			overlayDirty = true;
+		}
+		// Backgrounds that get drawn to (like a PGraphics or a Movie) have to be redrawn
+		if (this.isUsingBackground() && backgroundTexture != null
+				&& (backgroundTexture.isModified() || backgroundTexture instanceof PGraphics)){
+			overlayDirty = true;
+		}
+		if (!overlayDirty){
+			return;
+		}
+		
+		PGraphics g = overlayLayer;
+		g.beginDraw();
+		g.clear();
+		
+		if(this.isUsingBackground() && backgroundTexture != null){
+			g.image(backgroundTexture, 0, 0, width, height);
+		}
+		//Draw a frame around the buffer
+		g.fill(0,40);
+		g.noStroke();
+		g.rect(-2,-2,width+4,height+4);
+		g.stroke(255, 255, 255, 40);
+		g.strokeWeight(1);
+		
+		float step = width/gridResolution;
+		for (float i = 1; i < width; i += step) {
+			g.line(i, 0, i, height);
+		}
+		
+		step = height/gridResolution;
+		for (float i = 1; i < height; i += step) {
+			g.line(0, i, width, i);
+		}
+		
+		g.stroke(255);
+		g.strokeWeight(2);
+		g.line(1,1,width-1,1);
+		g.line(width-1,1,width-1, height-1);
+		g.line(1,height-1,width-1,height-1);
+		g.line(1,1,1,height-1);
+		g.endDraw();
+		
+		overlayDirty = false;
+	}
+	
+	/**
+	 * Draws the circle around the mouse, showing the selection distance,
+	 *  or the snap distance while CMD is down
+	 * @param g PGraphics to draw on, which needs to be drawing already
+	 */
+	private void drawCursorMarker(PGraphics g){
+		g.ellipseMode(PApplet.CENTER);
+		g.noStroke();
+		if(!ctrlDown){
+			g.fill(this.getSelectionMouseColor(),100);
+			g.ellipse(parent.mouseX, parent.mouseY, this.getSelectionDistance()*2, this.getSelectionDistance()*2);
+		}else{
+			g.fill(255,0,0,100);
+			g.ellipse(parent.mouseX, parent.mouseY, this.getSnapDistance()*2, this.getSnapDistance()*2);
+		}
+	}
+	
+	/**
+	 * Sets how many lines the calibration background grid has across and down
+	 * @param resolution Number of grid divisions, 32 by default
+	 */
+	public void setGridResolution(float resolution){
+		if (resolution != this.gridResolution){
+			this.gridResolution = Math.max(1, resolution);
+			overlayDirty = true;
+		}
+	}
+	
+	/**
+	 * Gets how many lines the calibration background grid has across and down
+	 * @return Returns the number of grid divisions
+	 */
+	public float getGridResolution(){
+		return this.gridResolution;
 	}
 	
 	/**
 	 * Render method used when calibrating. Shouldn't be used for final rendering.
+	 *  Draws everything into the offScreenBuffer, then copies it
+	 *  into VMap's own pixels so you can image(vmap, ...) like you do.
+	 *  If you turn that copy off with setCopyToPixels(false),
+	 *  draw getOutput() instead.
 	 */
 	public void render() {
-		offScreenBuffer.beginDraw();
-		// parent.clear();
-		offScreenBuffer.clear();
-		offScreenBuffer.endDraw();
+		boolean drawn = renderFrame(offScreenBuffer);
+		
+		// Now copy all those pixels that are offscreen to our own buffer
+		//  This reads the whole frame back from the graphics card, so
+		//  it's slow at big resolutions. That's why you can turn it off.
+		if (copyToPixels && drawn){
+			this.copy(offScreenBuffer, 0, 0, width, height, 0, 0, width, height);
+		}
+	}
+	
+	/**
+	 * Gets the PGraphics that render() draws into. Drawing this with
+	 *  image() uses its texture directly, so it skips the copy
+	 *  into VMap's own pixels.
+	 * @return Returns the offscreen buffer holding the last rendered frame
+	 */
+	public PGraphics getOutput(){
+		return offScreenBuffer;
+	}
+	
+	/**
+	 * Set whether render() copies its output into VMap's own pixels.
+	 *  You need that for image(vmap, ...), but if you draw getOutput()
+	 *  or use renderTo() instead, turn it off and save a full-frame copy.
+	 * @param copy Whether to copy, true by default
+	 */
+	public void setCopyToPixels(boolean copy){
+		if (copy && !this.copyToPixels){
+			// Our pixels are out of date, so don't let idle skipping keep them that way
+			changeTracker.invalidate();
+		}
+		this.copyToPixels = copy;
+	}
+	
+	/**
+	 * Turns idle skipping on or off. With it on, render() and renderTo()
+	 *  check if anything changed since the last frame (surface geometry,
+	 *  textures, shaders, mode, selection or calibration input), and if
+	 *  nothing did, they leave last frame's output alone and skip all the
+	 *  drawing. Off by default.
+	 *  
+	 *  VMap can tell when you draw to it with vmap.beginDraw()/endDraw(),
+	 *  and when a PImage changes through updatePixels() or markDirty(),
+	 *  but any other PGraphics used as a texture always counts as changed.
+	 *  If you draw into a renderTo() target yourself, call forceRedraw().
+	 * @param skip Whether to skip frames where nothing changed
+	 */
+	public void setIdleSkipping(boolean skip){
+		this.idleSkipping = skip;
+		changeTracker.invalidate();
+	}
+	
+	/**
+	 * Check if idle skipping is on
+	 * @return Returns true if frames where nothing changed get skipped
+	 */
+	public boolean isIdleSkipping(){
+		return idleSkipping;
+	}
+	
+	/**
+	 * Makes sure the next frame gets drawn, even if idle skipping
+	 *  doesn't see anything different about it
+	 */
+	public void forceRedraw(){
+		changeTracker.invalidate();
+	}
+	
+	/**
+	 * @return Returns the number of frames that actually got drawn
+	 */
+	public long getRenderedFrameCount(){
+		return renderedFrames;
+	}
+	
+	/**
+	 * @return Returns the number of frames idle skipping skipped
+	 */
+	public long getSkippedFrameCount(){
+		return skippedFrames;
+	}
+	
+	/**
+	 * Sets the rendered and skipped frame counters back to zero
+	 */
+	public void resetFrameCounts(){
+		renderedFrames = 0;
+		skippedFrames = 0;
+	}
+	
+	/**
+	 * Checks if the next frame would look any different from the last one
+	 * @param target Where the frame is going to be drawn
+	 * @return Returns true if we need to draw it
+	 */
+	private boolean needsRedraw(PGraphics target){
+		boolean changed = changeTracker.update(surfaces, outputs, MODE, currentMainShader, textureFilter,
+				                               inputVersion, defaultDrawVersion, target);
+		if (changed){
+			return true;
+		}
+		if (MODE == MODE_CALIBRATE && (overlayDirty || (isUsingBackground() && backgroundTexture != null
+				&& (backgroundTexture.isModified() || backgroundTexture instanceof PGraphics)))){
+			return true;
+		}
+		// So do playing timelines, and scrubbing changes things too
+		if (timeline.isPlaying() || timeline.getVersion() != drawnTimelineVersion){
+			return true;
+		}
+		// Shaking surfaces change every frame
+		float now = getTime();
+		for (int i = 0; i < surfaces.size(); i++){
+			if (surfaces.get(i).isShaking(now)){
+				return true;
+			}
+		}
+		// Geometry and settings are the same, but did any pixels change?
+		for (int i = 0; i < surfaces.size(); i++){
+			PImage tex = resolveTexture(surfaces.get(i).texture);
+			if (tex == defaultDrawBuffer){
+				// defaultDrawVersion already covers this one
+				continue;
+			}
+			if (tex instanceof PGraphicsOpenGL || textureCache.needsUpload(tex)){
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Check whether render() copies its output into VMap's own pixels
+	 * @return Returns true if it does
+	 */
+	public boolean isCopyingToPixels(){
+		return copyToPixels;
+	}
+	
+	/**
+	 * Draws all the surfaces (and the calibration stuff, if we're calibrating)
+	 *  straight into a PGraphics of your choice, without going through
+	 *  VMap's own pixels. Use this when you don't need image(vmap, ...)
+	 *  and don't want to pay for a full-frame copy every frame.
+	 *  The target gets cleared first, and it has to be an OpenGL PGraphics
+	 *  (P2D or P3D) that you aren't in the middle of drawing to.
+	 * @param target PGraphics to draw into
+	 */
+	public void renderTo(PGraphics target) {
+		renderFrame(target);
+	}
+	
+	/**
+	 * Does the work for renderTo()
+	 * @param target PGraphics to draw into
+	 * @return Returns false if idle skipping skipped this frame
+	 */
+	private boolean renderFrame(PGraphics target) {
+		if (MODE != MODE_CALIBRATE) {
+			for (int i = 0; i < this.surfaces.size(); i++){
+				SuperSurface ss = this.surfaces.get(i);
+				// Add the default draw buffer on blank surfaces
+				if (useDefault){
+					if (ss.texture == null){
+					    ss.setTexture(defaultDrawBuffer);
+					}
+				}
+			}
+		}
+		
+		if (idleSkipping && !needsRedraw(target)){
+			skippedFrames++;
+			return false;
+		}
+		renderedFrames++;
+		
+		if (MODE == MODE_CALIBRATE) {
+			updateOverlayLayer();
+		}
+		prepareDrawBatches();
+		
+		// Everything below shares one beginDraw()/endDraw()
+		target.beginDraw();
+		target.clear();
 		
 		if (MODE == MODE_CALIBRATE) {
 			parent.cursor();
-			offScreenBuffer.beginDraw();
+			drawCalibrationOverlay(target);
 			
-			if(this.isUsingBackground()){
-				offScreenBuffer.image(backgroundTexture, 0, 0, width, height);
+			for (int i = 0; i < surfaces.size(); i++) {
+				surfaces.get(i).drawGrid(target);
+				surfaces.get(i).drawControlPoints(target);
 			}
-			//Draw a frame around the buffer
-			offScreenBuffer.fill(0,40);
-			offScreenBuffer.noStroke();
-			offScreenBuffer.rect(-2,-2,width+4,height+4);
-			offScreenBuffer.stroke(255, 255, 255, 40);
-			offScreenBuffer.strokeWeight(1);
-			float gridRes = 32.0f;
 			
-			float step = width/gridRes;
+			//Draw circles for SelectionDistance or SnapDistance (snap if CMD is down)
+			drawCursorMarker(target);
+		}
+		// Render mode!
+		else {
+			parent.noCursor();
+		}
 
-			for (float i = 1; i < width; i += step) {
-				offScreenBuffer.line(i, 0, i, parent.height);
+		// Now that we've drawn all our surfaces, let's show them with OpenGL!
+		drawOpenGLGeometry(target);
+		target.endDraw();
+		return true;
+	}
+	
+	/**
+	 * Sorts the surfaces into batches for drawOpenGLGeometry().
+	 *  Neighboring surfaces that share a shader, texture and filter
+	 *  get drawn together in one draw call.
+	 *  
+	 *  This has to happen before beginDraw() on the target, since
+	 *  fetching a PGraphics' texture can switch framebuffers on us.
+	 */
+	private void prepareDrawBatches(){
+		// Pick our shader
+		if (this.currentMainShader == null){
+			this.currentMainShader = this.testShader;
+		}
+		
+		textureCache.beginFrame();
+		sharedTextures.clear();
+		
+		// Sort the surfaces into batches. Surface i's vertices
+		//  always live at vertex i * 6 (see updateVertexCache)
+		numDrawBatches = 0;
+		if (outputs.isEmpty()){
+			addDrawBatches(null, -1);
+		}
+		else {
+			// Each output gets its own run of batches, drawn in output order
+			for (int o = 0; o < outputs.size(); o++){
+				addDrawBatches(outputs.get(o), o);
 			}
-			
-			step = height/gridRes;
-			
-			for (float i = 1; i < width; i += step) {
-				offScreenBuffer.line(0, i, parent.width, i);
+		}
+	}
+	
+	/**
+	 * Batches up the surfaces that show up in one output
+	 * @param output Output to batch for, null if we don't have any
+	 * @param outputIndex Index of the output, -1 if we don't have any
+	 */
+	private void addDrawBatches(OutputRegion output, int outputIndex){
+		DrawBatch batch = null;
+		for (int i = 0; i < surfaces.size(); i++) {
+			SuperSurface ss = surfaces.get(i);
+			if (outputIndex >= 0 && ss.output != SuperSurface.ALL_OUTPUTS && ss.output != outputIndex
+					&& ss.output < outputs.size()){
+				continue;
 			}
-			
-			offScreenBuffer.stroke(255);
-			offScreenBuffer.strokeWeight(2);
-			offScreenBuffer.line(1,1,width-1,1);
-			offScreenBuffer.line(width-1,1,width-1, height-1);
-			offScreenBuffer.line(1,height-1,width-1,height-1);
-			offScreenBuffer.line(1,1,1,height-1);
-			
-			if (selectionTool != null && !disableSelectionTool) {
-				offScreenBuffer.stroke(255,100);
-				offScreenBuffer.strokeWeight(1);
-				offScreenBuffer.fill(100, 100, 255, 50);
-				offScreenBuffer.rect(selectionTool.x, selectionTool.y, selectionTool.width, selectionTool.height);
-				offScreenBuffer.noStroke();
+			PShader shader = getSurfaceShader(ss);
+			PImage texture = resolveTexture(ss.texture);
+			int filter = getSurfaceFilter(ss, texture);
+			SurfaceMesh mesh = getSurfaceMesh(ss);
+			// The bilinear shader works from the outer corners, which would
+			//  flatten the curve right back out, so meshes skip it
+			//  Animated Bezier surfaces go there too, so playing doesn't rebuild their mesh.
+			if (mesh != null && ss.shader == null && ss instanceof BezierSurface
+					&& (((BezierSurface) ss).isEvaluatingOnGPU() || timeline.hasTracks(ss))){
+				shader = this.bezierPatchShader;
 			}
-			
-			offScreenBuffer.endDraw();
-
-			// in preparation for rendering, we need to reset our vertex list
-			
-			for (int i = 0; i < surfaces.size(); i++) {
-				surfaces.get(i).render(offScreenBuffer);
-				surfaces.get(i).renderControlPoints(offScreenBuffer);
-//				
-//				PVector[] surfaceVertices = surfaces.get(i).cornerPoints;
-//				addQuadPointsToVertexList(surfaceVertices);			
-			
-				
+			else if (mesh != null && shader == this.bilinearShader){
+				shader = this.testShader;
 			}
 			
-			//Draw circles for SelectionDistance or SnapDistance (snap if CMD is down)
-			offScreenBuffer.beginDraw();
-			if(!ctrlDown){
-				offScreenBuffer.ellipseMode(PApplet.CENTER);
-				offScreenBuffer.fill(this.getSelectionMouseColor(),100);
-				offScreenBuffer.noStroke();
-				offScreenBuffer.ellipse(parent.mouseX, parent.mouseY, this.getSelectionDistance()*2, this.getSelectionDistance()*2);
-			}else{
-				offScreenBuffer.ellipseMode(PApplet.CENTER);
-				offScreenBuffer.fill(255,0,0,100);
-				offScreenBuffer.noStroke();
-				offScreenBuffer.ellipse(parent.mouseX, parent.mouseY, this.getSnapDistance()*2, this.getSnapDistance()*2);
+			// Batches have to be one unbroken run of vertices
+			boolean canMerge = batch != null && mesh == null && batch.mesh == null
+					           && batch.shader == shader && batch.texture == texture
+					           && batch.filter == filter && batch.firstVertex + batch.vertexCount == i * 6;
+			if (canMerge){
+				batch.vertexCount += 6;
 			}
-			offScreenBuffer.endDraw();
-			
-			
+			else {
+				batch = nextDrawBatch();
+				batch.shader = shader;
+				batch.texture = texture;
+				batch.sharedTexture = getSharedTexture(texture);
+				batch.filter = filter;
+				batch.output = output;
+				batch.mesh = mesh;
+				batch.firstVertex = i * 6;
+				batch.vertexCount = 6;
+			}
+		}
+	}
+	
+	/**
+	 * Gets the mesh a surface gets drawn from, if it has one
+	 * @param ss Surface to check
+	 * @return Returns the surface's mesh if it's a Bezier or mesh surface, otherwise null
+	 */
+	private SurfaceMesh getSurfaceMesh(SuperSurface ss){
+		if (!(ss instanceof BezierSurface) && !(ss instanceof MeshSurface)){
+			return null;
+		}
+		SurfaceMesh mesh = surfaceMeshes.get(ss);
+		if (mesh == null){
+			mesh = new SurfaceMesh(ss);
+			surfaceMeshes.put(ss, mesh);
+			meshList.add(mesh);
+		}
+		return mesh;
+	}
+	
+	/**
+	 * Sends up the meshes of any Bezier or mesh surfaces that changed,
+	 *  and frees the ones that aren't getting drawn anymore
+	 */
+	private void updateSurfaceMeshes(){
+		if (surfaceMeshes.isEmpty()){
+			return;
+		}
+		meshFrame++;
+		for (int i = 0; i < numDrawBatches; i++){
+			DrawBatch batch = drawBatches.get(i);
+			SurfaceMesh mesh = batch.mesh;
+			if (mesh != null && mesh.lastUsedFrame != meshFrame){
+				mesh.update(gl, parent.width, parent.height, batch.shader == this.bezierPatchShader);
+				mesh.lastUsedFrame = meshFrame;
+			}
+		}
+		// Sweep out the unused ones, packing the rest down in place
+		int kept = 0;
+		for (int i = 0; i < meshList.size(); i++){
+			SurfaceMesh mesh = meshList.get(i);
+			if (mesh.lastUsedFrame != meshFrame){
+				mesh.dispose(gl);
+				surfaceMeshes.remove(mesh.surface);
+			}
+			else {
+				meshList.set(kept++, mesh);
+			}
+		}
+		for (int i = meshList.size() - 1; i >= kept; i--){
+			meshList.remove(i);
+		}
+	}
+	
+	/**
+	 * Use OpenGL to draw some stuff. Textured quads, in particular.
+	 *  This function actually draws all of our surfaces.
+	 *  
+	 *  All the quad vertices go to the graphics card in one buffer, then
+	 *  each batch from prepareDrawBatches() goes out in one draw call.
+	 *  Bezier and mesh surfaces draw from their own mesh buffers instead, still one call each.
+	 *  We only ever merge neighbors, so surfaces still stack in the same
+	 *  order as the surfaces array (which is what bringSurfaceToFront changes).
+	 * @param target PGraphics to draw into, which needs to be drawing already
+	 */
+	private void drawOpenGLGeometry(PGraphics target){
+		// OpenGL rendering of our stuff
+		//  draws the actual surfaces
+		//  as OpenGL triangle-quads
+		
+		// This also flushes anything Processing drew before us
+		target.beginPGL();
+		
+		if (numDrawBatches > 0){
+			// The timeline's keys only go up when they change
+			timelineTime = timeline.update();
+			drawnTimelineVersion = timeline.getVersion();
+			updateTrackTexture();
 			
+			// Only surfaces that moved get sent to the graphics card
+			setupOpenGLGeometry();
+			updateSurfaceMeshes();
 			
-		}
-		// Render mode!
-		else {
+			gl.glGetIntegerv(GL.GL_VIEWPORT, savedViewport, 0);
+			// Everything animates off the same clock for the whole frame
+			frameTime = getTime();
 			
-			parent.noCursor();
-			for (SuperSurface ss : this.surfaces){
-				// Add the default draw buffer on blank surfaces
-				if (useDefault){
-					if (ss.texture == null){
-					    ss.setTexture(defaultDrawBuffer);
+			PShader boundShader = null;
+			int boundBuffer = 0;
+			OutputRegion currentOutput = null;
+			float[] transform = identityTransform;
+			Arrays.fill(blendWidths, 0);
+			for (int i = 0; i < numDrawBatches; i++){
+				DrawBatch batch = drawBatches.get(i);
+				
+				// Move to the next output, if this batch is in a different one
+				if (batch.output != null && batch.output != currentOutput){
+					currentOutput = batch.output;
+					setOutputViewport(currentOutput, target);
+					transform = currentOutput.getTransform(parent.width, parent.height);
+					currentOutput.getBlendFractions(blendWidths);
+					blendGamma = currentOutput.getBlendGamma();
+					blendCurve = currentOutput.getBlendCurve();
+				}
+				
+				// Bind the correct shader, if it changed
+				if (batch.shader != boundShader){
+					if (boundShader != null){
+						boundShader.unbind();
 					}
+					boundShader = batch.shader;
+					boundShader.bind();
+					boundBuffer = 0;
+				}
+				
+				// Point the shader at the quad vertices or the surface's mesh
+				int buffer = (batch.mesh == null) ? VBOAddress : batch.mesh.getVBO();
+				if (buffer != boundBuffer){
+					gl.glBindBuffer(GL.GL_ARRAY_BUFFER, buffer);
+					setupVertexAttributes(boundShader);
+					boundBuffer = buffer;
+				}
+				
+				ShaderLocations locations = getShaderLocations(boundShader);
+				setupOutputUniforms(locations, transform);
+				setupAnimationUniforms(locations);
+				setupGridTexture(batch, locations);
+				if (batch.shader == this.bezierPatchShader){
+					setupPatchUniforms(locations, (BezierSurface) batch.mesh.surface);
+				}
+				if (batch.mesh != null){
+					batch.mesh.draw(gl);
 				}
-//				ss.render();
+				else {
+					gl.glDrawArrays(GL.GL_TRIANGLES, batch.firstVertex, batch.vertexCount);
+				}
+			}
+			
+			// unbind the shader and the keys, and give texture unit 0
+			//  its own filtering back for Processing
+			boundShader.unbind();
+			gl.glActiveTexture(GL.GL_TEXTURE1);
+			gl.glBindTexture(GL.GL_TEXTURE_2D, 0);
+			gl.glActiveTexture(GL.GL_TEXTURE0);
+			gl.glBindSampler(0, 0);
+			if (currentOutput != null){
+				gl.glViewport(savedViewport[0], savedViewport[1], savedViewport[2], savedViewport[3]);
 			}
 		}
-
-		// Now that we've drawn all our surfaces, let's show them with OpenGL!
-		drawOpenGLGeometry();
-		
-		// Now copy all those pixels that are offscreen to our own buffer
-		//  This could probably be taken out by a big refactor, but I don't understand
-		//  the PGraphics side well enough, and it's easier to understand new VMap(width, height)
-		//  than createGraphics()...
-		
 		
-		this.copy(offScreenBuffer, 0, 0, width, height, 0, 0, width, height);
-
+		target.endPGL();
 	}
 	
 	/**
-	 * Use OpenGL to draw some stuff. Textured quads, in particular.
-	 *  This function actually draws all of our surfaces
+	 * Points OpenGL at the part of the target an output gets drawn into
+	 * @param output Output to draw
+	 * @param target PGraphics being drawn into
 	 */
-	private void drawOpenGLGeometry(){
-		// OpenGL rendering of our stuff
-		//  draws the actual surfaces
-		//  as OpenGL triangle-quads
-		
-		//Draw our test triangle
-		offScreenBuffer.beginDraw();
-		offScreenBuffer.beginPGL();
-		
+	private void setOutputViewport(OutputRegion output, PGraphics target){
+		// Outputs are in Processing pixels, but OpenGL counts from the bottom
+		//  and in real pixels, which differ on high density screens
+		float density = (float) savedViewport[3] / target.height;
+		int x = Math.round(output.getViewportX() * density);
+		int w = Math.round(output.getViewportWidth() * density);
+		int h = Math.round(output.getViewportHeight() * density);
+		int y = savedViewport[3] - Math.round(output.getViewportY() * density) - h;
+		gl.glViewport(savedViewport[0] + x, savedViewport[1] + y, w, h);
+		outputViewport[0] = savedViewport[0] + x;
+		outputViewport[1] = savedViewport[1] + y;
+		outputViewport[2] = w;
+		outputViewport[3] = h;
+	}
+	
+	/**
+	 * Tells the bound shader about the output we're drawing into.
+	 *  With no outputs, the transform is the identity and there's no blending.
+	 * @param locations Locations in the currently bound shader
+	 * @param transform Canvas to output transform, column-major
+	 */
+	private void setupOutputUniforms(ShaderLocations locations, float[] transform){
+		if (locations.outputTransform >= 0){
+			gl.glUniformMatrix3fv(locations.outputTransform, 1, false, transform, 0);
+		}
+		if (locations.outputViewport >= 0){
+			gl.glUniform4fv(locations.outputViewport, 1, outputViewport, 0);
+		}
+		if (locations.blendWidths >= 0){
+			gl.glUniform4fv(locations.blendWidths, 1, blendWidths, 0);
+		}
+		if (locations.blendGamma >= 0){
+			gl.glUniform1f(locations.blendGamma, blendGamma);
+		}
+		if (locations.blendCurve >= 0){
+			gl.glUniform1f(locations.blendCurve, blendCurve);
+		}
+	}
+	
+	/**
+	 * Sends the timeline's keys to the graphics card if they changed since
+	 *  last time, and leaves them bound to texture unit 1 for the shaders.
+	 *  Scrubbing and playing only move the playhead, so they never get here.
+	 */
+	private void updateTrackTexture(){
+		gl.glActiveTexture(GL.GL_TEXTURE1);
+		if (trackTexture == 0){
+			int[] names = new int[1];
+			gl.glGenTextures(1, names, 0);
+			trackTexture = names[0];
+			gl.glBindTexture(GL.GL_TEXTURE_2D, trackTexture);
+			gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MIN_FILTER, GL.GL_NEAREST);
+			gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MAG_FILTER, GL.GL_NEAREST);
+		}
+		else {
+			gl.glBindTexture(GL.GL_TEXTURE_2D, trackTexture);
+		}
+		gl.glBindSampler(1, 0);
 		
-		// Boo, we have to do a full draw routine for each
-		//  surface. Lame. Which means maybe we want
-		//  to move all the GL code to render() inside QuadSurface later?
-		for (int i = 0; i < surfaces.size(); i++) {
-			// First, get all the points of the surface
-			PVector[] surfaceVertices = surfaces.get(i).cornerPoints;
-			
-			// Pick our shader
-			if (this.currentMainShader == null){
-				this.currentMainShader = this.testShader;
-			}
-			
-			if (this.currentMainShader == this.projectiveShader){
-				addQuadPointsToVertexList(surfaceVertices, true);
-			}
-			else {
-				addQuadPointsToVertexList(surfaceVertices, false);
-			}
-		    
-			// Bind the correct shader
-			if (surfaces.get(i).shader == null){
-				this.currentMainShader.bind();
-			}
-			else{
-				surfaces.get(i).shader.bind();
-			}
-			
-			setupOpenGLGeometry();
-			
-			if (this.currentMainShader == this.bilinearShader){
-				this.setBilinearPoints();
-			}
-			
-			setupGridTexture(surfaces.get(i).texture);
-			int numVertices = this.quadVertices.size() / 10;
-			gl.glDrawArrays(GL.GL_TRIANGLES, 0, numVertices);
-			
-			// unbind the shader
-			if (surfaces.get(i).shader == null){
-				this.currentMainShader.unbind();
+		int version = timeline.pack();
+		if (version != uploadedTrackVersion){
+			// Whole rows only, and at least one, so the texture is never empty
+			int rows = Math.max(1, (timeline.getPackedTexels() + Timeline.TEXTURE_WIDTH - 1) / Timeline.TEXTURE_WIDTH);
+			int floats = rows * Timeline.TEXTURE_WIDTH * Track.KEY_SIZE;
+			if (trackBuffer == null || trackBuffer.capacity() < floats){
+				trackBuffer = ByteBuffer.allocateDirect(floats * Float.BYTES)
+						.order(ByteOrder.nativeOrder()).asFloatBuffer();
 			}
-			else{
-				surfaces.get(i).shader.unbind();
+			trackBuffer.clear();
+			trackBuffer.put(timeline.getPacked(), 0, Math.min(floats, timeline.getPacked().length));
+			while (trackBuffer.position() < floats){
+				trackBuffer.put(0);
 			}
-			
-			this.quadVertices.clear();
+			trackBuffer.rewind();
+			gl.glTexImage2D(GL.GL_TEXTURE_2D, 0, GL.GL_RGBA32F, Timeline.TEXTURE_WIDTH, rows, 0,
+					        GL.GL_RGBA, GL.GL_FLOAT, trackBuffer);
+			uploadedTrackVersion = version;
+		}
+		gl.glActiveTexture(GL.GL_TEXTURE0);
+	}
+	
+	/**
+	 * Tells the bound shader what time it is, so it can work out
+	 *  how far along each surface's shake and keyframes are
+	 * @param locations Locations in the currently bound shader
+	 */
+	private void setupAnimationUniforms(ShaderLocations locations){
+		if (locations.time >= 0){
+			gl.glUniform1f(locations.time, frameTime);
+		}
+		if (locations.timelineTime >= 0){
+			gl.glUniform1f(locations.timelineTime, timelineTime);
+		}
+		if (locations.tracks >= 0){
+			// See updateTrackTexture()
+			gl.glUniform1i(locations.tracks, 1);
+		}
+		if (locations.canvasHalf >= 0){
+			gl.glUniform2f(locations.canvasHalf, parent.width / 2, parent.height / 2);
+		}
+		if (locations.eyeDistance >= 0){
+			// Where Processing's default camera sits, so shaking
+			//  looks like it did when it moved the surfaces along Z
+			gl.glUniform1f(locations.eyeDistance, (float) ((parent.height / 2.0) / Math.tan(Math.PI / 6)));
 		}
+	}
 	
-		
-		offScreenBuffer.endPGL();
-		offScreenBuffer.endDraw();
-		
+	/**
+	 * Tells the bezierPatch shader about the surface it's drawing,
+	 *  which is all it needs to work out the whole mesh
+	 * @param locations Locations in the currently bound shader
+	 * @param surface Surface being drawn
+	 */
+	private void setupPatchUniforms(ShaderLocations locations, BezierSurface surface){
+		// Animated surfaces get their patch from the timeline, which is only 12 points
+		timeline.evaluatePatch(surface, timelineTime, patchPoints);
+		timeline.evaluateForce(surface, timelineTime, patchForce);
+		gl.glUniform2fv(locations.patchPoints, 12, patchPoints, 0);
+		gl.glUniform2f(locations.patchForce, patchForce.x, patchForce.y);
+		gl.glUniform1f(locations.patchRes, surface.getRes());
+	}
+	
+	/**
+	 * Adds an output (usually one projector) to draw surfaces into.
+	 *  Once you have any outputs, surfaces only get drawn through them,
+	 *  into whichever ones SuperSurface.setOutput() says (all of them by default).
+	 *  Everything still goes out in one pass, from one vertex buffer.
+	 * @param output Output to add
+	 * @return Returns the output, like you'd expect
+	 */
+	public OutputRegion addOutput(OutputRegion output){
+		outputs.add(output);
+		return output;
+	}
+	
+	/**
+	 * Adds an output that shows a rectangle of the canvas in the same spot
+	 *  of whatever we're rendering into. For a wide window across a few
+	 *  projectors, add one of these per projector.
+	 * @param x Left edge, in pixels
+	 * @param y Top edge, in pixels
+	 * @param width Width, in pixels
+	 * @param height Height, in pixels
+	 * @return Returns the new output
+	 */
+	public OutputRegion addOutput(int x, int y, int width, int height){
+		return addOutput(new OutputRegion(x, y, width, height));
+	}
+	
+	/**
+	 * Removes an output. Surfaces assigned to outputs after it
+	 *  keep their index, so you might want to reassign them.
+	 * @param output Output to remove
+	 */
+	public void removeOutput(OutputRegion output){
+		outputs.remove(output);
+	}
+	
+	/**
+	 * Removes all outputs, so everything gets drawn into the whole target again
+	 */
+	public void clearOutputs(){
+		outputs.clear();
+	}
+	
+	/**
+	 * Get all the outputs
+	 * @return Returns the list of outputs, in index order
+	 */
+	public ArrayList<OutputRegion> getOutputs(){
+		return outputs;
+	}
+	
+	/**
+	 * Gets the next free DrawBatch for this frame, making a new one if we've run out
+	 * @return Returns a DrawBatch to fill in
+	 */
+	private DrawBatch nextDrawBatch(){
+		if (numDrawBatches == drawBatches.size()){
+			drawBatches.add(new DrawBatch());
+		}
+		return drawBatches.get(numDrawBatches++);
 	}
 	
 	
 	/**
-	 * Shake all surfaces with max Z-displacement strength, vibration-speed speed, and shake decline fallOfSpeed. (min 0, max 1000 (1000 = un-ending shaking))
+	 * Shake all surfaces with max Z-displacement strength, vibration-speed speed, and shake decline fallOfSpeed. (min 1, max 1000 (1000 = no shaking))
+	 *  See SuperSurface.setShake(int, int, int).
 	 * @param strength Strength of z-displacement
 	 * @param speed Vibration speed
 	 * @param fallOffSpeed Falloff speed
@@ -1009,7 +1778,39 @@ public class VMap extends PImage implements PConstants{
 	}
 	
 	/**
-	 * Update shaking for all surfaces
+	 * Shake all surfaces, starting now
+	 * @param amplitude Max Z-displacement, in pixels
+	 * @param frequency Vibrations per second
+	 * @param falloff How fast it dies down, 0 shakes forever
+	 */
+	public void startShakeAll(float amplitude, float frequency, float falloff){
+		float now = getTime();
+		for(SuperSurface ss : surfaces){
+			ss.setShake(amplitude, frequency, falloff, now);
+		}
+	}
+	
+	/**
+	 * Get the clock shakes and other animations run on
+	 * @return Returns the time in seconds since the sketch started
+	 */
+	public float getTime(){
+		return parent.millis() / 1000.0f;
+	}
+
+	/**
+	 * Get the keyframe animation of the surfaces. It gets saved and
+	 *  loaded along with them by saveXML() and loadXML().
+	 * @return Returns the timeline
+	 */
+	public Timeline getTimeline(){
+		return timeline;
+	}
+	
+	/**
+	 * Update shaking for all surfaces. VMap's own drawing works shaking out
+	 *  on the graphics card, so this is only needed if you draw
+	 *  surfaces yourself with SuperSurface.render().
 	 */
 	public void shake(){
 		for(SuperSurface ss : surfaces){
@@ -1101,6 +1902,7 @@ public class VMap extends PImage implements PConstants{
 	 */
 	public void setBackground(PImage img){
 		this.backgroundTexture = img;
+		this.overlayDirty = true;
 		this.setUsingBackground(true);
 	}
 	
@@ -1117,6 +1919,9 @@ public class VMap extends PImage implements PConstants{
 	 * @param val boolean, should you render background image in calibration mode
 	 */
 	public void setUsingBackground(boolean val){
+		if (val != usingBackground){
+			overlayDirty = true;
+		}
 		usingBackground = val;
 	}
 
@@ -1131,6 +1936,7 @@ public class VMap extends PImage implements PConstants{
 			s.setColor(ccolor[numAddedSurfaces % ccolor.length]);
 		s.setModeCalibrate();
 		surfaces.add(s);
+		surfaceIndexStale = true;
 		numAddedSurfaces++;
 		return s;
 	}
@@ -1156,6 +1962,7 @@ public class VMap extends PImage implements PConstants{
 			s.setColor(ccolor[numAddedSurfaces % ccolor.length]);
 		s.setModeCalibrate();
 		surfaces.add(s);
+		surfaceIndexStale = true;
 		numAddedSurfaces++;
 	}
 	
@@ -1166,6 +1973,7 @@ public class VMap extends PImage implements PConstants{
 	public void addSurface(SuperSurface ss){
 		ss.setModeCalibrate();
 		surfaces.add(ss);
+		surfaceIndexStale = true;
 		numAddedSurfaces++;
 	}
 	
@@ -1182,6 +1990,7 @@ public class VMap extends PImage implements PConstants{
 			s.setColor(ccolor[numAddedSurfaces % ccolor.length]);
 		s.setModeCalibrate();
 		surfaces.add(s);
+		surfaceIndexStale = true;
 		numAddedSurfaces++;
 		return s;
 	}
@@ -1197,6 +2006,7 @@ public class VMap extends PImage implements PConstants{
 			s.setColor(ccolor[numAddedSurfaces % ccolor.length]);
 		s.setModeCalibrate();
 		surfaces.add(s);
+		surfaceIndexStale = true;
 		numAddedSurfaces++;
 		return s;
 	}
@@ -1214,6 +2024,7 @@ public class VMap extends PImage implements PConstants{
 			s.setColor(ccolor[numAddedSurfaces % ccolor.length]);
 		s.setModeCalibrate();
 		surfaces.add(s);
+		surfaceIndexStale = true;
 		numAddedSurfaces++;
 		return s;
 	}
@@ -1231,6 +2042,7 @@ public class VMap extends PImage implements PConstants{
 			s.setColor(ccolor[numAddedSurfaces % ccolor.length]);
 		s.setModeCalibrate();
 		surfaces.add(s);
+		surfaceIndexStale = true;
 		numAddedSurfaces++;
 	}
 	
@@ -1243,6 +2055,51 @@ public class VMap extends PImage implements PConstants{
 		addBezierSurface(null, x, y);
 	}
 	
+	/**
+	 * Creates a mesh surface at X/Y, a lattice of columns by rows points that can each be moved on their own.
+	 *  Returns the surface after it has been created.
+	 * @param columns Number of points across, at least 2
+	 * @param rows Number of points down, at least 2
+	 * @param x x coordinate of the surface's origin
+	 * @param y y coordinate of the surface's origin
+	 * @return Returns the MeshSurface you created
+	 */
+	public MeshSurface createMeshSurface(int columns, int rows, int x, int y) {
+		MeshSurface s = new MeshSurface(parent, this, x, y, columns, rows, numAddedSurfaces);
+		if (ccolor.length > 0)
+			s.setColor(ccolor[numAddedSurfaces % ccolor.length]);
+		s.setModeCalibrate();
+		surfaces.add(s);
+		surfaceIndexStale = true;
+		numAddedSurfaces++;
+		return s;
+	}
+	
+	/**
+	 * Adds a 4 by 4 mesh surface at X/Y
+	 * @param imageFilename filename for image texture to use
+	 * @param x x coordinate of the surface's origin
+	 * @param y y coordinate of the surface's origin
+	 */
+	public void addMeshSurface(String imageFilename, int x, int y) {
+		MeshSurface s = new MeshSurface(imageFilename, parent, this, x, y, 4, 4, numAddedSurfaces);
+		if (ccolor.length > 0)
+			s.setColor(ccolor[numAddedSurfaces % ccolor.length]);
+		s.setModeCalibrate();
+		surfaces.add(s);
+		surfaceIndexStale = true;
+		numAddedSurfaces++;
+	}
+	
+	/**
+	 * Creates a blank MeshSurface, adds it to the Vmap's registry
+	 * @param x X position
+	 * @param y Y position
+	 */
+	public void addMeshSurface(int x, int y){
+		addMeshSurface(null, x, y);
+	}
+	
 	/**
 	 * Get previous mouse position
 	 * @return Pvector, with previous mouseX and mouseY
@@ -1362,6 +2219,9 @@ public class VMap extends PImage implements PConstants{
 	public void clearSurfaces(){
 		selectedSurfaces.clear();
 		surfaces.clear();
+		timeline.clear();
+		releaseUnusedTextures();
+		surfaceIndexStale = true;
 	}
 
 	/**
@@ -1399,9 +2259,7 @@ public class VMap extends PImage implements PConstants{
 	 * @return
 	 */
 	public boolean findActiveSurface(float mX, float mY) {
-		for (int i = 0; i < surfaces.size(); i++) {
-			SuperSurface surface = surfaces.get(i);
-
+		for (SuperSurface surface : getSurfaceIndex().queryPoint(mX, mY, 0, nearbySurfaces)) {
 			if (surface.isInside(mX, mY)) {
 				return true;
 			}
@@ -1409,6 +2267,33 @@ public class VMap extends PImage implements PConstants{
 
 		return false;
 	}
+	
+	/**
+	 * Gets the spatial index over our surfaces, bringing it up to date first
+	 *  if surfaces got added, removed or reordered.
+	 *  Moved surfaces keep it up to date themselves, see surfaceMoved().
+	 * @return Returns the index
+	 */
+	private SurfaceIndex getSurfaceIndex() {
+		// Everything here that adds or removes surfaces marks the index stale.
+		//  getSurfaces() hands the list out too, so a change in count means
+		//  someone else changed it
+		if (surfaceIndexStale || surfaceIndex.size() != surfaces.size()) {
+			surfaceIndex.rebuild(surfaces);
+			surfaceIndexStale = false;
+		}
+		return surfaceIndex;
+	}
+	
+	/**
+	 * Called by surfaces whenever their geometry changes
+	 * @param ss Surface that moved
+	 */
+	void surfaceMoved(SuperSurface ss) {
+		if (surfaceIndex != null) {
+			surfaceIndex.markMoved(ss);
+		}
+	}
 
 	/**
 	 * Check which mode is enabled (render or calibrate)
@@ -1520,6 +2405,10 @@ public class VMap extends PImage implements PConstants{
 	 */
 	public void saveXML(XML root) {
 		root.setName("ProjectionMap");
+		// Outputs go first, so surfaces can refer to them by index
+		for (OutputRegion output : outputs) {
+			root.addChild(output.toXML());
+		}
 		// create XML elements for each surface containing the resolution
 		// and control point data
 		for (SuperSurface s : surfaces) {
@@ -1534,6 +2423,8 @@ public class VMap extends PImage implements PConstants{
 				surf.setInt("lock", 1);
 			else
 				surf.setInt("lock", 0);
+			if (s.getOutput() != SuperSurface.ALL_OUTPUTS)
+				surf.setInt("output", s.getOutput());
 			
 			for (int i = 0; i < s.getCornerPoints().length; i++) {
 				XML cp = new XML("cornerpoint");
@@ -1558,8 +2449,26 @@ public class VMap extends PImage implements PConstants{
 					surf.addChild(bp);
 				}
 			}
+			if(s instanceof MeshSurface){
+				MeshSurface ms = (MeshSurface)s;
+				surf.setInt("columns", ms.getColumns());
+				surf.setInt("rows", ms.getRows());
+				
+				for(int i = 0; i < ms.getMeshPoints().length; i++){
+					XML mp = new XML("meshpoint");
+					mp.setName("meshpoint");
+					mp.setInt("i", i);
+					mp.setFloat("x", ms.getMeshPoint(i).x);
+					mp.setFloat("y", ms.getMeshPoint(i).y);
+					surf.addChild(mp);
+				}
+			}
 			root.addChild(surf);
 		}
+		// Keyframes go after the surfaces, since they point at them by id
+		if (!timeline.getTracks().isEmpty()){
+			root.addChild(timeline.toXML());
+		}
 	}
 
 	/**
@@ -1586,35 +2495,23 @@ public class VMap extends PImage implements PConstants{
 		if (this.MODE == VMap.MODE_CALIBRATE) {
 			File f = new File(parent.dataPath(filename));
 			if (f.exists()) {
+				// Read the whole file in one streaming pass. Each surface
+				//  gets built (and worked out once) as soon as it's read.
+				MappingReader reader = new MappingReader(parent, this);
+				try {
+					reader.read(f);
+				} catch (IOException e) {
+					PApplet.println("ERROR loading XML! " + e.getMessage());
+					return;
+				}
 				// Clear our current state of everything
-				this.setGrouping(false);
-				selectedSurfaces.clear();
-				surfaces.clear();
-				// Load in XML data
-				XML root = parent.loadXML(filename);
-				
-				// Not sure why I have to copy this in, I think it's because
-				//  loadXML is too slow...
-				String XMLCopy = root.toString();
-				XML cleanRoot = parent.parseXML(XMLCopy);
-				// Parse the data, reconstructing all the surfaces from the data.
-				for (int i = 0; i < cleanRoot.getChildCount(); i++) {
-					SuperSurface s = null;
-					
-					XML surface = cleanRoot.getChild(i);
-					if (surface.getInt("type")  ==  SuperSurface.QUAD){
-						s = new QuadSurface(parent, this, surface);
-					}
-					else if (surface.getInt("type") == SuperSurface.BEZIER){
-						s = new BezierSurface(parent, this, surface);
-					}
-					
-					if (s != null){
-						s.setModeCalibrate();
-						surfaces.add(s);
-						if (s.getId() > numAddedSurfaces)
-							numAddedSurfaces = s.getId() + 1;
-					}
+				clearForLoad();
+				loadOutputs(reader.outputs.toArray(new XML[0]));
+				for (SuperSurface s : reader.surfaces) {
+					addLoadedSurface(s);
+				}
+				if (reader.timeline != null){
+					timeline.loadXML(reader.timeline);
 				}
 				if(this.getDebug()) PApplet.println("Projection layout loaded from " + filename + ". " + surfaces.size() + " surfaces were loaded!");
 			} else {
@@ -1624,6 +2521,97 @@ public class VMap extends PImage implements PConstants{
 
 	}
 	
+	/**
+	 * Save all projection mapping data to a binary file, which loads
+	 *  much faster than XML for big layouts. See MappingFile.
+	 * @param filename
+	 */
+	public void saveBinary(String filename) {
+		if (this.MODE == VMap.MODE_CALIBRATE){
+			XML root = new XML("root");
+			this.saveXML(root);
+			try {
+				MappingFile.fromXML(root).write(new File(parent.savePath("data/" + filename)));
+			} catch (IOException e) {
+				PApplet.println("ERROR saving mapping file! " + e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Load projection map from a binary file saved by saveBinary()
+	 * @param filename
+	 */
+	public void loadBinary(String filename) {
+		if (this.MODE == VMap.MODE_CALIBRATE) {
+			File f = new File(parent.dataPath(filename));
+			if (f.exists()) {
+				MappingFile map;
+				try {
+					map = MappingFile.read(f);
+				} catch (IOException e) {
+					PApplet.println("ERROR loading mapping file! " + e.getMessage());
+					return;
+				}
+				clearForLoad();
+				XML extras = map.parseExtras();
+				if (extras != null){
+					loadOutputs(extras.getChildren("output"));
+				}
+				for (int i = 0; i < map.getSurfaceCount(); i++) {
+					SuperSurface s = map.createSurface(i, parent, this);
+					if (s != null){
+						addLoadedSurface(s);
+					}
+				}
+				if (extras != null && extras.getChild("timeline") != null){
+					timeline.loadXML(extras.getChild("timeline"));
+				}
+				if(this.getDebug()) PApplet.println("Projection layout loaded from " + filename + ". " + surfaces.size() + " surfaces were loaded!");
+			} else {
+				if(this.getDebug()) PApplet.println("ERROR loading mapping file! No projection layout exists!");
+			}
+		}
+	}
+	
+	/**
+	 * Throws out the surfaces, selection and timeline, before loading new ones
+	 */
+	private void clearForLoad(){
+		this.setGrouping(false);
+		selectedSurfaces.clear();
+		surfaces.clear();
+		timeline.clear();
+		releaseUnusedTextures();
+		surfaceIndexStale = true;
+	}
+	
+	/**
+	 * Adds a surface that just got loaded from a file
+	 * @param s Surface to add
+	 */
+	private void addLoadedSurface(SuperSurface s){
+		s.setModeCalibrate();
+		surfaces.add(s);
+		surfaceIndexStale = true;
+		if (s.getId() > numAddedSurfaces)
+			numAddedSurfaces = s.getId() + 1;
+	}
+	
+	/**
+	 * Outputs in a file replace ours. Older files don't have any,
+	 *  so then we keep whatever outputs were set up in code.
+	 * @param outputElements Output elements in the file
+	 */
+	private void loadOutputs(XML[] outputElements){
+		if (outputElements.length > 0) {
+			outputs.clear();
+			for (XML output : outputElements) {
+				outputs.add(new OutputRegion(output));
+			}
+		}
+	}
+	
 	/**
 	 * Move a point of a surface
 	 * @param ss SuperSurface point is owned by
@@ -1631,6 +2619,14 @@ public class VMap extends PImage implements PConstants{
 	 * @param y Y position to move point to
 	 */
 	public void movePoint(SuperSurface ss, int x, int y){
+		// A grabbed lattice point moves on its own
+		if (ss instanceof MeshSurface && ((MeshSurface) ss).getSelectedMeshPoint() >= 0){
+			MeshSurface ms = (MeshSurface) ss;
+			int index = ms.getSelectedMeshPoint();
+			ms.setMeshPoint(index, ms.getMeshPoint(index).x + x, ms.getMeshPoint(index).y + y);
+			return;
+		}
+		ss.beginEdit();
 		int index = ss.getSelectedCorner();
 		ss.setCornerPoint(index, ss.getCornerPoint(index).x + x, ss.getCornerPoint(index).y + y);
 		if (ss instanceof BezierSurface){
@@ -1639,6 +2635,69 @@ public class VMap extends PImage implements PConstants{
 			index = index+1;
 			((BezierSurface) ss).setBezierPoint(index, ((BezierSurface) ss).getBezierPoint(index).x + x, ((BezierSurface) ss).getBezierPoint(index).y + y);
 		}
+		ss.commitEdit();
+	}
+	
+	/**
+	 * Moves a bunch of surfaces at once. Every point moves first, then
+	 *  each surface gets recomputed once (in parallel for big groups),
+	 *  instead of once for every single point.
+	 *  Don't put the same surface in the list twice.
+	 * @param list Surfaces to move
+	 * @param dx Distance to move along X
+	 * @param dy Distance to move along Y
+	 */
+	public void moveSurfaces(List<? extends SuperSurface> list, float dx, float dy){
+		for (SuperSurface ss : list){
+			ss.beginEdit();
+			ss.translate(dx, dy);
+		}
+		commitEdits(list);
+	}
+	
+	/**
+	 * Commits an edit on every surface in a list, see SuperSurface.beginEdit().
+	 *  Big lists get recomputed in parallel on the common fork-join pool,
+	 *  so don't put the same surface in the list twice.
+	 * @param list Surfaces to commit
+	 */
+	public void commitEdits(List<? extends SuperSurface> list){
+		if (list.size() <= PARALLEL_EDIT_THRESHOLD){
+			for (SuperSurface ss : list){
+				ss.commitEdit();
+			}
+			return;
+		}
+		ForkJoinPool.commonPool().invoke(new CommitEditsTask(list, 0, list.size()));
+	}
+	
+	/**
+	 * Commits edits on part of a list, splitting it in half until
+	 *  the pieces are small enough to just do
+	 */
+	private static class CommitEditsTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		private final List<? extends SuperSurface> list;
+		private final int start;
+		private final int end;
+		
+		CommitEditsTask(List<? extends SuperSurface> list, int start, int end){
+			this.list = list;
+			this.start = start;
+			this.end = end;
+		}
+		
+		protected void compute(){
+			if (end - start <= PARALLEL_EDIT_THRESHOLD){
+				for (int i = start; i < end; i++){
+					list.get(i).commitEdit();
+				}
+				return;
+			}
+			int middle = (start + end) >>> 1;
+			invokeAll(new CommitEditsTask(list, start, middle), new CommitEditsTask(list, middle, end));
+		}
 	}
 	
 	/**
@@ -1665,6 +2724,7 @@ public class VMap extends PImage implements PConstants{
 		SuperSurface s = surfaces.get(index);
 		surfaces.remove(index);
 		surfaces.add(s);
+		surfaceIndexStale = true;
 	}
 	
 	/**
@@ -1717,6 +2777,10 @@ public class VMap extends PImage implements PConstants{
 	 * @param e
 	 */
 	public void mouseEvent(MouseEvent e) {
+		if (MODE == MODE_CALIBRATE) {
+			// The cursor marker and whatever got dragged need redrawing
+			inputVersion++;
+		}
 		if (allowUserInput) {
 			ksMouseEvent(e);
 		}
@@ -1761,6 +2825,9 @@ public class VMap extends PImage implements PConstants{
 	 * @param k KeyEvent thrown from Processing
 	 */
 	public void keyEvent(KeyEvent k) {
+		if (MODE == MODE_CALIBRATE) {
+			inputVersion++;
+		}
 		
 		//If key bindings are disabled, just return immediately
 		if (this.keybindingsEnabled == false){
@@ -1910,6 +2977,10 @@ public class VMap extends PImage implements PConstants{
 					this.addBezierSurface(this.parent.mouseX, this.parent.mouseY);
 					break;
 					
+				case 'm':
+					this.addMeshSurface(this.parent.mouseX, this.parent.mouseY);
+					break;
+					
 				case 's':
 					this.saveXML(this.DefaultSaveLocation);
 					break;	
@@ -1953,17 +3024,32 @@ public class VMap extends PImage implements PConstants{
 		case MouseEvent.PRESS:
 			if (this.MODE == VMap.MODE_CALIBRATE) {
 				startPos = new PVector(mX, mY);
-				for (int i = surfaces.size() - 1; i >= 0; i--) {
-					SuperSurface cps = surfaces.get(i);
-
+				// Everything lets go of what it was holding, but only
+				//  surfaces near the mouse can grab anything new
+				for (SuperSurface cps : surfaces) {
+					cps.setActivePoint(-1);
+					if (cps instanceof BezierSurface) {
+						((BezierSurface)cps).setSelectedBezierControl(-1);
+					}
+					if (cps instanceof MeshSurface) {
+						((MeshSurface)cps).setSelectedMeshPoint(-1);
+					}
+				}
+				for (SuperSurface cps : getSurfaceIndex().queryPoint(mX, mY, this.getSelectionDistance(), nearbySurfaces)) {
 					cps.setActivePoint(cps.getActiveCornerPointIndex(mX, mY));
 					
 					if(cps instanceof BezierSurface){
 						((BezierSurface)cps).setSelectedBezierControl(((BezierSurface)cps).getActiveBezierPointIndex(mX, mY));
 					}
 					
+					// Corners win over the lattice points near them
+					if(cps instanceof MeshSurface && (cps.getActivePoint() < 0 || cps.getActivePoint() == 2000)){
+						((MeshSurface)cps).setSelectedMeshPoint(((MeshSurface)cps).getActiveMeshPointIndex(mX, mY));
+					}
+					
 					if (cps.getActivePoint() >= 0 || 
-					   (cps instanceof BezierSurface && ((BezierSurface)cps).getSelectedBezierControl() >= 0)) {
+					   (cps instanceof BezierSurface && ((BezierSurface)cps).getSelectedBezierControl() >= 0) ||
+					   (cps instanceof MeshSurface && ((MeshSurface)cps).getSelectedMeshPoint() >= 0)) {
 						if(grouping && !ctrlDown){
 							if(!cps.isSelected()){
 								for (SuperSurface ss : selectedSurfaces) {
@@ -2038,6 +3124,8 @@ public class VMap extends PImage implements PConstants{
 				}
 				
 				boolean[] movingPolys = new boolean[surfaces.size()];
+				// Surfaces being dragged whole, which all get moved together at the end
+				ArrayList<SuperSurface> movingSurfaces = new ArrayList<SuperSurface>();
 				int iteration = 0;
 				for (SuperSurface ss : surfaces) {
 					
@@ -2046,6 +3134,9 @@ public class VMap extends PImage implements PConstants{
 					if (!ss.isLocked()) {
 						if(ss instanceof BezierSurface && ((BezierSurface)ss).getSelectedBezierControl() != -1){
 							((BezierSurface)ss).setBezierPoint(((BezierSurface)ss).getSelectedBezierControl(), ((BezierSurface)ss).getBezierPoint(((BezierSurface)ss).getSelectedBezierControl()).x + deltaX, ((BezierSurface)ss).getBezierPoint(((BezierSurface)ss).getSelectedBezierControl()).y + deltaY);
+						}else if(ss instanceof MeshSurface && ((MeshSurface)ss).getSelectedMeshPoint() != -1){
+							MeshSurface ms = (MeshSurface)ss;
+							ms.setMeshPoint(ms.getSelectedMeshPoint(), ms.getMeshPoint(ms.getSelectedMeshPoint()).x + deltaX, ms.getMeshPoint(ms.getSelectedMeshPoint()).y + deltaY);
 						}else if (ss.getActivePoint() != -1) {
 							// special case.
 							// index 2000 is the center point so move all four
@@ -2054,13 +3145,7 @@ public class VMap extends PImage implements PConstants{
 								// If multiple surfaces are selected, ALT need
 								// to be pressed in order to move them.
 								if ((grouping && altDown) || selectedSurfaces.size() == 1) {
-									for (int i = 0; i < 4; i++) {
-										ss.setCornerPoint(i, ss.getCornerPoint(i).x + deltaX, ss.getCornerPoint(i).y + deltaY);
-										if (ss instanceof BezierSurface){
-											((BezierSurface)ss).setBezierPoint(i, ((BezierSurface)ss).getBezierPoint(i).x + deltaX, ((BezierSurface)ss).getBezierPoint(i).y + deltaY);
-											((BezierSurface)ss).setBezierPoint(i+4, ((BezierSurface)ss).getBezierPoint(i+4).x + deltaX, ((BezierSurface)ss).getBezierPoint(i+4).y + deltaY);
-										}
-									}	
+									movingSurfaces.add(ss);
 									movingPolys[iteration] = true;
 								}
 							} else {
@@ -2080,6 +3165,8 @@ public class VMap extends PImage implements PConstants{
 					iteration++;
 				}
 
+				moveSurfaces(movingSurfaces, deltaX, deltaY);
+
 				for (int i = 0; i < movingPolys.length; i++) {
 					if (movingPolys[i]) {
 						disableSelectionTool = true;
@@ -2102,21 +3189,32 @@ public class VMap extends PImage implements PConstants{
 						sToolPos.set(sToolPos.x, sToolPos.y + selectionTool.height, 0);
 					}
 
-					for (SuperSurface cps : surfaces) {
+					float selectionWidth = Math.abs(selectionTool.width);
+					float selectionHeight = Math.abs(selectionTool.height);
+					
+					// Let go of anything the selection doesn't touch anymore
+					if (!ctrlDown) {
+						for (int i = selectedSurfaces.size() - 1; i >= 0; i--) {
+							SuperSurface cps = selectedSurfaces.get(i);
+							if (!cps.getPolygon().intersects(sToolPos.x, sToolPos.y, selectionWidth, selectionHeight)) {
+								cps.setSelected(false);
+								selectedSurfaces.remove(i);
+							}
+						}
+					}
+					
+					// Only surfaces near the selection can be in it
+					getSurfaceIndex().queryRect(sToolPos.x, sToolPos.y, sToolPos.x + selectionWidth, sToolPos.y + selectionHeight, nearbySurfaces);
+					for (SuperSurface cps : nearbySurfaces) {
 						java.awt.Polygon p = cps.getPolygon();
 
-						if (p.intersects(sToolPos.x, sToolPos.y, Math.abs(selectionTool.width), Math.abs(selectionTool.height))) {
+						if (p.intersects(sToolPos.x, sToolPos.y, selectionWidth, selectionHeight)) {
 							cps.setSelected(true);
 							selectedSurfaces.add(cps);
-							removeDuplicates(selectedSurfaces);
 							grouping = true;
-						} else {
-							if (!ctrlDown) {
-								cps.setSelected(false);
-								selectedSurfaces.remove(cps);
-							}
 						}
 					}
+					removeDuplicates(selectedSurfaces);
 				}
 				isDragging = true;
 			}
@@ -2128,32 +3226,18 @@ public class VMap extends PImage implements PConstants{
 				if (snap) {
 					for (SuperSurface ss : selectedSurfaces) {
 						if (ss.getActivePoint() != 2000 && ss.getActivePoint() != -1) {
-							int closestIndex = -1;
-							int cornerIndex = -1;
-							float closestDist = this.getSnapDistance()+1;
-							for (int j = 0; j < surfaces.size(); j++) {
-								if(surfaces.get(j).getId() != ss.getId()){
-									for (int i = 0; i < surfaces.get(j).getCornerPoints().length; i++) {
-										float dist = PApplet.dist(ss.getCornerPoint(ss.getActivePoint()).x, ss.getCornerPoint(ss.getActivePoint()).y, surfaces.get(j).getCornerPoint(i).x,
-												surfaces.get(j).getCornerPoint(i).y);
-										if (dist < this.getSnapDistance()) {
-											if(dist < closestDist){ 
-												closestDist = dist;
-												closestIndex = j;
-												cornerIndex = i;
-											}
-										}
-									}
-								}
-							}
-							if(closestDist > -1 && closestDist < this.getSnapDistance()){
-								ss.setCornerPoint(ss.getActivePoint(), surfaces.get(closestIndex).getCornerPoint(cornerIndex).x, surfaces.get(closestIndex).getCornerPoint(cornerIndex).y);
+							PVector corner = ss.getCornerPoint(ss.getActivePoint());
+							PVector closest = getSurfaceIndex().nearestCorner(corner.x, corner.y, this.getSnapDistance(), ss);
+							if (closest != null) {
+								ss.setCornerPoint(ss.getActivePoint(), closest.x, closest.y);
 							}
 						}
 					}
 					int selection = 0;
 					for (SuperSurface cps : surfaces) {
 						cps.setActivePoint(-1);
+					}
+					for (SuperSurface cps : getSurfaceIndex().queryPoint(mX, mY, this.getSelectionDistance(), nearbySurfaces)) {
 						if (cps.getActiveCornerPointIndex(mX, mY) != -1)
 							selection++;
 					}
@@ -2189,10 +3273,12 @@ public class VMap extends PImage implements PConstants{
 		for (SuperSurface ss : selectedSurfaces) {
 			for (int i = surfaces.size() - 1; i >= 0; i--) {
 				if (ss.getId() == surfaces.get(i).getId()) {
-					if (ss.isLocked()) return;
+					if (ss.isLocked()) continue;
 					if (this.getDebug())
 						PApplet.println("Keystone --> DELETED SURFACE with ID: #" + ss.getId());
 					surfaces.remove(i);
+					timeline.removeTracks(ss);
+					surfaceIndexStale = true;
 				}
 			}
 		}
@@ -2200,6 +3286,7 @@ public class VMap extends PImage implements PConstants{
 		selectedSurfaces.clear();
 		if (surfaces.size() == 0)
 			numAddedSurfaces = 0;
+		releaseUnusedTextures();
 	}
 
 	/**
@@ -2307,7 +3394,7 @@ public class VMap extends PImage implements PConstants{
 	public void	emissive(int rgb) {defaultDrawBuffer.emissive(rgb);}
 	public void	endCamera() {defaultDrawBuffer.endCamera();}
 	public void	endContour()  {defaultDrawBuffer.endContour();}
-	public void	endDraw() {defaultDrawBuffer.endDraw();}
+	public void	endDraw() {defaultDrawBuffer.endDraw(); defaultDrawVersion++;}
 	public void	endPGL()  {defaultDrawBuffer.endPGL();}
 	public void	endRaw()  {defaultDrawBuffer.endRaw();}
 	public void	endShape()  {defaultDrawBuffer.endShape();}
@@ -0,0 +1,279 @@
+/**
+ * Part of the VMap library: https://github.com/AlanChatham/VMap
+ *
+ * Portions to update to Processing 2 copyright (c) 2014 - Laboratory LLC
+ * Copyright (c) 2011-12 Ixagon AB
+ *
+ * This source is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is available on the World
+ * Wide Web at <http://www.gnu.org/copyleft/gpl.html>. You can also
+ * obtain it by writing to the Free Software Foundation,
+ * Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package VMap;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import com.jogamp.opengl.GL;
+import com.jogamp.opengl.GL2ES3;
+import com.jogamp.opengl.GL3ES3;
+
+/**
+ * A reusable staging area for the vertices we send to the graphics card.
+ *
+ * Vertices are written into a plain float array that only ever grows,
+ * then copied into a pooled direct FloatBuffer and streamed into a VBO.
+ * Once everything has grown to the size of your layout, building and
+ * uploading a frame's worth of vertices doesn't allocate anything.
+ *
+ * Vertices get written wherever the cursor is (see position()), so
+ * a block of vertices can be rewritten in place and sent up on its
+ * own with uploadRange() when only part of the layout changed.
+ *
+ * Each vertex is FLOATS_PER_VERTEX floats:
+ *  position (x, y, z), color (r, g, b, a), texture (u, v, q),
+ *  the four corners of the quad it belongs to (p0 - p3, x and y each),
+ *  which the bilinear shader needs for every pixel it draws,
+ *  the shake of the surface it belongs to (amplitude, frequency,
+ *  falloff and start time), which the shaders animate with the time,
+ *  and where the surface's keyframes start in the timeline's key
+ *  texture (-1 if it isn't animated, see Timeline)
+ *
+ * @author Laboratory
+ */
+final class VertexStaging {
+
+	static final int POSITION_OFFSET = 0;
+	static final int COLOR_OFFSET = 3;
+	static final int TEXTURE_OFFSET = 7;
+	static final int CORNER_OFFSET = 10;
+	static final int SHAKE_OFFSET = 18;
+	static final int TRACK_OFFSET = 22;
+	static final int FLOATS_PER_VERTEX = 23;
+
+	private float[] data;
+	private int size;
+	// Where the next vertex gets written, in floats
+	private int cursor;
+
+	// Corners that get written into every vertex, see setCorners()
+	private float[] corners = new float[8];
+	// Shake that gets written into every vertex, see setShake()
+	private float[] shake = new float[4];
+	// Track base that gets written into every vertex, see setTrack()
+	private float track = -1;
+
+	// Pooled direct buffer we copy into for OpenGL
+	private FloatBuffer directBuffer;
+
+	// How many bytes we've allocated on the graphics card so far
+	private int gpuCapacity;
+
+	/**
+	 * Create a new staging area
+	 * @param initialVertices How many vertices to make room for up front
+	 */
+	VertexStaging(int initialVertices){
+		data = new float[Math.max(1, initialVertices) * FLOATS_PER_VERTEX];
+		size = 0;
+		cursor = 0;
+	}
+
+	/**
+	 * Moves the cursor, so the next vertex gets written at vertexIndex
+	 * @param vertexIndex Index of the vertex (not the float) to write next
+	 */
+	void position(int vertexIndex){
+		cursor = vertexIndex * FLOATS_PER_VERTEX;
+	}
+
+	/**
+	 * Sets how many vertices are staged, growing the array if we need to.
+	 *  Anything past the old size is left for you to fill in.
+	 * @param vertices Number of vertices
+	 */
+	void setVertexCount(int vertices){
+		ensureCapacity(vertices * FLOATS_PER_VERTEX);
+		size = vertices * FLOATS_PER_VERTEX;
+	}
+
+	/**
+	 * Sets the quad corners that get written into the following vertices
+	 * @param p0x Top left X
+	 * @param p0y Top left Y
+	 * @param p1x Top right X
+	 * @param p1y Top right Y
+	 * @param p2x Bottom left X
+	 * @param p2y Bottom left Y
+	 * @param p3x Bottom right X
+	 * @param p3y Bottom right Y
+	 */
+	void setCorners(float p0x, float p0y, float p1x, float p1y,
+			        float p2x, float p2y, float p3x, float p3y){
+		corners[0] = p0x; corners[1] = p0y;
+		corners[2] = p1x; corners[3] = p1y;
+		corners[4] = p2x; corners[5] = p2y;
+		corners[6] = p3x; corners[7] = p3y;
+	}
+
+	/**
+	 * Sets the shake that gets written into the following vertices,
+	 *  see SuperSurface.setShake(float, float, float, float)
+	 * @param amplitude Max Z-displacement, 0 for no shaking
+	 * @param frequency Vibrations per second
+	 * @param falloff How fast it dies down
+	 * @param startTime When it starts, in VMap.getTime() seconds
+	 */
+	void setShake(float amplitude, float frequency, float falloff, float startTime){
+		shake[0] = amplitude;
+		shake[1] = frequency;
+		shake[2] = falloff;
+		shake[3] = startTime;
+	}
+
+	/**
+	 * Sets where the keyframes of the following vertices' surface start
+	 * @param base First texel in the key texture, -1 if it isn't animated
+	 */
+	void setTrack(float base){
+		track = base;
+	}
+
+	/**
+	 * Adds one vertex with a plain white color
+	 * @param x X position, in OpenGL coordinates
+	 * @param y Y position, in OpenGL coordinates
+	 * @param u U texture coordinate
+	 * @param v V texture coordinate
+	 * @param q Q value for projective mapping, 1 otherwise
+	 */
+	void vertex(float x, float y, float u, float v, float q){
+		ensureCapacity(cursor + FLOATS_PER_VERTEX);
+		float[] d = data;
+		int i = cursor;
+		d[i++] = x;    d[i++] = y;    d[i++] = 0.0f;             // position
+		d[i++] = 1.0f; d[i++] = 1.0f; d[i++] = 1.0f; d[i++] = 1.0f; // color
+		d[i++] = u;    d[i++] = v;    d[i++] = q;                // UVs
+		System.arraycopy(corners, 0, d, i, 8);                   // quad corners
+		i += 8;
+		System.arraycopy(shake, 0, d, i, 4);                     // shake
+		i += 4;
+		d[i++] = track;                                          // track base
+		cursor = i;
+		if (cursor > size){
+			size = cursor;
+		}
+	}
+
+	/**
+	 * Get a single float out of the staging area
+	 * @param index Index of the float (not the vertex)
+	 * @return Returns the float at index
+	 */
+	float get(int index){
+		return data[index];
+	}
+
+	/**
+	 * @return Returns the number of floats currently staged
+	 */
+	int size(){
+		return size;
+	}
+
+	/**
+	 * @return Returns the number of vertices currently staged
+	 */
+	int vertexCount(){
+		return size / FLOATS_PER_VERTEX;
+	}
+
+	/**
+	 * Throws out all the staged vertices, but keeps the memory around
+	 */
+	void clear(){
+		size = 0;
+		cursor = 0;
+	}
+
+	/**
+	 * Streams the staged vertices into a VBO. The old contents get orphaned
+	 *  with a null glBufferData first, so the driver can hand us fresh memory
+	 *  instead of waiting for last frame's draws to finish with it.
+	 * @param gl OpenGL context
+	 * @param vbo VBO to upload to. It stays bound to GL_ARRAY_BUFFER afterwards.
+	 */
+	void upload(GL3ES3 gl, int vbo){
+		int bytes = size * Float.BYTES;
+		FloatBuffer buf = getDirectBuffer();
+		buf.put(data, 0, size);
+		buf.rewind();
+
+		gl.glBindBuffer(GL.GL_ARRAY_BUFFER, vbo);
+		if (bytes > gpuCapacity){
+			gpuCapacity = Math.max(bytes, gpuCapacity * 2);
+		}
+		gl.glBufferData(GL.GL_ARRAY_BUFFER, gpuCapacity, null, GL2ES3.GL_STREAM_DRAW);
+		gl.glBufferSubData(GL.GL_ARRAY_BUFFER, 0, bytes, buf);
+	}
+
+	/**
+	 * Sends part of the staged vertices to a VBO that already holds the rest,
+	 *  leaving everything else in it alone. Falls back to a full upload
+	 *  if the VBO isn't big enough yet.
+	 * @param gl OpenGL context
+	 * @param vbo VBO to upload to. It stays bound to GL_ARRAY_BUFFER afterwards.
+	 * @param firstVertex First vertex to send
+	 * @param vertexCount Number of vertices to send
+	 */
+	void uploadRange(GL3ES3 gl, int vbo, int firstVertex, int vertexCount){
+		if (size * Float.BYTES > gpuCapacity){
+			upload(gl, vbo);
+			return;
+		}
+		int first = firstVertex * FLOATS_PER_VERTEX;
+		int count = vertexCount * FLOATS_PER_VERTEX;
+		FloatBuffer buf = getDirectBuffer();
+		buf.put(data, first, count);
+		buf.rewind();
+
+		gl.glBindBuffer(GL.GL_ARRAY_BUFFER, vbo);
+		gl.glBufferSubData(GL.GL_ARRAY_BUFFER, (long) first * Float.BYTES, (long) count * Float.BYTES, buf);
+	}
+
+	/**
+	 * Makes sure the float array can hold at least n floats
+	 * @param n Number of floats we need room for
+	 */
+	private void ensureCapacity(int n){
+		if (n > data.length){
+			float[] bigger = new float[Math.max(n, data.length * 2)];
+			System.arraycopy(data, 0, bigger, 0, size);
+			data = bigger;
+		}
+	}
+
+	/**
+	 * Gets our pooled direct buffer, growing it if it's smaller than the float array
+	 * @return Returns a cleared FloatBuffer with room for everything staged
+	 */
+	private FloatBuffer getDirectBuffer(){
+		if (directBuffer == null || directBuffer.capacity() < data.length){
+			directBuffer = ByteBuffer.allocateDirect(data.length * Float.BYTES).order(ByteOrder.nativeOrder()).asFloatBuffer();
+		}
+		directBuffer.clear();
+		return directBuffer;
+	}
+}
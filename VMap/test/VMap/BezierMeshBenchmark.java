@@ -0,0 +1,171 @@
+/**
+ * Part of the VMap library: https://github.com/AlanChatham/VMap
+ *
+ * Portions to update to Processing 2 copyright (c) 2014 - Laboratory LLC
+ * Copyright (c) 2011-12 Ixagon AB
+ *
+ * This source is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is available on the World
+ * Wide Web at <http://www.gnu.org/copyleft/gpl.html>. You can also
+ * obtain it by writing to the Free Software Foundation,
+ * Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+
+package VMap;
+
+import java.awt.Polygon;
+
+import processing.core.PApplet;
+import processing.core.PGraphics;
+import processing.core.PVector;
+
+/**
+ * Times BezierSurface.updateTransform() against the way it used to work
+ * out the mesh (eight bezierPoint() calls, the force trig and a new PVector
+ * per point, and a new Polygon every time), at resolutions 10, 30 and 60.
+ * It also checks both come up with the same mesh.
+ *
+ * There's no JMH in this tree, so it's a plain timing loop: each side
+ * warms up, then runs back to back for a fixed time, moving a corner
+ * before each update so nothing can be skipped. Doesn't need a display.
+ *
+ *   java -cp "bin:libs/*" VMap.BezierMeshBenchmark [milliseconds per run]
+ *
+ * @author Laboratory
+ */
+public class BezierMeshBenchmark {
+
+	static final int[] RESOLUTIONS = { 10, 30, 60 };
+
+	// Keeps the JIT from throwing the work away
+	static float sink;
+
+	public static void main(String[] args){
+		long runMillis = (args.length > 0) ? Long.parseLong(args[0]) : 1000;
+		PApplet parent = new PApplet();
+		// bezierPoint() hands off to the renderer, which is all plain math
+		parent.g = new PGraphics();
+
+		System.out.println("res   legacy us/update   current us/update   speedup   max difference");
+		for (int res : RESOLUTIONS){
+			BezierSurface surface = new BezierSurface(parent, null, 400, 300, res, 0);
+			surface.setForce(40, -25);
+			surface.setBezierPoint(1, 320, 210);
+			BezierPoint3D[] corners = getCorners(surface);
+			PVector[][] legacyPoints = new PVector[res + 1][res + 1];
+
+			// Same mesh both ways?
+			legacyUpdate(parent, corners, res, 40, -25, legacyPoints);
+			surface.updateTransform();
+			float[] mesh = surface.getMeshCoordinates();
+			float difference = 0;
+			for (int i = 0; i <= res; i++){
+				for (int j = 0; j <= res; j++){
+					int k = (i * (res + 1) + j) * 2;
+					difference = Math.max(difference, Math.abs(mesh[k] - legacyPoints[i][j].x));
+					difference = Math.max(difference, Math.abs(mesh[k + 1] - legacyPoints[i][j].y));
+				}
+			}
+
+			// Warm both up, then time them
+			time(parent, surface, corners, legacyPoints, true, runMillis / 2);
+			time(parent, surface, corners, legacyPoints, false, runMillis / 2);
+			double legacy = time(parent, surface, corners, legacyPoints, true, runMillis);
+			double current = time(parent, surface, corners, legacyPoints, false, runMillis);
+
+			System.out.println(String.format("%3d   %16.2f   %17.2f   %6.1fx   %.6f px",
+					res, legacy / 1000, current / 1000, legacy / current, difference));
+		}
+	}
+
+	/**
+	 * Runs updates back to back for a while
+	 * @return Returns the average time per update in nanoseconds
+	 */
+	private static double time(PApplet parent, BezierSurface surface, BezierPoint3D[] corners,
+			                   PVector[][] legacyPoints, boolean legacy, long millis){
+		int res = surface.getRes();
+		long end = System.nanoTime() + millis * 1000000L;
+		long start = System.nanoTime();
+		long updates = 0;
+		while (System.nanoTime() < end){
+			for (int n = 0; n < 16; n++){
+				corners[2].x += ((updates & 1) == 0) ? 1 : -1;
+				if (legacy){
+					sink += legacyUpdate(parent, corners, res, 40, -25, legacyPoints).npoints;
+				}
+				else {
+					surface.updateTransform();
+					sink += surface.getPolygon().npoints;
+				}
+				updates++;
+			}
+		}
+		return (double) (System.nanoTime() - start) / updates;
+	}
+
+	private static BezierPoint3D[] getCorners(BezierSurface surface){
+		PVector[] points = surface.getCornerPoints();
+		BezierPoint3D[] corners = new BezierPoint3D[points.length];
+		for (int i = 0; i < points.length; i++){
+			corners[i] = (BezierPoint3D) points[i];
+		}
+		return corners;
+	}
+
+	/**
+	 * BezierSurface.updateTransform() as it was before the lookup tables
+	 */
+	private static Polygon legacyUpdate(PApplet parent, BezierPoint3D[] cornerPoints, int GRID_RESOLUTION,
+			                            int horizontalForce, int verticalForce, PVector[][] vertexPoints){
+		for (int i = 0; i <= GRID_RESOLUTION; i++) {
+			for (int j = 0; j <= GRID_RESOLUTION; j++) {
+				float start_x = parent.bezierPoint(cornerPoints[0].x, cornerPoints[0].controlPoint0.x, cornerPoints[3].controlPoint1.x, cornerPoints[3].x, (float)j/GRID_RESOLUTION);
+				float end_x = parent.bezierPoint(cornerPoints[1].x, cornerPoints[1].controlPoint1.x, cornerPoints[2].controlPoint0.x, cornerPoints[2].x, (float)j/GRID_RESOLUTION);
+				float start_y = parent.bezierPoint(cornerPoints[0].y, cornerPoints[0].controlPoint0.y, cornerPoints[3].controlPoint1.y, cornerPoints[3].y, (float)j/GRID_RESOLUTION);
+				float end_y = parent.bezierPoint(cornerPoints[1].y, cornerPoints[1].controlPoint1.y, cornerPoints[2].controlPoint0.y, cornerPoints[2].y, (float)j/GRID_RESOLUTION);
+
+				float x = parent.bezierPoint(start_x, ((cornerPoints[0].controlPoint1.x - cornerPoints[3].controlPoint0.x) * (1.0f - (float)j/GRID_RESOLUTION)) + cornerPoints[3].controlPoint0.x, ((cornerPoints[1].controlPoint0.x - cornerPoints[2].controlPoint1.x) * (1.0f - (float)j/GRID_RESOLUTION)) + cornerPoints[2].controlPoint1.x, end_x, (float)i/GRID_RESOLUTION);
+				float y = parent.bezierPoint(start_y, ((cornerPoints[0].controlPoint1.y - cornerPoints[3].controlPoint0.y) * (1.0f - (float)j/GRID_RESOLUTION)) + cornerPoints[3].controlPoint0.y, ((cornerPoints[1].controlPoint0.y - cornerPoints[2].controlPoint1.y) * (1.0f - (float)j/GRID_RESOLUTION)) + cornerPoints[2].controlPoint1.y, end_y, (float)i/GRID_RESOLUTION);
+
+				float pi1 = (float) ((Math.PI)/GRID_RESOLUTION);
+
+				float xfix = (float)(Math.cos((j-(GRID_RESOLUTION/2))*pi1)*Math.sin((i*pi1)-((float)(GRID_RESOLUTION/2)*pi1)))*horizontalForce;
+				float yfix = (float)(Math.cos((float)(GRID_RESOLUTION/2)*pi1)*Math.sin(j*pi1)-Math.sin((float)(GRID_RESOLUTION/2)*pi1)*Math.cos(j*pi1)*Math.cos((i*pi1)-((float)(GRID_RESOLUTION/2)*pi1)))*verticalForce;
+
+				vertexPoints[i][j] = new PVector(x+xfix, y+yfix, 0);
+			}
+		}
+
+		Polygon poly = new Polygon();
+		for(int w = 0; w < 4; w++){
+			for(int i = 0; i < GRID_RESOLUTION; i++){
+				switch(w){
+				case 0:
+					poly.addPoint((int)vertexPoints[i][0].x, (int)vertexPoints[i][0].y);
+					break;
+				case 1:
+					poly.addPoint((int)vertexPoints[GRID_RESOLUTION][i].x, (int)vertexPoints[GRID_RESOLUTION][i].y);
+					break;
+				case 2:
+					poly.addPoint((int)vertexPoints[GRID_RESOLUTION-i][GRID_RESOLUTION].x, (int)vertexPoints[GRID_RESOLUTION-i][GRID_RESOLUTION].y);
+					break;
+				case 3:
+					poly.addPoint((int)vertexPoints[0][GRID_RESOLUTION-i].x, (int)vertexPoints[0][GRID_RESOLUTION-i].y);
+					break;
+				}
+			}
+		}
+		return poly;
+	}
+}
@@ -0,0 +1,205 @@
+/**
+ * Part of the VMap library: https://github.com/AlanChatham/VMap
+ *
+ * Portions to update to Processing 2 copyright (c) 2014 - Laboratory LLC
+ * Copyright (c) 2011-12 Ixagon AB
+ *
+ * This source is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is available on the World
+ * Wide Web at <http://www.gnu.org/copyleft/gpl.html>. You can also
+ * obtain it by writing to the Free Software Foundation,
+ * Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+
+package VMap;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import processing.core.PApplet;
+import processing.data.XML;
+
+/**
+ * Times loading a big layout from the binary format (MappingFile) against
+ * the XML loaders. Generates a layout of quad, Bezier and mesh surfaces
+ * the way saveXML() writes them, saves it both ways into a temp folder,
+ * then loads it over and over:
+ *
+ *   legacy XML   - load the XML, toString() and parseXML() again, then a
+ *                  surface per element, which is how loadXML() used to work
+ *   stream XML   - MappingReader, which is what loadXML() uses now
+ *   binary       - MappingFile.read() and a surface per record,
+ *                  which is what loadBinary() does
+ *
+ * Each gets timed just reading the file, and reading it plus building
+ * every surface. The legacy loader builds with today's XML constructors,
+ * which work each surface out once, so it's a bit faster than it really was.
+ * Doesn't need a display.
+ *
+ *   java -cp "bin:libs/*" VMap.MappingLoadBenchmark [surfaces] [rounds]
+ *
+ * @author Laboratory
+ */
+public class MappingLoadBenchmark {
+
+	// Keeps the JIT from throwing the work away
+	static int sink;
+
+	public static void main(String[] args) throws IOException {
+		int count = (args.length > 0) ? Integer.parseInt(args[0]) : 2000;
+		int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : 15;
+		PApplet parent = new PApplet();
+
+		File folder = File.createTempFile("vmap", "");
+		folder.delete();
+		folder.mkdirs();
+		File xmlFile = new File(folder, "mapping.xml");
+		File binaryFile = new File(folder, "mapping.vmap");
+
+		XML root = createLayout(count);
+		root.save(xmlFile);
+		MappingFile.fromXML(root).write(binaryFile);
+
+		System.out.println(count + " surfaces, XML " + (xmlFile.length() / 1024) + " KB, binary "
+				+ (binaryFile.length() / 1024) + " KB, median of " + rounds + " rounds after "
+				+ rounds + " warm-up rounds");
+		System.out.println("                 read only   read + build surfaces");
+		report("legacy XML", time(parent, xmlFile, 0, false, rounds), time(parent, xmlFile, 0, true, rounds));
+		report("stream XML", -1, time(parent, xmlFile, 1, true, rounds));
+		report("binary", time(parent, binaryFile, 2, false, rounds), time(parent, binaryFile, 2, true, rounds));
+
+		xmlFile.delete();
+		binaryFile.delete();
+		folder.delete();
+	}
+
+	private static void report(String name, double read, double build){
+		System.out.println(String.format("%-12s %12s %18.2f ms", name,
+				(read < 0) ? "-" : String.format("%.2f ms", read), build));
+	}
+
+	/**
+	 * Loads the file a bunch of times, after warming up
+	 * @param loader 0 for the legacy XML loader, 1 for the streaming one, 2 for binary
+	 * @param build Whether to build the surfaces too
+	 * @return Returns the median time in milliseconds
+	 */
+	private static double time(PApplet parent, File file, int loader, boolean build, int rounds) throws IOException {
+		double[] times = new double[rounds];
+		for (int r = -rounds; r < rounds; r++){
+			long start = System.nanoTime();
+			sink += load(parent, file, loader, build);
+			if (r >= 0){
+				times[r] = (System.nanoTime() - start) / 1e6;
+			}
+		}
+		Arrays.sort(times);
+		return times[rounds / 2];
+	}
+
+	/**
+	 * @return Returns the number of surfaces found
+	 */
+	private static int load(PApplet parent, File file, int loader, boolean build) throws IOException {
+		switch (loader){
+		case 0:
+			// What parent.loadXML() does, minus the sketch folder lookup
+			XML root;
+			try {
+				root = new XML(file);
+			} catch (Exception e) {
+				throw new IOException(e);
+			}
+			XML cleanRoot = parent.parseXML(root.toString());
+			XML[] elements = cleanRoot.getChildren("surface");
+			if (build){
+				for (XML surface : elements){
+					SuperSurface s = null;
+					if (surface.getInt("type") == SuperSurface.QUAD){
+						s = new QuadSurface(parent, null, surface);
+					}
+					else if (surface.getInt("type") == SuperSurface.BEZIER){
+						s = new BezierSurface(parent, null, surface);
+					}
+					else if (surface.getInt("type") == SuperSurface.MESH){
+						s = new MeshSurface(parent, null, surface);
+					}
+					sink += s.getGeometryVersion();
+				}
+			}
+			return elements.length;
+		case 1:
+			MappingReader reader = new MappingReader(parent, null);
+			reader.read(file);
+			return reader.surfaces.size();
+		default:
+			MappingFile map = MappingFile.read(file);
+			if (build){
+				for (int i = 0; i < map.getSurfaceCount(); i++){
+					sink += map.createSurface(i, parent, null).getGeometryVersion();
+				}
+				XML extras = map.parseExtras();
+				sink += (extras == null) ? 0 : extras.getChildCount();
+			}
+			return map.getSurfaceCount();
+		}
+	}
+
+	/**
+	 * Makes a layout like saveXML() would write: mostly quads,
+	 *  some Bezier surfaces and a few mesh surfaces, in a grid
+	 */
+	private static XML createLayout(int count){
+		XML root = new XML("ProjectionMap");
+		for (int n = 0; n < count; n++){
+			int type = (n % 10 == 9) ? SuperSurface.MESH : (n % 10 >= 6) ? SuperSurface.BEZIER : SuperSurface.QUAD;
+			float x = (n % 50) * 40;
+			float y = (n / 50) * 40;
+
+			XML surface = root.addChild("surface");
+			surface.setInt("type", type);
+			surface.setInt("id", n);
+			surface.setString("name", "surface " + n);
+			surface.setInt("res", (type == SuperSurface.BEZIER) ? 10 : 3);
+			surface.setInt("lock", 0);
+			surface.setInt("output", SuperSurface.ALL_OUTPUTS);
+			float[] corners = { x, y, x + 36, y, x + 36, y + 36, x, y + 36 };
+			for (int i = 0; i < 4; i++){
+				addPoint(surface, "cornerpoint", i, corners[i * 2], corners[i * 2 + 1]);
+			}
+			if (type == SuperSurface.BEZIER){
+				surface.setInt("horizontalForce", 5);
+				surface.setInt("verticalForce", -5);
+				for (int i = 0; i < 8; i++){
+					addPoint(surface, "bezierpoint", i, corners[(i / 2) * 2] + 6, corners[(i / 2) * 2 + 1] + 6);
+				}
+			}
+			else if (type == SuperSurface.MESH){
+				surface.setInt("columns", 4);
+				surface.setInt("rows", 4);
+				for (int i = 0; i < 16; i++){
+					addPoint(surface, "meshpoint", i, x + (i % 4) * 12, y + (i / 4) * 12);
+				}
+			}
+		}
+		return root;
+	}
+
+	private static void addPoint(XML surface, String name, int i, float x, float y){
+		XML point = surface.addChild(name);
+		point.setInt("i", i);
+		point.setFloat("x", x);
+		point.setFloat("y", y);
+	}
+}
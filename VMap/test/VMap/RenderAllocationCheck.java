@@ -0,0 +1,111 @@
+/**
+ * Part of the VMap library: https://github.com/AlanChatham/VMap
+ *
+ * Portions to update to Processing 2 copyright (c) 2014 - Laboratory LLC
+ * Copyright (c) 2011-12 Ixagon AB
+ *
+ * This source is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is available on the World
+ * Wide Web at <http://www.gnu.org/copyleft/gpl.html>. You can also
+ * obtain it by writing to the Free Software Foundation,
+ * Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+
+package VMap;
+
+import java.lang.management.ManagementFactory;
+
+import processing.core.PApplet;
+import processing.core.PImage;
+
+/**
+ * Checks that render() doesn't allocate anything on the heap once a layout
+ * has settled. Builds a fixed layout of quads, Bezier and mesh surfaces
+ * sharing one texture, renders it for a while so every buffer has grown
+ * to fit, then counts the bytes the animation thread allocates across
+ * a few hundred render() calls. Anything above zero fails.
+ *
+ * It needs a real OpenGL context, so run it on a machine with a display:
+ *
+ *   javac -d bin -cp "libs/*" src/VMap/*.java test/VMap/*.java
+ *   java -cp "bin:libs/*" VMap.RenderAllocationCheck
+ *
+ * Exits with 0 if render() allocated nothing, 1 if it did.
+ *
+ * @author Laboratory
+ */
+public class RenderAllocationCheck extends PApplet {
+
+	// Frames to render before measuring, so buffers, caches and the JIT settle
+	static final int WARMUP_FRAMES = 120;
+	// render() calls to measure over
+	static final int MEASURED_FRAMES = 300;
+
+	private VMap vm;
+	private com.sun.management.ThreadMXBean threads;
+
+	public static void main(String[] args){
+		PApplet.main(RenderAllocationCheck.class.getName());
+	}
+
+	public void settings(){
+		size(800, 600, P3D);
+	}
+
+	public void setup(){
+		threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+		vm = new VMap(this, width, height);
+		// Every frame has to do the full amount of work
+		vm.setIdleSkipping(false);
+		// The readback is Processing's loadPixels(), not ours
+		vm.setCopyToPixels(false);
+
+		// One texture on every surface, like a video wall
+		PImage texture = createImage(256, 256, RGB);
+		texture.loadPixels();
+		for (int i = 0; i < texture.pixels.length; i++){
+			texture.pixels[i] = color(i % 256, (i / 256) % 256, 128);
+		}
+		texture.updatePixels();
+
+		for (int i = 0; i < 24; i++){
+			vm.createQuadSurface(3, 60 + (i % 6) * 120, 60 + (i / 6) * 100).setTexture(texture);
+		}
+		vm.createBezierSurface(10, 200, 480).setTexture(texture);
+		vm.createMeshSurface(4, 4, 500, 480).setTexture(texture);
+		vm.setModeRender();
+	}
+
+	public void draw(){
+		if (frameCount <= WARMUP_FRAMES){
+			vm.render();
+			return;
+		}
+
+		long thread = Thread.currentThread().getId();
+		// What asking costs, so we can take it back out
+		long before = threads.getThreadAllocatedBytes(thread);
+		long overhead = threads.getThreadAllocatedBytes(thread) - before;
+
+		before = threads.getThreadAllocatedBytes(thread);
+		for (int i = 0; i < MEASURED_FRAMES; i++){
+			vm.render();
+		}
+		long allocated = threads.getThreadAllocatedBytes(thread) - before - overhead;
+
+		System.out.println("render() allocated " + allocated + " bytes over " + MEASURED_FRAMES + " frames ("
+				+ (allocated / MEASURED_FRAMES) + " per frame)");
+		System.exit(allocated > 0 ? 1 : 0);
+	}
+}